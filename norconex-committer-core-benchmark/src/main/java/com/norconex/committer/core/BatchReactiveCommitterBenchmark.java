@@ -0,0 +1,137 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Measures end-to-end throughput of a {@link BatchReactiveCommitter}:
+ * serialization, persistent queuing, buffering and batch processing by a
+ * subscriber that accepts every batch.
+ * @since 2.1.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchReactiveCommitterBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    private int docSize;
+
+    @Param({ "10", "100" })
+    private int metadataWidth;
+
+    @Param({ "100" })
+    private int commitBatchSize;
+
+    private byte[] content;
+    private Properties metadata;
+    private File queueDir;
+    private BatchReactiveCommitter committer;
+    private final AtomicLong committed = new AtomicLong();
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        content = BenchmarkDocs.content(docSize);
+        metadata = BenchmarkDocs.metadata(metadataWidth);
+        queueDir = BenchmarkDocs.tempDir("reactive-queue-bench");
+        committer = new BatchReactiveCommitter();
+        committer.setQueueDir(queueDir.getAbsolutePath());
+        committer.setQueueName("benchmark");
+        committer.setCommitBatchSize(commitBatchSize);
+        committer.init();
+        committer.setSubscriber(new CountingSubscriber(committed));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        committer.commit();
+        committer.getQueue().destroy();
+        FileUtils.deleteQuietly(queueDir);
+    }
+
+    @Benchmark
+    public void add() {
+        committer.add("http://example.com/doc-" + (sequence++),
+                new ByteArrayInputStream(content), metadata);
+    }
+
+    @Benchmark
+    public void remove() {
+        committer.remove("http://example.com/doc-" + (sequence++), metadata);
+    }
+
+    private static class CountingSubscriber 
+            extends AbstractBatchCommitterSubscriber {
+        private final AtomicLong count;
+        public CountingSubscriber(AtomicLong count) {
+            super();
+            this.count = count;
+        }
+        @Override
+        protected void prepareCommitAddition(IAddOperation operation) {
+            // NOOP
+        }
+        @Override
+        protected void prepareCommitDeletion(IDeleteOperation operation) {
+            // NOOP
+        }
+        @Override
+        protected boolean processCommitOperations(
+                List<ICommitOperation> operations) {
+            count.addAndGet(operations.size());
+            return true;
+        }
+        @Override
+        protected void loadFromXml(XMLConfiguration xml) {
+            // NOOP
+        }
+        @Override
+        protected void saveToXML(XMLStreamWriter out) 
+                throws XMLStreamException {
+            // NOOP
+        }
+    }
+}
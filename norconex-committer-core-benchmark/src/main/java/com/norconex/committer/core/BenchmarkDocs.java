@@ -0,0 +1,80 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Generates the documents fed to committer benchmarks.  Content is
+ * random printable text so that compressing serializers get realistic
+ * (not best-case) input.
+ * @since 2.1.3
+ */
+public final class BenchmarkDocs {
+
+    private static final String ALPHABET = 
+            "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789.";
+
+    private BenchmarkDocs() {
+        super();
+    }
+
+    /**
+     * Creates document content of the given size.
+     * @param size content size in bytes
+     * @return content
+     */
+    public static byte[] content(int size) {
+        Random random = new Random(size);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ALPHABET.charAt(
+                    random.nextInt(ALPHABET.length()));
+        }
+        return content;
+    }
+
+    /**
+     * Creates metadata with the given number of fields.
+     * @param width number of metadata fields
+     * @return metadata
+     */
+    public static Properties metadata(int width) {
+        Properties metadata = new Properties();
+        for (int i = 0; i < width; i++) {
+            metadata.addString("field" + i, "value of metadata field " + i);
+        }
+        return metadata;
+    }
+
+    /**
+     * Creates a new, empty temporary directory.
+     * @param prefix directory name prefix
+     * @return directory
+     * @throws IOException could not create directory
+     */
+    public static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        FileUtils.deleteQuietly(dir);
+        FileUtils.forceMkdir(dir);
+        return dir;
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Measures {@link AbstractFileQueueCommitter#commit()} draining a queue 
+ * of {@value #QUEUED_DOCS} documents (half additions, half deletions). 
+ * Results are reported per committed document.
+ * @since 2.1.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileQueueCommitterBenchmark {
+
+    private static final int QUEUED_DOCS = 1000;
+
+    @Param({ "1024", "65536" })
+    private int docSize;
+
+    @Param({ "10", "100" })
+    private int metadataWidth;
+
+    private byte[] content;
+    private Properties metadata;
+    private File queueDir;
+    private AbstractFileQueueCommitter committer;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        content = BenchmarkDocs.content(docSize);
+        metadata = BenchmarkDocs.metadata(metadataWidth);
+        queueDir = BenchmarkDocs.tempDir("file-queue-bench");
+        committer = new AbstractFileQueueCommitter() {
+            @Override
+            protected void commitAddition(IAddOperation operation) {
+                operation.getMetadata();
+                operation.delete();
+            }
+            @Override
+            protected void commitDeletion(IDeleteOperation operation) {
+                operation.delete();
+            }
+            @Override
+            protected void commitComplete() {
+                // NOOP
+            }
+        };
+        committer.setQueueDir(queueDir.getAbsolutePath());
+        // Never commit while queuing, only when the benchmark says so
+        committer.setQueueSize(Integer.MAX_VALUE);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillQueue() {
+        for (int i = 0; i < QUEUED_DOCS; i++) {
+            if (i % 2 == 0) {
+                committer.add("doc-" + i, 
+                        new ByteArrayInputStream(content), metadata);
+            } else {
+                committer.remove("doc-" + i, metadata);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        FileUtils.deleteQuietly(queueDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUEUED_DOCS)
+    public void commit() {
+        committer.commit();
+    }
+}
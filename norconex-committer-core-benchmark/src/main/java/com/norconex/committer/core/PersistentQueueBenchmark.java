@@ -0,0 +1,123 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.norconex.committer.core.AbstractQueueCodec.Compression;
+
+/**
+ * Measures serialization of commit operations placed on the reactive
+ * {@link PersistentQueue}, for each queue codec and compression.  The "unpooled"
+ * benchmarks reproduce the former stream-based Kryo path (new output
+ * stream, output and copy per call) and serve as a baseline for allocation
+ * comparisons with <code>-prof gc</code>.
+ * @since 2.1.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistentQueueBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    private int docSize;
+
+    @Param({ "10", "100" })
+    private int metadataWidth;
+
+    @Param({ "kryo", "binary" })
+    private String codecType;
+
+    @Param({ "NONE", "DEFLATE", "LZ4", "ZSTD" })
+    private Compression compression;
+
+    private AbstractQueueCodec codec;
+    private final KryoQueueCodec unpooledCodec = new KryoQueueCodec();
+
+    private ICommitOperation addOperation;
+    private ICommitOperation deleteOperation;
+    private byte[] serializedAdd;
+    private byte[] serializedDelete;
+    // Raw Kryo data, without codec framing, for the unpooled baseline
+    private byte[] unpooledAdd;
+
+    @Setup
+    public void setup() {
+        addOperation = new DocumentAddOperation(new Document(
+                "http://example.com/doc", BenchmarkDocs.content(docSize),
+                BenchmarkDocs.metadata(metadataWidth)));
+        deleteOperation = new DocumentDeleteOperation("http://example.com/doc");
+        codec = "binary".equals(codecType)
+                ? new BinaryQueueCodec() : new KryoQueueCodec();
+        codec.setCompression(compression);
+        serializedAdd = codec.encode(addOperation);
+        serializedDelete = codec.encode(deleteOperation);
+        unpooledAdd = serializeAddUnpooled();
+    }
+
+    @Benchmark
+    public byte[] serializeAdd() {
+        return codec.encode(addOperation);
+    }
+
+    @Benchmark
+    public byte[] serializeDelete() {
+        return codec.encode(deleteOperation);
+    }
+
+    @Benchmark
+    public ICommitOperation deserializeAdd() {
+        return codec.decode(serializedAdd);
+    }
+
+    @Benchmark
+    public ICommitOperation deserializeDelete() {
+        return codec.decode(serializedDelete);
+    }
+
+    @Benchmark
+    public byte[] serializeAddUnpooled() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Output output = new Output(outputStream);
+        unpooledCodec.kryo().writeClassAndObject(output, addOperation);
+        output.close();
+        return outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserializeAddUnpooled() {
+        Input input = new Input(new ByteArrayInputStream(unpooledAdd));
+        return unpooledCodec.kryo().readClassAndObject(input);
+    }
+}
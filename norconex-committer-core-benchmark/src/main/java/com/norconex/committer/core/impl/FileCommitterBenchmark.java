@@ -0,0 +1,115 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.norconex.committer.core.BenchmarkDocs;
+import com.norconex.committer.core.ICommitter;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Measures document writing by {@link JSONFileCommitter} and 
+ * {@link XMLFileCommitter}.  Files are rolled every 
+ * {@value #DOCS_PER_FILE} documents and removed after each iteration.
+ * @since 2.1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCommitterBenchmark {
+
+    private static final int DOCS_PER_FILE = 100;
+
+    @Param({ "json", "xml" })
+    private String format;
+
+    @Param({ "false", "true" })
+    private boolean pretty;
+
+    @Param({ "1024", "65536", "1048576" })
+    private int docSize;
+
+    @Param({ "10", "100" })
+    private int metadataWidth;
+
+    private byte[] content;
+    private Properties metadata;
+    private File directory;
+    private ICommitter committer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        content = BenchmarkDocs.content(docSize);
+        metadata = BenchmarkDocs.metadata(metadataWidth);
+        directory = BenchmarkDocs.tempDir("file-committer-bench");
+        if ("xml".equals(format)) {
+            XMLFileCommitter xml = new XMLFileCommitter();
+            xml.setDirectory(directory.getAbsolutePath());
+            xml.setPretty(pretty);
+            xml.setDocsPerFile(DOCS_PER_FILE);
+            committer = xml;
+        } else {
+            JSONFileCommitter json = new JSONFileCommitter();
+            json.setDirectory(directory.getAbsolutePath());
+            json.setPretty(pretty);
+            json.setDocsPerFile(DOCS_PER_FILE);
+            committer = json;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanIteration() throws IOException {
+        committer.commit();
+        FileUtils.cleanDirectory(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Benchmark
+    public void add() {
+        committer.add("http://example.com/doc", 
+                new ByteArrayInputStream(content), metadata);
+    }
+
+    @Benchmark
+    public void remove() {
+        committer.remove("http://example.com/doc", metadata);
+    }
+}
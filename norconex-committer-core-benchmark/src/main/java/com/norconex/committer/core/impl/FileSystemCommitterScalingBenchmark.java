@@ -0,0 +1,127 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.norconex.committer.core.BenchmarkDocs;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Measures how {@link FileSystemCommitter#add(String, java.io.InputStream, 
+ * Properties)} scales when many crawler threads share the same committer,
+ * from 1 to 32 threads.  Total throughput (all threads) is reported.
+ * Meaningful results require at least as many cores as threads.
+ * @since 2.1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemCommitterScalingBenchmark {
+
+    @Param({ "1024" })
+    private int docSize;
+
+    @Param({ "false", "true" })
+    private boolean indexed;
+
+    private byte[] content;
+    private Properties metadata;
+    private File directory;
+    private FileSystemCommitter committer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        content = BenchmarkDocs.content(docSize);
+        metadata = BenchmarkDocs.metadata(10);
+        directory = BenchmarkDocs.tempDir("fs-committer-scaling-bench");
+        committer = new FileSystemCommitter();
+        committer.setDirectory(directory.getAbsolutePath());
+        committer.setIndexed(indexed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanIteration() throws IOException {
+        FileUtils.cleanDirectory(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add01Thread() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void add02Threads() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void add04Threads() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void add08Threads() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void add16Threads() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void add32Threads() {
+        add();
+    }
+
+    private void add() {
+        committer.add("http://example.com/doc", 
+                new ByteArrayInputStream(content), metadata);
+    }
+}
@@ -16,8 +16,15 @@ package com.norconex.committer.core;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.collections4.set.ListOrderedSet;
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -54,7 +61,63 @@ import com.norconex.commons.lang.config.IXMLConfigurable;
  *      &lt;queueSize&gt;(max queue size before committing)&lt;/queueSize&gt;
  *      &lt;maxRetries&gt;(max retries upon commit failures)&lt;/maxRetries&gt;
  *      &lt;maxRetryWait&gt;(max delay in milliseconds between retries)&lt;/maxRetryWait&gt;
+ *      &lt;commitWorkers&gt;(number of batches committed at once)&lt;/commitWorkers&gt;
+ *      &lt;coalesceOperations&gt;[false|true]&lt;/coalesceOperations&gt;
+ *      &lt;retryPolicy&gt;
+ *          (optional, see {@link RetryPolicy})
+ *      &lt;/retryPolicy&gt;
+ *      &lt;deadLetterDir&gt;
+ *          (optional path where to store operations failing on their own)
+ *      &lt;/deadLetterDir&gt;
+ *      &lt;deadLetterMaxFailures&gt;
+ *          (failed commits before an operation is dead-lettered)
+ *      &lt;/deadLetterMaxFailures&gt;
+ *      &lt;adaptiveBatchSize&gt;
+ *          (optional, see {@link AdaptiveBatchSizer})
+ *      &lt;/adaptiveBatchSize&gt;
  * </pre>
+ * <p>
+ * When an {@link AdaptiveBatchSizer} is set, the commit batch size is only
+ * the initial size.  It is then adjusted from the time taken by, and the
+ * failures of, each {@link #commitBatch(List)} call.
+ * </p>
+ * <p>
+ * When the number of commit workers is greater than one, batches are
+ * committed by a pool of worker threads instead of the thread adding
+ * documents, and {@link #commitBatch(List)} is invoked for several batches
+ * at once: implementations must then be thread-safe.  Each batch is retried
+ * on its own, and queued files of committed batches are still deleted in
+ * the order the batches were created.  A commit only returns once all its
+ * batches are committed.
+ * </p>
+ * <p>
+ * When operations are coalesced, only the latest operation of each
+ * reference in a batch is given to {@link #commitBatch(List)}.  Operations
+ * it supersedes (e.g. an addition followed by a deletion of the same
+ * document) are deleted from the queue with the batch, without being sent.
+ * </p>
+ * <p>
+ * Without a {@link RetryPolicy}, failed batches are retried up to
+ * "maxRetries" times, waiting "maxRetryWait" between each try.  With one,
+ * batches are always committed by worker threads and retries are
+ * scheduled as the policy dictates, so waiting for a retry never blocks
+ * the thread adding documents.  A batch waiting for a retry still holds
+ * its worker, so documents keep being added only until all workers
+ * are busy.
+ * </p>
+ * <p>
+ * When a dead-letter directory is set, a batch still failing after its
+ * retries is split in halves, recursively, to isolate the operations
+ * making it fail.  Other operations are committed, and the failing ones
+ * are stored in a {@link DeadLetterQueue} and removed from the queue.
+ * If no part of the batch can be committed, the failure is assumed not to
+ * come from specific operations (e.g. the target repository is down) and
+ * the batch fails as a whole, as it does without a dead-letter directory.
+ * Each operation of such a batch then has its failure recorded, and
+ * operations having failed "deadLetterMaxFailures" commits in a row
+ * (default is 5) are dead-lettered too, so a single poison document
+ * cannot block the queue forever.
+ * </p>
  * 
  * @author Pascal Essiembre
  * @since 1.1.0
@@ -67,14 +130,30 @@ public abstract class AbstractBatchCommitter
     
     /** Default commit batch size. */
     public static final int DEFAULT_COMMIT_BATCH_SIZE = 100;
+    /** Default number of commit workers. */
+    public static final int DEFAULT_COMMIT_WORKERS = 1;
 
     private int commitBatchSize;
     private int maxRetries;
     private long maxRetryWait;
+    private int commitWorkers = DEFAULT_COMMIT_WORKERS;
+    private boolean coalesceOperations;
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+    private RetryPolicy retryPolicy;
+    private String deadLetterDir;
+    private DeadLetterQueue deadLetterQueue;
+    private int deadLetterMaxFailures = DeadLetterQueue.DEFAULT_MAX_FAILURES;
 
     private final Set<ICommitOperation> operations = 
             Collections.synchronizedSet(new ListOrderedSet<ICommitOperation>());
 
+    // Batches sent to commit workers, in creation order
+    private final LinkedList<PendingBatch> pendingBatches = new LinkedList<>();
+    private final AtomicReference<RuntimeException> workerFailure =
+            new AtomicReference<>();
+    private ScheduledExecutorService workerPool;
+    private Semaphore workerPermits;
+
     /**
      * Constructor.
      */
@@ -102,6 +181,32 @@ public abstract class AbstractBatchCommitter
      */
     public void setCommitBatchSize(int commitBatchSize) {
         this.commitBatchSize = commitBatchSize;
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.reset(commitBatchSize);
+        }
+    }
+
+    /**
+     * Gets the adaptive batch sizer.
+     * @return adaptive batch sizer or <code>null</code> if the commit
+     *         batch size is fixed
+     * @since 2.1.3
+     */
+    public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+        return adaptiveBatchSizer;
+    }
+    /**
+     * Sets an adaptive batch sizer to adjust the batch size from commit
+     * latency and failures, starting from the commit batch size.
+     * Default is <code>null</code> (fixed batch size).
+     * @param adaptiveBatchSizer adaptive batch sizer
+     * @since 2.1.3
+     */
+    public void setAdaptiveBatchSizer(AdaptiveBatchSizer adaptiveBatchSizer) {
+        this.adaptiveBatchSizer = adaptiveBatchSizer;
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.reset(commitBatchSize);
+        }
     }
 
     /**
@@ -138,6 +243,116 @@ public abstract class AbstractBatchCommitter
     public void setMaxRetryWait(long maxRetryWait) {
         this.maxRetryWait = maxRetryWait;
     }
+
+    /**
+     * Gets the policy deciding when failed batches are retried.
+     * @return retry policy or <code>null</code> if retries are made
+     *         from "maxRetries" and "maxRetryWait"
+     * @since 2.1.3
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    /**
+     * Sets the policy deciding when failed batches are retried, replacing
+     * "maxRetries" and "maxRetryWait". Default is <code>null</code>.
+     * @param retryPolicy retry policy
+     * @since 2.1.3
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the directory where operations failing on their own are stored.
+     * @return dead-letter directory or <code>null</code> if failed batches
+     *         are not split
+     * @since 2.1.3
+     */
+    public String getDeadLetterDir() {
+        return deadLetterDir;
+    }
+    /**
+     * Sets the directory where operations failing on their own are stored.
+     * Setting one splits failed batches to isolate those operations.
+     * Default is <code>null</code> (failed batches fail as a whole).
+     * @param deadLetterDir dead-letter directory
+     * @since 2.1.3
+     */
+    public void setDeadLetterDir(String deadLetterDir) {
+        this.deadLetterDir = deadLetterDir;
+        this.deadLetterQueue = deadLetterDir != null 
+                ? new DeadLetterQueue(deadLetterDir) : null;
+    }
+
+    /**
+     * Gets the number of failed commits after which an operation is sent
+     * to the dead-letter queue.
+     * @return maximum number of failures
+     * @since 2.1.3
+     */
+    public int getDeadLetterMaxFailures() {
+        return deadLetterMaxFailures;
+    }
+    /**
+     * Sets the number of failed commits after which an operation is sent
+     * to the dead-letter queue, even if it does not fail on its own.
+     * Zero never sends operations to the dead-letter queue
+     * for that reason.  Default is 5.
+     * @param deadLetterMaxFailures maximum number of failures
+     * @since 2.1.3
+     */
+    public void setDeadLetterMaxFailures(int deadLetterMaxFailures) {
+        this.deadLetterMaxFailures = deadLetterMaxFailures;
+    }
+
+    /**
+     * Gets the number of batches that can be committed at the same time.
+     * @return number of commit workers
+     * @since 2.1.3
+     */
+    public int getCommitWorkers() {
+        return commitWorkers;
+    }
+    /**
+     * Sets the number of batches that can be committed at the same time.
+     * Default is 1 (batches are committed one at a time, by the thread
+     * adding documents).
+     * @param commitWorkers number of commit workers
+     * @since 2.1.3
+     */
+    public synchronized void setCommitWorkers(int commitWorkers) {
+        if (this.commitWorkers != commitWorkers) {
+            if (workerPool != null) {
+                // Running workers complete their batch before terminating
+                workerPool.shutdown();
+                workerPool = null;
+            }
+            workerPermits = null;
+        }
+        this.commitWorkers = commitWorkers;
+    }
+
+    /**
+     * Gets whether only the latest operation of each reference in a batch
+     * is committed.
+     * @return <code>true</code> if operations are coalesced
+     * @since 2.1.3
+     */
+    public boolean isCoalesceOperations() {
+        return coalesceOperations;
+    }
+    /**
+     * Sets whether only the latest operation of each reference in a batch
+     * is committed.  Default is <code>false</code> (all operations are
+     * committed).
+     * @param coalesceOperations <code>true</code> to coalesce operations
+     * @since 2.1.3
+     */
+    public void setCoalesceOperations(boolean coalesceOperations) {
+        this.coalesceOperations = coalesceOperations;
+    }
+
     @Override
     protected final void commitAddition(IAddOperation operation) {
         cacheOperationAndCommitIfReady(operation);
@@ -159,6 +374,11 @@ public abstract class AbstractBatchCommitter
                 commitAndCleanBatch(batch);
             }
         }
+        try {
+            awaitPendingBatches();
+        } finally {
+            releaseWorkerPool();
+        }
     }
 
     /**
@@ -172,11 +392,58 @@ public abstract class AbstractBatchCommitter
      * @param batch the bath of operations to commit.
      */
     private void commitAndCleanBatch(List<ICommitOperation> batch) {
+        if (commitWorkers > 1 || retryPolicy != null) {
+            submitBatch(batch);
+            return;
+        }
+        try {
+            commitBatchWithRetries(batch);
+        } catch (RuntimeException e) {
+            commitFailedBatch(batch, e);
+        }
+        deleteBatch(batch);
+    }
+
+    // Commits what can be of a failed batch, sending operations failing
+    // on their own to the dead-letter queue, or throws the batch failure
+    private void commitFailedBatch(
+            List<ICommitOperation> batch, RuntimeException failure) {
+        DeadLetterQueue dlq = deadLetterQueue;
+        if (dlq == null) {
+            throw failure;
+        }
+        if (batch.size() > 1) {
+            LOG.error("Could not commit batched operations, splitting batch "
+                    + "to isolate failing ones.", failure);
+            List<ICommitOperation> failed = 
+                    BatchBisector.bisect(batch, this::tryCommitBatch);
+            if (failed.size() < batch.size()) {
+                for (ICommitOperation op : failed) {
+                    dlq.add(op, failure);
+                }
+                return;
+            }
+        }
+        // Nothing could be committed: count a failure for each operation
+        // and only dead-letter those failing too often
+        for (Iterator<ICommitOperation> it = batch.iterator(); it.hasNext();) {
+            ICommitOperation op = it.next();
+            if (dlq.recordFailure(op, failure, deadLetterMaxFailures)) {
+                op.delete();
+                it.remove();
+            }
+        }
+        if (!batch.isEmpty()) {
+            throw failure;
+        }
+    }
+
+    private void commitBatchWithRetries(List<ICommitOperation> batch) {
         int numTries = 0;
         boolean success = false;
         while (!success) {
             try {
-                commitBatch(batch);
+                tryCommitBatch(batch);
                 success = true;
             } catch (Exception e) {
                 if (numTries < maxRetries) {
@@ -188,19 +455,167 @@ public abstract class AbstractBatchCommitter
                 }
             }
         }
-        
+    }
+
+    private void tryCommitBatch(List<ICommitOperation> batch) {
+        long start = System.currentTimeMillis();
+        try {
+            commitBatch(coalesceOperations 
+                    ? OperationCoalescer.coalesce(batch) : batch);
+            recordBatch(batch.size(), start, true);
+        } catch (RuntimeException e) {
+            recordBatch(batch.size(), start, false);
+            throw e;
+        }
+    }
+
+    private void deleteBatch(List<ICommitOperation> batch) {
         // Delete queued documents after commit
+        DeadLetterQueue dlq = deadLetterQueue;
         for (ICommitOperation op : batch) {
+            if (dlq != null) {
+                dlq.recordSuccess(op);
+            }
             op.delete();
         }
         batch.clear();
     }
+
+    private void submitBatch(List<ICommitOperation> batch) {
+        if (workerFailure.get() != null) {
+            // Stop submitting and only fail once no batch is in flight,
+            // so files being committed are not released to a next commit
+            try {
+                awaitPendingBatches();
+            } finally {
+                releaseWorkerPool();
+            }
+        }
+        Semaphore permits;
+        synchronized (this) {
+            if (workerPermits == null) {
+                workerPermits = new Semaphore(commitWorkers);
+            }
+            permits = workerPermits;
+        }
+        // Wait for a free worker so batches do not pile up in memory
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommitterException(
+                    "Interrupted while waiting for a commit worker.", e);
+        }
+        PendingBatch pending = new PendingBatch(batch);
+        RetryPolicy policy = retryPolicy != null 
+                ? retryPolicy : RetryPolicy.fixed(maxRetries, maxRetryWait);
+        ScheduledExecutorService pool;
+        // Pending batches keep the pool from being released
+        synchronized (this) {
+            if (workerPool == null) {
+                workerPool = newWorkerPool(commitWorkers);
+            }
+            pool = workerPool;
+            synchronized (pendingBatches) {
+                pendingBatches.add(pending);
+            }
+        }
+        pool.execute(() -> policy.execute(() -> tryCommitBatch(batch), pool)
+                .whenComplete((v, e) -> {
+            RuntimeException failure = null;
+            if (e != null) {
+                failure = e instanceof RuntimeException
+                        ? (RuntimeException) e : new CommitterException(e);
+                try {
+                    commitFailedBatch(batch, failure);
+                    failure = null;
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                }
+            }
+            if (failure == null) {
+                pending.committed = true;
+            } else {
+                LOG.error("Could not commit batched operations.", failure);
+                workerFailure.compareAndSet(null, failure);
+            }
+            permits.release();
+            completeBatch(pending);
+        }));
+    }
+
+    private void completeBatch(PendingBatch pending) {
+        synchronized (pendingBatches) {
+            pending.done = true;
+            // Only delete once all batches created before are done
+            while (!pendingBatches.isEmpty() 
+                    && pendingBatches.getFirst().done) {
+                PendingBatch first = pendingBatches.removeFirst();
+                if (first.committed) {
+                    deleteBatch(first.operations);
+                }
+            }
+            pendingBatches.notifyAll();
+        }
+    }
+
+    private void awaitPendingBatches() {
+        synchronized (pendingBatches) {
+            while (!pendingBatches.isEmpty()) {
+                try {
+                    pendingBatches.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CommitterException(
+                            "Interrupted while waiting for batches to "
+                          + "be committed.", e);
+                }
+            }
+        }
+        throwWorkerFailure();
+    }
+
+    // Worker threads are only kept while batches are being committed
+    private synchronized void releaseWorkerPool() {
+        synchronized (pendingBatches) {
+            if (workerPool != null && pendingBatches.isEmpty()) {
+                workerPool.shutdown();
+                workerPool = null;
+            }
+        }
+    }
+
+    private void throwWorkerFailure() {
+        RuntimeException e = workerFailure.getAndSet(null);
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private static ScheduledExecutorService newWorkerPool(int workers) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newScheduledThreadPool(workers, r -> {
+            Thread thread = new Thread(
+                    r, "commit-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
     
+    private void recordBatch(int size, long start, boolean success) {
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.record(
+                    size, System.currentTimeMillis() - start, success);
+        }
+    }
+
     private void cacheOperationAndCommitIfReady(ICommitOperation operation) {
         operations.add(operation);
         List<ICommitOperation> batch = null;
+        int batchSize = adaptiveBatchSizer != null
+                ? adaptiveBatchSizer.getBatchSize() : commitBatchSize;
         synchronized (operations) {
-            if (operations.size() % commitBatchSize == 0) {
+            if (operations.size() >= batchSize) {
                 batch = getBatchToCommit();
             }
         }
@@ -223,6 +638,12 @@ public abstract class AbstractBatchCommitter
         hashCodeBuilder.append(commitBatchSize);
         hashCodeBuilder.append(maxRetries);
         hashCodeBuilder.append(maxRetryWait);
+        hashCodeBuilder.append(commitWorkers);
+        hashCodeBuilder.append(retryPolicy);
+        hashCodeBuilder.append(coalesceOperations);
+        hashCodeBuilder.append(deadLetterDir);
+        hashCodeBuilder.append(deadLetterMaxFailures);
+        hashCodeBuilder.append(adaptiveBatchSizer);
         hashCodeBuilder.append(operations);
         return hashCodeBuilder.toHashCode();
     }
@@ -244,6 +665,13 @@ public abstract class AbstractBatchCommitter
         equalsBuilder.append(commitBatchSize, other.commitBatchSize);
         equalsBuilder.append(maxRetries, other.maxRetries);
         equalsBuilder.append(maxRetryWait, other.maxRetryWait);
+        equalsBuilder.append(commitWorkers, other.commitWorkers);
+        equalsBuilder.append(retryPolicy, other.retryPolicy);
+        equalsBuilder.append(coalesceOperations, other.coalesceOperations);
+        equalsBuilder.append(deadLetterDir, other.deadLetterDir);
+        equalsBuilder.append(
+                deadLetterMaxFailures, other.deadLetterMaxFailures);
+        equalsBuilder.append(adaptiveBatchSizer, other.adaptiveBatchSizer);
         equalsBuilder.append(operations, other.operations);
         return equalsBuilder.isEquals();
     }
@@ -256,7 +684,22 @@ public abstract class AbstractBatchCommitter
         builder.append("commitBatchSize", commitBatchSize);
         builder.append("maxRetries", maxRetries);
         builder.append("maxRetryWait", maxRetryWait);
+        builder.append("commitWorkers", commitWorkers);
+        builder.append("retryPolicy", retryPolicy);
+        builder.append("coalesceOperations", coalesceOperations);
+        builder.append("deadLetterDir", deadLetterDir);
+        builder.append("deadLetterMaxFailures", deadLetterMaxFailures);
+        builder.append("adaptiveBatchSizer", adaptiveBatchSizer);
         builder.append("operations", operations);
         return builder.toString();
     }
+
+    private static final class PendingBatch {
+        private final List<ICommitOperation> operations;
+        private boolean done;
+        private boolean committed;
+        PendingBatch(List<ICommitOperation> operations) {
+            this.operations = operations;
+        }
+    }
 }
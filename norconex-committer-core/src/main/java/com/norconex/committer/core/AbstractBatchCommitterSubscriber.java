@@ -18,10 +18,39 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is a subscriber which can be used for batched message processing.
+ *
+ * <p>When the committer subscriber concurrency is greater than one,
+ * {@link #commitMessages(List)} is invoked for several batches at once
+ * from different threads.  Implementations must then be thread-safe.
+ *
+ * <p>When the committer has a {@link RetryPolicy}, failed batches are
+ * retried on scheduler threads (as many as the subscriber concurrency) as
+ * the policy dictates, and the next batch
+ * is only requested once the current one is done.  Messages of a batch
+ * failing all its retries are put back on the queue and the subscriber
+ * carries on with the next batch.
+ *
+ * <p>When the committer has a dead-letter directory, a batch still
+ * failing after its retries is split to isolate the messages making it
+ * fail (see {@link AbstractBatchCommitter}).  Other messages are
+ * committed, and the failing ones are stored in a {@link DeadLetterQueue}
+ * and finished.  When no part of the batch can be committed, a failure is
+ * recorded for each of its messages, and only those having failed the
+ * maximum number of times are moved to the dead-letter queue.
+ *
+ * <p>When the committer coalesces operations, only the latest operation of
+ * each reference in a batch is given to
+ * {@link #processCommitOperations(List)}.  Messages of superseded
+ * operations are finished with the batch.
  */
 public abstract class AbstractBatchCommitterSubscriber
         extends BaseSubscriber<List<UniversalIdIntQueueMessage>> implements ICommitterSubscriber, IXMLConfigurable {
@@ -29,6 +58,16 @@ public abstract class AbstractBatchCommitterSubscriber
     private static final Logger LOG = LogManager.getLogger(AbstractBatchCommitterSubscriber.class);
 
     private PersistentQueue queue;
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+    private RetryPolicy retryPolicy;
+    private DeadLetterQueue deadLetterQueue;
+    private int deadLetterMaxFailures;
+    private boolean coalesceOperations;
+    private int concurrency = 1;
+    private ScheduledExecutorService retryScheduler;
+    // Batches not done with their retries, guarded by this
+    private int retryingBatches;
+    private boolean terminated;
     protected Subscription subscription;
     Context context = Context.empty();
 
@@ -44,6 +83,27 @@ public abstract class AbstractBatchCommitterSubscriber
         this.queue = queue;
     }
 
+    void setAdaptiveBatchSizer(AdaptiveBatchSizer adaptiveBatchSizer) {
+        this.adaptiveBatchSizer = adaptiveBatchSizer;
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    void setDeadLetterQueue(DeadLetterQueue deadLetterQueue, int maxFailures) {
+        this.deadLetterQueue = deadLetterQueue;
+        this.deadLetterMaxFailures = maxFailures;
+    }
+
+    void setCoalesceOperations(boolean coalesceOperations) {
+        this.coalesceOperations = coalesceOperations;
+    }
+
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
     @Override
     protected void hookOnSubscribe(Subscription subscription) {
         this.subscription = subscription;
@@ -53,37 +113,195 @@ public abstract class AbstractBatchCommitterSubscriber
     @Override
     protected void hookOnNext(List<UniversalIdIntQueueMessage> msgs) {
         context = Context.of("messages", msgs);
+        if (retryPolicy == null) {
+            commitMessages(msgs);
+            request(1);
+        } else {
+            // Always request the next batch, even if the failed one could
+            // not be handled
+            commit(msgs).whenComplete((v, e) -> {
+                if (e != null) {
+                    LOG.error("Could not commit batch.", e);
+                }
+                request(1);
+            });
+        }
+    }
 
-        List<ICommitOperation> operations = new ArrayList<>();
+    /**
+     * Commits a batch of queued messages, retrying it according to the
+     * retry policy, if any.
+     * @param msgs messages to commit
+     * @return a future completed when the batch is done
+     */
+    CompletableFuture<Void> commit(List<UniversalIdIntQueueMessage> msgs) {
+        if (retryPolicy == null) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            try {
+                commitMessages(msgs);
+                future.complete(null);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+        synchronized (this) {
+            retryingBatches++;
+        }
+        CompletableFuture<Void> future = retryPolicy.execute(
+                () -> tryCommitMessages(msgs), retryScheduler());
+        future = future.handle((v, e) -> {
+            if (e != null) {
+                List<UniversalIdIntQueueMessage> failed = commitFailedBatch(msgs, e);
+                if (!failed.isEmpty()) {
+                    LOG.error("Commit operations not finished and put back to "
+                            + "queue for later processing.", e);
+                    queue.requeuAll(failed);
+                }
+            }
+            return null;
+        });
+        future.whenComplete((v, e) -> retryDone());
+        return future;
+    }
 
-        for (UniversalIdIntQueueMessage msg : msgs) {
-            ICommitOperation operation = PersistentQueue.deserialize(msg.getContent());
-            if (operation instanceof DocumentAddOperation) {
-                prepareCommitAddition((IAddOperation) operation);
-            } else {
-                prepareCommitDeletion((IDeleteOperation) operation);
+    // The scheduler is only shut down once terminated and no batch is
+    // still being retried, so pending retries are not rejected
+    private synchronized void retryDone() {
+        retryingBatches--;
+        if (terminated && retryingBatches == 0) {
+            shutdownRetryScheduler();
+        }
+    }
+
+    private synchronized void shutdownRetryScheduler() {
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+            retryScheduler = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService retryScheduler() {
+        if (retryScheduler == null) {
+            // One thread per concurrent batch, so retries do not wait on
+            // each other
+            AtomicInteger count = new AtomicInteger();
+            retryScheduler = Executors.newScheduledThreadPool(
+                    Math.max(1, concurrency), r -> {
+                Thread thread = new Thread(
+                        r, "committer-retry-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return retryScheduler;
+    }
+
+    /**
+     * Commits a batch of queued messages.  Processed messages are finished,
+     * while messages of a failed batch are put back on the queue.
+     * @param msgs messages to commit
+     * @throws CommitterException could not commit the messages
+     */
+    protected void commitMessages(List<UniversalIdIntQueueMessage> msgs) {
+        try {
+            tryCommitMessages(msgs);
+        } catch (RuntimeException e) {
+            List<UniversalIdIntQueueMessage> failed = commitFailedBatch(msgs, e);
+            if (failed.isEmpty()) {
+                return;
             }
-            operations.add(operation);
+            LOG.error(e);
+            queue.requeuAll(failed);
+            throw new CommitterException("Commit operations not finished and put back to queue for later processing.", e);
         }
+    }
 
+    private void tryCommitMessages(List<UniversalIdIntQueueMessage> msgs) {
+        List<ICommitOperation> operations = new ArrayList<>();
         boolean finished = false;
+        long start = System.currentTimeMillis();
 
         try {
-            finished = processCommitOperations(operations);
-        } catch (CommitterException e) {
-            LOG.error(e);
-            throw new CommitterException("Commit operations not finished and put back to queue for later processing.");
+            for (UniversalIdIntQueueMessage msg : msgs) {
+                ICommitOperation operation = queue.decode(msg.getContent());
+                if (operation instanceof DocumentAddOperation) {
+                    prepareCommitAddition((IAddOperation) operation);
+                } else {
+                    prepareCommitDeletion((IDeleteOperation) operation);
+                }
+                operations.add(operation);
+            }
+            finished = processCommitOperations(coalesceOperations
+                    ? OperationCoalescer.coalesce(operations) : operations);
+            recordBatch(msgs.size(), start, finished);
+        } catch (RuntimeException e) {
+            recordBatch(msgs.size(), start, false);
+            throw e;
         }
 
         if (finished) {
-            for (UniversalIdIntQueueMessage msg : msgs) {
-                // Let the queue know the message was used and can be deleted
-                queue.finish(msg);
+            // Let the queue know the messages were used and can be deleted
+            queue.finishAll(msgs);
+            DeadLetterQueue dlq = deadLetterQueue;
+            for (ICommitOperation operation : operations) {
+                if (dlq != null) {
+                    dlq.recordSuccess(operation);
+                }
+                operation.delete();
             }
             LOG.info("Commit operations finished and removed from the ephemeral queue.");
         }
+    }
+
+    // Commits what can be of a failed batch, sending messages failing
+    // on their own, or too often, to the dead-letter queue. Returns the
+    // messages to put back on the queue.
+    private List<UniversalIdIntQueueMessage> commitFailedBatch(
+            List<UniversalIdIntQueueMessage> msgs, Throwable failure) {
+        DeadLetterQueue dlq = deadLetterQueue;
+        if (dlq == null) {
+            return msgs;
+        }
+        if (msgs.size() > 1) {
+            LOG.error("Could not commit batch, splitting it to isolate "
+                    + "failing messages.", failure);
+            List<UniversalIdIntQueueMessage> failed = 
+                    BatchBisector.bisect(msgs, this::tryCommitMessages);
+            if (failed.size() < msgs.size()) {
+                for (UniversalIdIntQueueMessage msg : failed) {
+                    ICommitOperation operation = queue.decode(msg.getContent());
+                    dlq.add(operation, failure);
+                    operation.delete();
+                }
+                queue.finishAll(failed);
+                return Collections.emptyList();
+            }
+        }
+        // Nothing could be committed: count a failure for each message
+        // and only dead-letter those failing too often
+        List<UniversalIdIntQueueMessage> diverted = new ArrayList<>();
+        List<UniversalIdIntQueueMessage> requeued = new ArrayList<>();
+        for (UniversalIdIntQueueMessage msg : msgs) {
+            ICommitOperation operation = queue.decode(msg.getContent());
+            if (dlq.recordFailure(operation, failure, deadLetterMaxFailures)) {
+                operation.delete();
+                diverted.add(msg);
+            } else {
+                requeued.add(msg);
+            }
+        }
+        if (!diverted.isEmpty()) {
+            queue.finishAll(diverted);
+        }
+        return requeued;
+    }
 
-        request(1);
+    private void recordBatch(int size, long start, boolean success) {
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.record(
+                    size, System.currentTimeMillis() - start, success);
+        }
     }
 
     /**
@@ -126,13 +344,18 @@ public abstract class AbstractBatchCommitterSubscriber
 
     @Override
     protected void hookOnError(Throwable t) {
+        // Messages of the failed batch were already put back on the queue
         LOG.error(t.getMessage());
-        queue.requeuAll(currentContext().get("messages"));
     }
 
     @Override
     protected void hookFinally(SignalType type) {
-        // NO-OP
+        synchronized (this) {
+            terminated = true;
+            if (retryingBatches == 0) {
+                shutdownRetryScheduler();
+            }
+        }
     }
 
     @Override
@@ -20,12 +20,20 @@ import java.io.Writer;
 
 /**
  * This is a basic subscriber which can be used for single message processing.
+ *
+ * <p>A message which could not be committed is left on the ephemeral queue
+ * and committed again on the next run.  When the committer has a
+ * dead-letter directory, it is put back on the queue instead, until it
+ * has failed the maximum number of times and is moved to the
+ * {@link DeadLetterQueue}.
  */
 public abstract class AbstractCommitterSubscriber extends BaseSubscriber<UniversalIdIntQueueMessage>
         implements ICommitterSubscriber, IXMLConfigurable {
 
     private static final Logger LOG = LogManager.getLogger(AbstractCommitterSubscriber.class);
     private PersistentQueue queue;
+    private DeadLetterQueue deadLetterQueue;
+    private int deadLetterMaxFailures;
     protected Subscription subscription;
     Context context = Context.empty();
 
@@ -44,6 +52,11 @@ public abstract class AbstractCommitterSubscriber extends BaseSubscriber<Univers
         this.queue = queue;
     }
 
+    void setDeadLetterQueue(DeadLetterQueue deadLetterQueue, int maxFailures) {
+        this.deadLetterQueue = deadLetterQueue;
+        this.deadLetterMaxFailures = maxFailures;
+    }
+
     @Override
     protected void hookOnSubscribe(Subscription subscription) {
         this.subscription = subscription;
@@ -54,7 +67,7 @@ public abstract class AbstractCommitterSubscriber extends BaseSubscriber<Univers
     protected void hookOnNext(UniversalIdIntQueueMessage message) {
         context = Context.of("message", message);
 
-        ICommitOperation operation = PersistentQueue.deserialize(message.getContent());
+        ICommitOperation operation = queue.decode(message.getContent());
         if (operation instanceof DocumentAddOperation) {
             prepareCommitAddition((IAddOperation) operation);
         } else {
@@ -62,16 +75,31 @@ public abstract class AbstractCommitterSubscriber extends BaseSubscriber<Univers
         }
 
         boolean finished = false;
+        DeadLetterQueue dlq = deadLetterQueue;
 
         try {
             finished = processCommitOperation(operation);
+            if (finished && dlq != null) {
+                dlq.recordSuccess(operation);
+            }
         } catch (CommitterException e) {
             LOG.error(e);
+            if (dlq != null && deadLetterMaxFailures > 0) {
+                if (dlq.recordFailure(operation, e, deadLetterMaxFailures)) {
+                    finished = true;
+                } else {
+                    // Counted already: committed again later in this run
+                    queue.requeue(message);
+                    request(1);
+                    return;
+                }
+            }
         }
 
         if (finished) {
             // Let the queue know the message was used and can be deleted
             queue.finish(message);
+            operation.delete();
 
             LOG.debug("Commit operation finished and removed from the ephemeral queue.");
         } else {
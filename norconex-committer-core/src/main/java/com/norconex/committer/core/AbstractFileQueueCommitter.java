@@ -15,22 +15,18 @@
 package com.norconex.committer.core;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
-import org.apache.commons.lang3.mutable.MutableLong;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -38,7 +34,6 @@ import org.apache.log4j.Logger;
 import com.norconex.committer.core.impl.FileSystemCommitter;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.file.FileUtil;
-import com.norconex.commons.lang.file.IFileVisitor;
 import com.norconex.commons.lang.map.Properties;
 
 //TODO Maybe offer pluggable implementations for where to queue (FS, DB, etc)?
@@ -53,12 +48,18 @@ import com.norconex.commons.lang.map.Properties;
  * <br><br>
  * To also control how many documents are sent on each call to 
  * a remote repository, consider extending {@link AbstractBatchCommitter}.
+ * <br><br>
+ * Queued files are recorded in a {@link FileQueueIndex}, so each commit
+ * reads only the files it takes instead of walking the queue directory.
+ * Alternatively, operations can be queued in a {@link SegmentLog}
+ * (see {@link #setQueueStorage(FileSystemCommitter.Storage)}).
  * 
  * <p>Subclasses implementing {@link IXMLConfigurable} should allow this inner 
  * configuration:</p>
  * <pre>
  *      &lt;queueDir&gt;(optional path where to queue files)&lt;/queueDir&gt;
  *      &lt;queueSize&gt;(max queue size before committing)&lt;/queueSize&gt;
+ *      &lt;queueStorage&gt;[FILES|SEGMENTS]&lt;/queueStorage&gt;
  * </pre>
  * 
  * @author Pascal Essiembre
@@ -75,14 +76,6 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
 
     private static final int EMPTY_DIRS_SECONDS_LIMIT = 10;
     
-    private static final FileFilter REF_FILTER = new FileFilter() {
-        @Override
-        public boolean accept(File pathname) {
-            return pathname.getName().endsWith(
-                    FileSystemCommitter.EXTENSION_REFERENCE);
-        }
-    };
-    
     private final FileSystemCommitter queue = new FileSystemCommitter();
     
     /**
@@ -97,6 +90,7 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
     public AbstractFileQueueCommitter() {
         super();
         queue.setDirectory(DEFAULT_QUEUE_DIR);
+        queue.setIndexed(true);
     }
     /**
      * Constructor.
@@ -105,6 +99,7 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
     public AbstractFileQueueCommitter(int queueSize) {
         super(queueSize);
         queue.setDirectory(DEFAULT_QUEUE_DIR);
+        queue.setIndexed(true);
     }
 
     /**
@@ -121,20 +116,36 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
     public void setQueueDir(String queueDir) {
         this.queue.setDirectory(queueDir);
     }
+
+    /**
+     * Gets how queued operations are stored.
+     * @return queue storage
+     * @since 2.1.3
+     */
+    public FileSystemCommitter.Storage getQueueStorage() {
+        return queue.getStorage();
+    }
+    /**
+     * Sets how queued operations are stored. Default is
+     * {@link FileSystemCommitter.Storage#FILES}. Operations already queued
+     * with another storage are not committed until it is set back.
+     * @param queueStorage queue storage
+     * @since 2.1.3
+     */
+    public void setQueueStorage(FileSystemCommitter.Storage queueStorage) {
+        this.queue.setStorage(queueStorage);
+    }
     
     @Override
     protected long getInitialQueueDocCount() {
-        final MutableLong fileCount = new MutableLong();
+        if (isSegmentStorage()) {
+            return queue.getSegmentLog().size();
+        }
+        return queue.getQueueIndex().size();
+    }
 
-        // --- Additions and Deletions ---
-        FileUtil.visitAllFiles(
-                new File(queue.getDirectory()), new IFileVisitor() {
-            @Override
-            public void visit(File file) {
-                fileCount.increment();
-            }
-        }, REF_FILTER);
-        return fileCount.longValue();
+    private boolean isSegmentStorage() {
+        return queue.getStorage() == FileSystemCommitter.Storage.SEGMENTS;
     }
     
     @Override
@@ -150,51 +161,78 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
 
     @Override
     public void commit() {
+        if (isSegmentStorage()) {
+            commitSegments();
+            return;
+        }
 
-        // Get all files to be committed, relying on natural ordering which 
-        // will be in file creation order.
-        final Queue<File> filesPending = new ConcurrentLinkedQueue<File>();
-        FileUtil.visitAllFiles(
-                new File(queue.getDirectory()), new IFileVisitor() {
-            @Override
-            public void visit(File file) {
-                 filesPending.add(file);
-            }
-        }, REF_FILTER);
+        // Take the next files to be committed, in creation order. Files
+        // taken by this thread are not given to other committing threads.
+        FileQueueIndex index = queue.getQueueIndex();
+        FileQueueIndex.Batch batch = index.take(queueSize);
 
-        
         // Nothing left to commit. This happens if multiple threads are 
         // committing at the same time and no more files are available for the 
         // current thread to commit. This should happen rarely in practice.
-        if (filesPending.isEmpty()) {
+        if (batch.isEmpty()) {
             return;
         }
+
+        boolean failed = true;
+        try {
+            commitFiles(batch.getFiles());
+            failed = false;
+        } finally {
+            if (failed) {
+                // Let a later commit own the files left
+                filesCommitting.keySet().removeAll(batch.getFiles());
+            }
+            index.release(batch, failed);
+        }
+
+        deleteEmptyOldDirs(new File(queue.getDirectory()));
         
-        // Don't commit more than queue size
-        List<ICommitOperation> filesToCommit = new ArrayList<>();
-        while (filesToCommit.size() < queueSize) {
-            
-            File file = filesPending.poll();
-            
-            // If no more files available in both list, quit loop. This happens 
-            // if multiple threads tries to commit at once and there is less 
-            // than queueSize files to commit. This should happen rarely in
-            // practice.
-            if (file == null) {
-                break;
+        // Cleanup committed files from map that might have been deleted
+        Enumeration<File> en = filesCommitting.keys();
+        while (en.hasMoreElements()) {
+            File file = (File) en.nextElement();
+            if (!file.exists()) {
+                filesCommitting.remove(file);
             }
+        }
+    }
+
+    private void commitSegments() {
+        SegmentLog log = queue.getSegmentLog();
+        List<ICommitOperation> operations = log.take(queueSize);
+        if (operations.isEmpty()) {
+            return;
+        }
+        boolean failed = true;
+        try {
+            commitOperations(operations);
+            failed = false;
+        } finally {
+            log.release(operations, failed);
+        }
+    }
+
+    private void commitFiles(List<File> files) {
+        List<ICommitOperation> filesToCommit = new ArrayList<>();
+        for (File file : files) {
             
             // Current thread tries to own this file. If the file is already own
-            // by another thread, continue and attempt to grab another file.
+            // by another thread (e.g. indexed twice after a failure), 
+            // continue and attempt to grab another file.
             if (filesCommitting.putIfAbsent(
                     file, Thread.currentThread()) != null) {
                 continue;
             }
             
             // A file might have already been committed and cleanup from 
-            // the map, but still returned by the directory listing. Ignore 
-            // those. It is important to make this check AFTER the current  
-            // thread got ownership of the file. 
+            // the map, but still be indexed (e.g. after an unclean shutdown).
+            // Ignore those. It is important to make this check AFTER the
+            // current thread got ownership of the file. 
             if (!file.exists()) {
                 continue;
             }
@@ -210,14 +248,17 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
                 LOG.error("Unsupported file to commit: " + file);
             }
         }
-        
+        commitOperations(filesToCommit);
+    }
+
+    private void commitOperations(List<ICommitOperation> operations) {
         if (LOG.isInfoEnabled()) {
             LOG.info(String.format("Committing %s files", 
-                    filesToCommit.size()));
+                    operations.size()));
         }
-        for (ICommitOperation op : filesToCommit) {
+        for (ICommitOperation op : operations) {
             try {
-                if (op instanceof FileAddOperation) {
+                if (op instanceof IAddOperation) {
                     prepareCommitAddition((IAddOperation) op);
                     commitAddition((IAddOperation) op);
                 } else {
@@ -231,17 +272,6 @@ public abstract class AbstractFileQueueCommitter extends AbstractCommitter {
         }
 
         commitComplete();
-
-        deleteEmptyOldDirs(new File(queue.getDirectory()));
-        
-        // Cleanup committed files from map that might have been deleted
-        Enumeration<File> en = filesCommitting.keys();
-        while (en.hasMoreElements()) {
-            File file = (File) en.nextElement();
-            if (!file.exists()) {
-                filesCommitting.remove(file);
-            }
-        }
     }
 
     /**
@@ -34,6 +34,7 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
+import com.norconex.committer.core.impl.FileSystemCommitter;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
 import com.norconex.commons.lang.map.Properties;
@@ -130,8 +131,28 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  *      &lt;/commitBatchSize&gt;
  *      &lt;queueDir&gt;(optional path where to queue files)&lt;/queueDir&gt;
  *      &lt;queueSize&gt;(max queue size before committing)&lt;/queueSize&gt;
+ *      &lt;queueStorage&gt;[FILES|SEGMENTS]&lt;/queueStorage&gt;
  *      &lt;maxRetries&gt;(max retries upon commit failures)&lt;/maxRetries&gt;
  *      &lt;maxRetryWait&gt;(max delay in milliseconds between retries)&lt;/maxRetryWait&gt;
+ *      &lt;commitWorkers&gt;(number of batches committed at once)&lt;/commitWorkers&gt;
+ *      &lt;coalesceOperations&gt;
+ *          [false|true] (only commit the latest operation of each reference
+ *           in a batch)
+ *      &lt;/coalesceOperations&gt;
+ *      &lt;adaptiveBatchSize&gt;
+ *          (optional batch size adjustment, see {@link AdaptiveBatchSizer})
+ *      &lt;/adaptiveBatchSize&gt;
+ *      &lt;retryPolicy&gt;
+ *          (optional retry backoff, replacing maxRetries and maxRetryWait,
+ *           see {@link RetryPolicy})
+ *      &lt;/retryPolicy&gt;
+ *      &lt;deadLetterDir&gt;
+ *          (optional path where to store operations failing on their own,
+ *           see {@link AbstractBatchCommitter})
+ *      &lt;/deadLetterDir&gt;
+ *      &lt;deadLetterMaxFailures&gt;
+ *          (failed commits before an operation is dead-lettered, default 5)
+ *      &lt;/deadLetterMaxFailures&gt;
  * </pre>
  * 
  * @author Pascal Essiembre
@@ -329,10 +350,28 @@ public abstract class AbstractMappedCommitter
             }
             
             writer.writeElementInteger("queueSize", getQueueSize());
+            writer.writeElementString(
+                    "queueStorage", getQueueStorage().name());
             writer.writeElementInteger(
                     "commitBatchSize", getCommitBatchSize());
             writer.writeElementInteger("maxRetries", getMaxRetries());
             writer.writeElementLong("maxRetryWait", getMaxRetryWait());
+            writer.writeElementInteger("commitWorkers", getCommitWorkers());
+            writer.writeElementBoolean(
+                    "coalesceOperations", isCoalesceOperations());
+            if (getDeadLetterDir() != null) {
+                writer.writeElementString("deadLetterDir", getDeadLetterDir());
+            }
+            writer.writeElementInteger(
+                    "deadLetterMaxFailures", getDeadLetterMaxFailures());
+            if (getAdaptiveBatchSizer() != null) {
+                writer.flush();
+                getAdaptiveBatchSizer().saveToXML(out);
+            }
+            if (getRetryPolicy() != null) {
+                writer.flush();
+                getRetryPolicy().saveToXML(out);
+            }
 
             saveToXML(writer);
 
@@ -371,11 +410,36 @@ public abstract class AbstractMappedCommitter
         setQueueDir(xml.getString("queueDir", DEFAULT_QUEUE_DIR));
         setQueueSize(xml.getInt("queueSize", 
                 AbstractBatchCommitter.DEFAULT_QUEUE_SIZE));
+        String queueStorage = xml.getString("queueStorage", null);
+        if (queueStorage != null) {
+            setQueueStorage(FileSystemCommitter.Storage.valueOf(
+                    queueStorage.trim().toUpperCase()));
+        }
         setCommitBatchSize(xml.getInt("commitBatchSize", 
                 AbstractBatchCommitter.DEFAULT_COMMIT_BATCH_SIZE));
         setMaxRetries(xml.getInt("maxRetries", 0));
         setMaxRetryWait(XMLConfigurationUtil.getDuration(
                 xml, "maxRetryWait", 0));
+        setCommitWorkers(xml.getInt("commitWorkers", 
+                AbstractBatchCommitter.DEFAULT_COMMIT_WORKERS));
+        setCoalesceOperations(xml.getBoolean("coalesceOperations", false));
+        setDeadLetterDir(xml.getString("deadLetterDir", null));
+        setDeadLetterMaxFailures(xml.getInt("deadLetterMaxFailures",
+                DeadLetterQueue.DEFAULT_MAX_FAILURES));
+        XMLConfiguration sizerXML = 
+                XMLConfigurationUtil.getXmlAt(xml, "adaptiveBatchSize");
+        if (sizerXML != null) {
+            AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+            XMLConfigurationUtil.loadFromXML(sizer, sizerXML);
+            setAdaptiveBatchSizer(sizer);
+        }
+        XMLConfiguration retryXML = 
+                XMLConfigurationUtil.getXmlAt(xml, "retryPolicy");
+        if (retryXML != null) {
+            RetryPolicy policy = new RetryPolicy();
+            XMLConfigurationUtil.loadFromXML(policy, retryXML);
+            setRetryPolicy(policy);
+        }
 
         loadFromXml(xml);
     }
@@ -0,0 +1,501 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.github.luben.zstd.Zstd;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Base class for queue codecs, taking care of buffer reuse and compression.
+ * Subclasses only write and read the uncompressed operation.
+ *
+ * <p>Every encoded operation starts with one byte identifying the
+ * {@link Compression} used.  Compressed operations then hold their
+ * uncompressed length (variable-length integer) followed by the compressed
+ * bytes.  Since the compression is recorded per message, changing it
+ * does not prevent reading messages already queued.
+ *
+ * <p>Subclasses implementing {@link IXMLConfigurable} should allow this
+ * inner configuration:
+ *
+ * <pre>
+ *  &lt;codec class="(codec class)"&gt;
+ *      &lt;compression&gt;[NONE|DEFLATE|LZ4|ZSTD]&lt;/compression&gt;
+ *      &lt;compressionLevel&gt;(algorithm-specific level)&lt;/compressionLevel&gt;
+ *      &lt;skipIncompressible&gt;[false|true]&lt;/skipIncompressible&gt;
+ *      &lt;incompressibleContentTypes&gt;
+ *          (comma-separated content types or prefixes)
+ *      &lt;/incompressibleContentTypes&gt;
+ *  &lt;/codec&gt;
+ * </pre>
+ *
+ * <p>Default compression is LZ4, which is cheap on CPU.  DEFLATE and ZSTD
+ * produce smaller queues at a higher CPU cost.  The compression level only
+ * applies to DEFLATE (0-9) and ZSTD (1-22).  A negative level uses the
+ * algorithm default.
+ *
+ * <p>Compression is skipped by default for document content already
+ * compressed (JPEG, PNG, PDF, ZIP, media, etc.), as detected by an
+ * {@link IncompressibleContentDetector} from the document content type
+ * or its first bytes.  Such operations are stored with
+ * {@link Compression#NONE}, recorded in their header byte like any other
+ * compression.  The incompressible content types can be overwritten.
+ * @since 2.1.3
+ */
+public abstract class AbstractQueueCodec
+        implements IQueueCodec, IXMLConfigurable {
+
+    /** Compression algorithms for encoded operations. */
+    public enum Compression {
+        NONE {
+            @Override
+            int maxCompressedLength(int length) {
+                return length;
+            }
+            @Override
+            int compress(byte[] src, int srcLength,
+                    byte[] dst, int dstOffset, int level) {
+                System.arraycopy(src, 0, dst, dstOffset, srcLength);
+                return srcLength;
+            }
+            @Override
+            void decompress(byte[] src, int srcOffset, int srcLength,
+                    byte[] dst, int dstLength) {
+                System.arraycopy(src, srcOffset, dst, 0, dstLength);
+            }
+        },
+        DEFLATE {
+            @Override
+            int maxCompressedLength(int length) {
+                // zlib compressBound(): stored (incompressible) blocks
+                // add 5 bytes per 16KB, plus header and trailer
+                return length + (length >>> 12) + (length >>> 14)
+                        + (length >>> 25) + 13;
+            }
+            @Override
+            int compress(byte[] src, int srcLength,
+                    byte[] dst, int dstOffset, int level) {
+                Deflater deflater = DEFLATERS.get();
+                deflater.reset();
+                deflater.setLevel(level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+                deflater.setInput(src, 0, srcLength);
+                deflater.finish();
+                int length = deflater.deflate(
+                        dst, dstOffset, dst.length - dstOffset);
+                if (!deflater.finished()) {
+                    throw new CommitterException(
+                            "Deflate output exceeded its expected maximum size.");
+                }
+                return length;
+            }
+            @Override
+            void decompress(byte[] src, int srcOffset, int srcLength,
+                    byte[] dst, int dstLength) {
+                Inflater inflater = INFLATERS.get();
+                inflater.reset();
+                inflater.setInput(src, srcOffset, srcLength);
+                try {
+                    if (inflater.inflate(dst, 0, dstLength) != dstLength) {
+                        throw new CommitterException(
+                                "Deflate data is shorter than expected.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new CommitterException("Corrupted deflate data.", e);
+                }
+            }
+        },
+        LZ4 {
+            @Override
+            int maxCompressedLength(int length) {
+                return LZ4_COMPRESSOR.maxCompressedLength(length);
+            }
+            @Override
+            int compress(byte[] src, int srcLength,
+                    byte[] dst, int dstOffset, int level) {
+                return LZ4_COMPRESSOR.compress(src, 0, srcLength,
+                        dst, dstOffset, dst.length - dstOffset);
+            }
+            @Override
+            void decompress(byte[] src, int srcOffset, int srcLength,
+                    byte[] dst, int dstLength) {
+                LZ4_DECOMPRESSOR.decompress(src, srcOffset, dst, 0, dstLength);
+            }
+        },
+        ZSTD {
+            @Override
+            int maxCompressedLength(int length) {
+                return (int) Zstd.compressBound(length);
+            }
+            @Override
+            int compress(byte[] src, int srcLength,
+                    byte[] dst, int dstOffset, int level) {
+                long length = Zstd.compressByteArray(
+                        dst, dstOffset, dst.length - dstOffset,
+                        src, 0, srcLength, level < 0 ? DEFAULT_ZSTD_LEVEL : level);
+                if (Zstd.isError(length)) {
+                    throw new CommitterException(
+                            "Zstd compression failed: " + Zstd.getErrorName(length));
+                }
+                return (int) length;
+            }
+            @Override
+            void decompress(byte[] src, int srcOffset, int srcLength,
+                    byte[] dst, int dstLength) {
+                long length = Zstd.decompressByteArray(
+                        dst, 0, dstLength, src, srcOffset, srcLength);
+                if (Zstd.isError(length)) {
+                    throw new CommitterException(
+                            "Zstd decompression failed: " + Zstd.getErrorName(length));
+                }
+            }
+        };
+
+        abstract int maxCompressedLength(int length);
+        abstract int compress(byte[] src, int srcLength,
+                byte[] dst, int dstOffset, int level);
+        abstract void decompress(byte[] src, int srcOffset, int srcLength,
+                byte[] dst, int dstLength);
+    }
+
+    /** Default compression. */
+    public static final Compression DEFAULT_COMPRESSION = Compression.LZ4;
+
+    private static final int DEFAULT_ZSTD_LEVEL = 3;
+    private static final Compression[] COMPRESSIONS = Compression.values();
+
+    private static final LZ4Compressor LZ4_COMPRESSOR =
+            LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR =
+            LZ4Factory.fastestInstance().fastDecompressor();
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS =
+            ThreadLocal.withInitial(Inflater::new);
+
+    // Serialization buffers are reused per thread.  They grow as needed
+    // and are shrunk back when they exceed MAX_RETAINED_BUFFER_SIZE.
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+    private static final ThreadLocal<Output> OUTPUTS = ThreadLocal.withInitial(
+            () -> new Output(INITIAL_BUFFER_SIZE, -1));
+    private static final ThreadLocal<Input> INPUTS =
+            ThreadLocal.withInitial(Input::new);
+    private static final ThreadLocal<byte[][]> SCRATCHES =
+            ThreadLocal.withInitial(() -> new byte[][] { EMPTY_BUFFER });
+
+    private Compression compression = DEFAULT_COMPRESSION;
+    private int compressionLevel = -1;
+    private boolean skipIncompressible = true;
+    private final IncompressibleContentDetector detector =
+            new IncompressibleContentDetector();
+
+    public Compression getCompression() {
+        return compression;
+    }
+    /**
+     * Sets the compression applied to encoded operations.
+     * @param compression compression (<code>null</code> means
+     *        {@link Compression#NONE}). Default is LZ4.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression == null ? Compression.NONE : compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+    /**
+     * Sets the compression level. Only applies to DEFLATE and ZSTD.
+     * @param compressionLevel compression level, negative for default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isSkipIncompressible() {
+        return skipIncompressible;
+    }
+    /**
+     * Sets whether to skip compression of document content detected as
+     * already compressed.  Default is <code>true</code>.
+     * @param skipIncompressible <code>true</code> to skip compression of
+     *        incompressible content
+     */
+    public void setSkipIncompressible(boolean skipIncompressible) {
+        this.skipIncompressible = skipIncompressible;
+    }
+
+    public List<String> getIncompressibleContentTypes() {
+        return detector.getContentTypes();
+    }
+    /**
+     * Sets the content types (or content type prefixes, such as
+     * <code>video/</code>) of content never compressed. Default is
+     * {@link IncompressibleContentDetector#DEFAULT_CONTENT_TYPES}.
+     * @param contentTypes content types
+     */
+    public void setIncompressibleContentTypes(List<String> contentTypes) {
+        detector.setContentTypes(contentTypes);
+    }
+
+    @Override
+    public byte[] encode(ICommitOperation operation) {
+        Output output = OUTPUTS.get();
+        output.reset();
+        try {
+            Compression c = compressionFor(operation);
+            if (c == Compression.NONE) {
+                // Header and operation in one pass, copied only once
+                output.writeByte(c.ordinal());
+                write(operation, output);
+                return output.toBytes();
+            }
+            write(operation, output);
+            return compress(c, output.getBuffer(), output.position());
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot encode operation: " + operation, e);
+        } finally {
+            if (output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                // Do not keep a large buffer around for the odd huge document
+                output.setBuffer(new byte[INITIAL_BUFFER_SIZE], -1);
+            }
+        }
+    }
+
+    @Override
+    public ICommitOperation decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            throw new CommitterException("Cannot decode empty operation.");
+        }
+        int id = bytes[0] & 0xFF;
+        if (id >= COMPRESSIONS.length) {
+            throw new CommitterException("Unknown compression id: " + id);
+        }
+        Compression c = COMPRESSIONS[id];
+        Input input = INPUTS.get();
+        try {
+            if (c == Compression.NONE) {
+                input.setBuffer(bytes, 1, bytes.length - 1);
+            } else {
+                int offset = 1;
+                int length = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[offset++];
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                byte[] buffer = scratch(length);
+                c.decompress(bytes, offset, bytes.length - offset, buffer, length);
+                input.setBuffer(buffer, 0, length);
+            }
+            return read(input);
+        } catch (IOException e) {
+            throw new CommitterException("Cannot decode operation.", e);
+        } finally {
+            input.setBuffer(EMPTY_BUFFER);
+            releaseScratch();
+        }
+    }
+
+    /**
+     * Gets the compression to apply to the given operation. Default
+     * implementation returns the configured compression, or
+     * {@link Compression#NONE} for incompressible document content when
+     * {@link #isSkipIncompressible()} is <code>true</code>.
+     * @param operation operation about to be encoded
+     * @return compression
+     */
+    protected Compression compressionFor(ICommitOperation operation) {
+        if (skipIncompressible && compression != Compression.NONE
+                && operation instanceof DocumentAddOperation
+                && detector.isIncompressible(
+                        ((DocumentAddOperation) operation).getDocument())) {
+            return Compression.NONE;
+        }
+        return compression;
+    }
+
+    /**
+     * Writes an uncompressed operation.
+     * @param operation operation to write
+     * @param output where to write the operation
+     * @throws IOException could not write operation
+     */
+    protected abstract void write(ICommitOperation operation, Output output)
+            throws IOException;
+
+    /**
+     * Reads an uncompressed operation.
+     * @param input where to read the operation from
+     * @return operation
+     * @throws IOException could not read operation
+     */
+    protected abstract ICommitOperation read(Input input) throws IOException;
+
+    private byte[] compress(Compression c, byte[] raw, int rawLength) {
+        byte[] buffer = scratch(6 + c.maxCompressedLength(rawLength));
+        int offset = 0;
+        buffer[offset++] = (byte) c.ordinal();
+        int value = rawLength;
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        int length = c.compress(raw, rawLength, buffer, offset, compressionLevel);
+        byte[] bytes = Arrays.copyOf(buffer, offset + length);
+        releaseScratch();
+        return bytes;
+    }
+
+    private static byte[] scratch(int minLength) {
+        byte[][] holder = SCRATCHES.get();
+        if (holder[0].length < minLength) {
+            holder[0] = new byte[Math.max(minLength, INITIAL_BUFFER_SIZE)];
+        }
+        return holder[0];
+    }
+    private static void releaseScratch() {
+        byte[][] holder = SCRATCHES.get();
+        if (holder[0].length > MAX_RETAINED_BUFFER_SIZE) {
+            holder[0] = EMPTY_BUFFER;
+        }
+    }
+
+    @Override
+    public void loadFromXML(Reader in) {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        String c = xml.getString("compression", null);
+        if (c != null) {
+            setCompression(Compression.valueOf(c.trim().toUpperCase()));
+        }
+        setCompressionLevel(xml.getInt("compressionLevel", compressionLevel));
+        setSkipIncompressible(
+                xml.getBoolean("skipIncompressible", skipIncompressible));
+        String[] types = XMLConfigurationUtil.getCSVStringArray(
+                xml, "incompressibleContentTypes");
+        if (types != null) {
+            setIncompressibleContentTypes(Arrays.asList(types));
+        }
+        loadCodecFromXML(xml);
+    }
+
+    /**
+     * Allows subclasses to load their own configuration.
+     * @param xml XML configuration
+     */
+    protected void loadCodecFromXML(XMLConfiguration xml) {
+        // NO-OP
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("codec");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeElementString("compression", compression.name());
+            writer.writeElementInteger("compressionLevel", compressionLevel);
+            writer.writeElementBoolean(
+                    "skipIncompressible", skipIncompressible);
+            writer.writeElementString("incompressibleContentTypes",
+                    StringUtils.join(getIncompressibleContentTypes(), ','));
+            saveCodecToXML(writer);
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    /**
+     * Allows subclasses to save their own configuration.
+     * @param writer XML writer
+     * @throws XMLStreamException problem saving to XML
+     */
+    protected void saveCodecToXML(EnhancedXMLStreamWriter writer)
+            throws XMLStreamException {
+        // NO-OP
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AbstractQueueCodec)) {
+            return false;
+        }
+        AbstractQueueCodec castOther = (AbstractQueueCodec) other;
+        return new EqualsBuilder()
+                .append(getClass(), castOther.getClass())
+                .append(compression, castOther.compression)
+                .append(compressionLevel, castOther.compressionLevel)
+                .append(skipIncompressible, castOther.skipIncompressible)
+                .append(getIncompressibleContentTypes(),
+                        castOther.getIncompressibleContentTypes())
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(getClass())
+                .append(compression)
+                .append(compressionLevel)
+                .append(skipIncompressible)
+                .append(getIncompressibleContentTypes())
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("compression", compression)
+                .append("compressionLevel", compressionLevel)
+                .append("skipIncompressible", skipIncompressible)
+                .append("incompressibleContentTypes",
+                        getIncompressibleContentTypes())
+                .toString();
+    }
+}
@@ -14,6 +14,7 @@
  */
 package com.norconex.committer.core;
 
+import com.github.ddth.queue.IQueueMessage;
 import com.github.ddth.queue.impl.universal.UniversalIdIntQueueMessage;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
@@ -22,7 +23,6 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.SubnodeConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -31,7 +31,6 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.reactivestreams.Subscriber;
 import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.Hooks;
 import reactor.core.publisher.UnicastProcessor;
 
 import javax.xml.stream.XMLStreamException;
@@ -42,6 +41,10 @@ import java.util.List;
 import java.util.Queue;
 
 /**
+ *
+ * <p>Queued operations are persisted in a RocksDB database stored under
+ * <code>queueDir/queueName</code>. Committers using a different queue name or
+ * directory are fully independent from each other.
  *
  * <p>Subclasses implementing {@link IXMLConfigurable} should allow this inner configuration:
  *
@@ -50,8 +53,54 @@ import java.util.Queue;
  *      &lt;queueDir&gt;(path of the queue directory)&lt;/queueDir&gt;
  *      &lt;maxRetries&gt;(path of the queue directory)&lt;/maxRetries&gt;
  *      &lt;maxRetryWait&gt;(path of the queue directory)&lt;/maxRetryWait&gt;
+ *      &lt;groupCommitSize&gt;(number of queue writes grouped together)&lt;/groupCommitSize&gt;
+ *      &lt;groupCommitMaxDelay&gt;(max delay before grouped writes are flushed)&lt;/groupCommitMaxDelay&gt;
+ *      &lt;syncWrites&gt;[false|true]&lt;/syncWrites&gt;
+ *      &lt;contentStoreThreshold&gt;(max content bytes kept in queue messages)&lt;/contentStoreThreshold&gt;
+ *      &lt;contentStoreDir&gt;(where to store larger content)&lt;/contentStoreDir&gt;
+ *      &lt;bufferSize&gt;(max operations kept in memory)&lt;/bufferSize&gt;
+ *      &lt;overflowPolicy&gt;[BLOCK|SPILL|FAIL]&lt;/overflowPolicy&gt;
+ *      &lt;overflowTimeout&gt;(max wait for buffer capacity with BLOCK)&lt;/overflowTimeout&gt;
+ *      &lt;codec class="(IQueueCodec implementation)"&gt;
+ *          (optional codec configuration)
+ *      &lt;/codec&gt;
+ *      &lt;deadLetterDir&gt;(optional path where to store failing operations)&lt;/deadLetterDir&gt;
+ *      &lt;deadLetterMaxFailures&gt;(failures before an operation is dead-lettered)&lt;/deadLetterMaxFailures&gt;
  * </pre>
  *
+ * <p>Group commit is disabled by default: every queued or processed operation
+ * is written to the queue right away. See {@link PersistentQueue} for the
+ * durability trade-off of enabling it, and of syncing writes to disk.
+ *
+ * <p>By default, the whole content of every document is read in memory and
+ * stored inside its queue message. Setting a content store threshold
+ * (in bytes) stores bigger content in a separate {@link ContentStore}
+ * directory instead, so that no more than that many bytes per document are
+ * held in memory. The default content store directory is
+ * <code>queueDir/queueName-content</code>.
+ *
+ * <p>By default, every queued operation is written to the persistent queue.
+ * Setting a buffer size keeps up to that many operations in memory
+ * instead, only writing them to disk when the buffer is full or the
+ * committer is shut down.  When the buffer is full, the overflow policy
+ * decides whether {@link #add(String, InputStream, Properties)} and
+ * {@link #remove(String, Properties)} block (up to the overflow timeout),
+ * spill operations to disk, or fail right away.  Crawlers can throttle
+ * themselves using {@link #getPressure()}.  Buffered operations are lost
+ * if the JVM dies.
+ *
+ * <p>Queued operations are encoded by a {@link KryoQueueCodec} with LZ4
+ * compression by default.  Use a different compression to trade CPU for
+ * disk space, or a {@link BinaryQueueCodec} for queues that must remain
+ * readable across upgrades.
+ *
+ * <p>Without a dead-letter directory, operations which cannot be committed
+ * stay on the queue and are committed again on every run.  With one, each
+ * failure is counted, including commits interrupted by a shutdown, and
+ * operations failing "deadLetterMaxFailures" times (default is 5) are
+ * moved to a {@link DeadLetterQueue}, where they can be inspected and
+ * replayed.
+ *
  * @author Jeroen Steggink
  * @since 2.1.3
  */
@@ -73,7 +122,20 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
     protected String queueDir = DEFAULT_QUEUE_DIR;
     protected int maxRetries;
     protected long maxRetryWait;
+    protected int groupCommitSize;
+    protected long groupCommitMaxDelay = PersistentQueue.DEFAULT_GROUP_COMMIT_MAX_DELAY;
+    protected boolean syncWrites;
+    protected long contentStoreThreshold = -1;
+    protected String contentStoreDir;
+    protected ContentStore contentStore = null;
+    protected IQueueCodec codec = new KryoQueueCodec();
+    protected int bufferSize;
+    protected PersistentQueue.OverflowPolicy overflowPolicy = PersistentQueue.OverflowPolicy.BLOCK;
+    protected long overflowTimeout = PersistentQueue.DEFAULT_OVERFLOW_TIMEOUT;
     protected QueueDisposable queueDisposable = new QueueDisposable();
+    protected String deadLetterDir;
+    protected int deadLetterMaxFailures = DeadLetterQueue.DEFAULT_MAX_FAILURES;
+    protected DeadLetterQueue deadLetterQueue = null;
 
     public AbstractReactiveCommitter() {
     }
@@ -82,38 +144,72 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
      * Initialize the committer.
      */
     public void init() {
-        queue = new PersistentQueue.Builder(queueName, queueDir).build();
-        // TODO Check if there is another way than this hook.
-        // When next operation is dropped, add to queue;
-        Hooks.onNextDropped(o -> queue.offer((UniversalIdIntQueueMessage) o));
+        queue = new PersistentQueue.Builder(queueName, queueDir)
+                .groupCommitSize(groupCommitSize)
+                .groupCommitMaxDelay(groupCommitMaxDelay)
+                .syncWrites(syncWrites)
+                .codec(codec)
+                .bufferSize(bufferSize)
+                .overflowPolicy(overflowPolicy)
+                .overflowTimeout(overflowTimeout)
+                .build();
+        // Registered before orphans are decoded, as class ids depend on
+        // registration order
+        for(Class clazz : serializationClasses) {
+            queue.registerClassForSerialization(clazz);
+        }
         LOG.info(String.format("Queue size: %s", queue.getQueueSize()));
         LOG.info(String.format("Ephemeral queue size: %s", queue.getEphemeralSize()));
+        deadLetterQueue = deadLetterDir != null ? new DeadLetterQueue(deadLetterDir) : null;
         if(queue.getEphemeralSize() > 0) {
-            queue.requeuAll();
+            queue.requeueOrphans(this::requeueOrphan);
             LOG.info("Requeued all commit operations from ephemeral queue to queue.");
             LOG.info(String.format("Queue size: %s", queue.getQueueSize()));
             LOG.info(String.format("Ephemeral queue size: %s", queue.getEphemeralSize()));
         }
-        for(Class clazz : serializationClasses) {
-            queue.registerClassForSerialization(clazz);
+        if (contentStoreThreshold >= 0) {
+            File storeDir = contentStoreDir != null
+                    ? new File(contentStoreDir) : new File(queueDir, queueName + "-content");
+            contentStore = new ContentStore(storeDir, contentStoreThreshold);
         }
         documentProcessor = UnicastProcessor.create((Queue) queue, queueDisposable);
         sink = documentProcessor.sink();
     }
 
+    // Orphans were being committed when the committer stopped: count it as
+    // a failure and only requeue those which did not fail too often
+    private boolean requeueOrphan(IQueueMessage<?, ?> message) {
+        if (deadLetterQueue == null) {
+            return true;
+        }
+        ICommitOperation operation = queue.decode(
+                ((UniversalIdIntQueueMessage) message).getContent());
+        if (deadLetterQueue.recordFailure(operation, new CommitterException(
+                "Commit interrupted."), deadLetterMaxFailures)) {
+            operation.delete();
+            return false;
+        }
+        return true;
+    }
+
     @Override
     /** @inherit */
     public void add(String reference, InputStream content, Properties metadata) {
         UniversalIdIntQueueMessage msg = UniversalIdIntQueueMessage.newInstance();
-        byte[] contentByteArray = new byte[0];
+        Document document;
         try {
-            contentByteArray = IOUtils.toByteArray(content);
+            if (contentStore != null) {
+                document = contentStore.newDocument(reference, content, metadata);
+            } else {
+                document = new Document(reference, ContentStore.toByteArray(content), metadata);
+            }
         } catch (IOException e) {
-            LOG.error(e);
+            throw new CommitterException(
+                    "Cannot queue document addition.  Ref: " + reference, e);
         }
-        DocumentAddOperation operation = new DocumentAddOperation(new Document(reference, contentByteArray, metadata));
-        msg.setContent(PersistentQueue.serialize(operation));
-        sink.next(msg);
+        DocumentAddOperation operation = new DocumentAddOperation(document);
+        msg.setContent(queue.encode(operation));
+        queueMessage(msg);
         LOG.info(String.format("DocumentAddOperation queued with reference: %s", reference));
     }
 
@@ -122,17 +218,38 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
     public void remove(String reference, Properties metadata) {
         UniversalIdIntQueueMessage msg = UniversalIdIntQueueMessage.newInstance();
         DocumentDeleteOperation operation = new DocumentDeleteOperation(reference);
-        msg.setContent(PersistentQueue.serialize(operation));
-        sink.next(msg);
+        msg.setContent(queue.encode(operation));
+        queueMessage(msg);
         LOG.info(String.format("DocumentDeleteOperation queued with reference: %s", reference));
     }
 
+    private void queueMessage(UniversalIdIntQueueMessage msg) {
+        if (documentProcessor.isDisposed()) {
+            // Nothing consumes the processor anymore, keep it for next run
+            queue.spill(msg);
+            return;
+        }
+        queue.acquireCapacity();
+        sink.next(msg);
+    }
+
+    /**
+     * Gets how full the in-memory operation buffer is, from 0 (empty) to 1
+     * (full, or overflowing to disk).  Always 0 without a buffer.
+     * @return buffer pressure
+     * @since 2.1.3
+     */
+    public float getPressure() {
+        return queue != null ? queue.getPressure() : 0;
+    }
+
     /**
      * Only when the last item is added this method should be called. It will send a "complete" to the sink.
      */
     public void commit() {
         LOG.info("Received commit. Sink is completed.");
         sink.complete();
+        queue.flush();
     }
 
     /**
@@ -203,6 +320,187 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
         this.maxRetryWait = maxRetryWait;
     }
 
+    /**
+     * Gets the number of queue writes grouped together.
+     * Default is zero (group commit disabled).
+     * @return group commit size
+     * @since 2.1.3
+     */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Sets the number of queue writes grouped together. Zero or one
+     * disables group commit.
+     * @param groupCommitSize group commit size
+     * @since 2.1.3
+     */
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    /**
+     * Gets the maximum delay in milliseconds before grouped queue writes
+     * are flushed.
+     * @return maximum delay
+     * @since 2.1.3
+     */
+    public long getGroupCommitMaxDelay() {
+        return groupCommitMaxDelay;
+    }
+
+    /**
+     * Sets the maximum delay in milliseconds before grouped queue writes
+     * are flushed.
+     * @param groupCommitMaxDelay maximum delay
+     * @since 2.1.3
+     */
+    public void setGroupCommitMaxDelay(long groupCommitMaxDelay) {
+        this.groupCommitMaxDelay = groupCommitMaxDelay;
+    }
+
+    /**
+     * Gets whether queue writes are synced to disk.
+     * Default is <code>false</code>.
+     * @return <code>true</code> if queue writes are synced
+     * @since 2.1.3
+     */
+    public boolean isSyncWrites() {
+        return syncWrites;
+    }
+
+    /**
+     * Sets whether queue writes are synced to disk (fsync) before being
+     * acknowledged.
+     * @param syncWrites <code>true</code> to sync queue writes
+     * @since 2.1.3
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * Gets the maximum number of content bytes kept in a queue message.
+     * Bigger content is stored in the content store directory.
+     * Default is -1 (always kept in queue messages).
+     * @return content store threshold in bytes
+     * @since 2.1.3
+     */
+    public long getContentStoreThreshold() {
+        return contentStoreThreshold;
+    }
+
+    /**
+     * Sets the maximum number of content bytes kept in a queue message.
+     * Bigger content is stored in the content store directory.
+     * A negative value disables the content store.
+     * @param contentStoreThreshold content store threshold in bytes
+     * @since 2.1.3
+     */
+    public void setContentStoreThreshold(long contentStoreThreshold) {
+        this.contentStoreThreshold = contentStoreThreshold;
+    }
+
+    /**
+     * Gets the directory where content exceeding the content store
+     * threshold is stored.
+     * @return content store directory
+     * @since 2.1.3
+     */
+    public String getContentStoreDir() {
+        return contentStoreDir;
+    }
+
+    /**
+     * Sets the directory where content exceeding the content store
+     * threshold is stored. Default is <code>queueDir/queueName-content</code>.
+     * @param contentStoreDir content store directory
+     * @since 2.1.3
+     */
+    public void setContentStoreDir(String contentStoreDir) {
+        this.contentStoreDir = contentStoreDir;
+    }
+
+    /**
+     * Gets the maximum number of operations kept in memory before being
+     * written to disk. Default is zero (no buffer).
+     * @return buffer size
+     * @since 2.1.3
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the maximum number of operations kept in memory before being
+     * written to disk. Zero disables the buffer.
+     * @param bufferSize buffer size
+     * @since 2.1.3
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Gets what happens when the operation buffer is full.
+     * @return overflow policy
+     * @since 2.1.3
+     */
+    public PersistentQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets what happens when the operation buffer is full.
+     * Default is {@link PersistentQueue.OverflowPolicy#BLOCK}.
+     * @param overflowPolicy overflow policy
+     * @since 2.1.3
+     */
+    public void setOverflowPolicy(PersistentQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds to wait for buffer capacity
+     * with the BLOCK overflow policy.
+     * @return overflow timeout
+     * @since 2.1.3
+     */
+    public long getOverflowTimeout() {
+        return overflowTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait for buffer capacity
+     * with the BLOCK overflow policy.
+     * @param overflowTimeout overflow timeout
+     * @since 2.1.3
+     */
+    public void setOverflowTimeout(long overflowTimeout) {
+        this.overflowTimeout = overflowTimeout;
+    }
+
+    /**
+     * Gets the codec encoding queued operations.
+     * @return queue codec
+     * @since 2.1.3
+     */
+    public IQueueCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec encoding queued operations. Default is a
+     * {@link KryoQueueCodec} with LZ4 compression.  Changing the codec
+     * class of an existing non-empty queue makes its operations unreadable.
+     * @param codec queue codec
+     * @since 2.1.3
+     */
+    public void setCodec(IQueueCodec codec) {
+        this.codec = codec;
+    }
+
     /**
      *
      * @return
@@ -221,6 +519,56 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
         this.queueDisposable = queueDisposable;
     }
 
+    /**
+     * Gets the directory where operations failing too many times are stored.
+     * @return dead-letter directory or <code>null</code>
+     * @since 2.1.3
+     */
+    public String getDeadLetterDir() {
+        return deadLetterDir;
+    }
+
+    /**
+     * Sets the directory where operations failing too many times are
+     * stored. Default is <code>null</code> (failing operations stay on the
+     * queue).  Takes effect on {@link #init()}.
+     * @param deadLetterDir dead-letter directory
+     * @since 2.1.3
+     */
+    public void setDeadLetterDir(String deadLetterDir) {
+        this.deadLetterDir = deadLetterDir;
+    }
+
+    /**
+     * Gets the number of failures after which an operation is sent to
+     * the dead-letter queue.
+     * @return maximum number of failures
+     * @since 2.1.3
+     */
+    public int getDeadLetterMaxFailures() {
+        return deadLetterMaxFailures;
+    }
+
+    /**
+     * Sets the number of failures after which an operation is sent to
+     * the dead-letter queue.  Zero only sends operations failing on their
+     * own in a batch.  Default is 5.
+     * @param deadLetterMaxFailures maximum number of failures
+     * @since 2.1.3
+     */
+    public void setDeadLetterMaxFailures(int deadLetterMaxFailures) {
+        this.deadLetterMaxFailures = deadLetterMaxFailures;
+    }
+
+    /**
+     * Gets the dead-letter queue, created on {@link #init()}.
+     * @return dead-letter queue or <code>null</code>
+     * @since 2.1.3
+     */
+    public DeadLetterQueue getDeadLetterQueue() {
+        return deadLetterQueue;
+    }
+
     /**
      * Add subscriber which commits every item on the queue one-by-one.
      *
@@ -229,6 +577,7 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
      */
     protected void setSubscriber(AbstractCommitterSubscriber subscriber) {
         subscriber.setQueue(queue);
+        subscriber.setDeadLetterQueue(deadLetterQueue, deadLetterMaxFailures);
         documentProcessor.subscribe(subscriber);
     }
 
@@ -258,6 +607,28 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
 
             writer.writeElementInteger("maxRetries", getMaxRetries());
             writer.writeElementLong("maxRetryWait", getMaxRetryWait());
+            writer.writeElementInteger("groupCommitSize", getGroupCommitSize());
+            writer.writeElementLong("groupCommitMaxDelay", getGroupCommitMaxDelay());
+            writer.writeElementBoolean("syncWrites", isSyncWrites());
+            writer.writeElementLong("contentStoreThreshold", getContentStoreThreshold());
+            if (getContentStoreDir() != null) {
+                writer.writeElementString("contentStoreDir", getContentStoreDir());
+            }
+            writer.writeElementInteger("bufferSize", getBufferSize());
+            if (getOverflowPolicy() != null) {
+                writer.writeElementString("overflowPolicy", getOverflowPolicy().name());
+            }
+            writer.writeElementLong("overflowTimeout", getOverflowTimeout());
+            if (getCodec() instanceof IXMLConfigurable) {
+                writer.flush();
+                ((IXMLConfigurable) getCodec()).saveToXML(out);
+            }
+            if (getDeadLetterDir() != null) {
+                writer.writeElementString("deadLetterDir", getDeadLetterDir());
+            }
+            writer.writeElementInteger("deadLetterMaxFailures", getDeadLetterMaxFailures());
+            writer.flush();
+            saveNestedToXML(out);
 
             saveToXML(writer);
 
@@ -278,6 +649,20 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
     protected abstract void saveToXML(XMLStreamWriter writer)
             throws XMLStreamException;
 
+    /**
+     * Allows subclasses to write their nested configurable objects
+     * (saving themselves to a {@link Writer}) to xml, before
+     * {@link #saveToXML(XMLStreamWriter)} is invoked.  Does nothing by
+     * default.
+     *
+     * @param out the writer, flushed
+     * @throws IOException problem saving to XML
+     * @since 2.1.3
+     */
+    protected void saveNestedToXML(Writer out) throws IOException {
+        // nothing to save by default
+    }
+
     @Override
     public void loadFromXML(Reader reader) {
         XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(reader);
@@ -286,6 +671,24 @@ public abstract class AbstractReactiveCommitter implements ICommitter, IXMLConfi
         setQueueName(xml.getString("queueName", DEFAULT_QUEUE_NAME));
         setMaxRetries(xml.getInt("maxRetries", 0));
         setMaxRetryWait(XMLConfigurationUtil.getDuration(xml, "maxRetryWait", 0));
+        setGroupCommitSize(xml.getInt("groupCommitSize", 0));
+        setGroupCommitMaxDelay(XMLConfigurationUtil.getDuration(xml, "groupCommitMaxDelay",
+                PersistentQueue.DEFAULT_GROUP_COMMIT_MAX_DELAY));
+        setSyncWrites(xml.getBoolean("syncWrites", false));
+        setContentStoreThreshold(xml.getLong("contentStoreThreshold", -1));
+        setContentStoreDir(xml.getString("contentStoreDir", null));
+        setBufferSize(xml.getInt("bufferSize", 0));
+        String policy = xml.getString("overflowPolicy", null);
+        if (policy != null) {
+            setOverflowPolicy(PersistentQueue.OverflowPolicy.valueOf(
+                    policy.trim().toUpperCase()));
+        }
+        setOverflowTimeout(XMLConfigurationUtil.getDuration(xml, "overflowTimeout",
+                PersistentQueue.DEFAULT_OVERFLOW_TIMEOUT));
+        setCodec(XMLConfigurationUtil.newInstance(xml, "codec", getCodec()));
+        setDeadLetterDir(xml.getString("deadLetterDir", null));
+        setDeadLetterMaxFailures(xml.getInt("deadLetterMaxFailures",
+                DeadLetterQueue.DEFAULT_MAX_FAILURES));
         SubnodeConfiguration serializationClasses =  xml.configurationAt("serializationClasses");
         for(String clazz : serializationClasses.getStringArray("class")) {
             try {
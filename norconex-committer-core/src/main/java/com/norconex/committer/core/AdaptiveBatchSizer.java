@@ -0,0 +1,286 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+/**
+ * Adjusts a commit batch size from the latency and outcome of committed
+ * batches (additive increase, multiplicative decrease).  The batch size
+ * grows by a fixed step after every full batch committed within the
+ * target latency.  It is multiplied by the decrease factor (halved by
+ * default) when a batch fails or takes longer than the target latency.
+ * The batch size always stays between the minimum and maximum sizes.
+ *
+ * <p>Smaller batches than the current size (e.g. the last one of a
+ * commit) do not grow the batch size, since they say nothing about how
+ * the target repository copes with bigger ones.
+ *
+ * <p>Committers supporting adaptive batch sizing should allow this
+ * inner configuration:
+ *
+ * <pre>
+ *  &lt;adaptiveBatchSize&gt;
+ *      &lt;minBatchSize&gt;(smallest batch size, default 10)&lt;/minBatchSize&gt;
+ *      &lt;maxBatchSize&gt;(largest batch size, default 1000)&lt;/maxBatchSize&gt;
+ *      &lt;targetLatency&gt;
+ *          (max time a batch commit should take, default 5 seconds)
+ *      &lt;/targetLatency&gt;
+ *      &lt;increaseStep&gt;(size added after a good batch)&lt;/increaseStep&gt;
+ *      &lt;decreaseFactor&gt;
+ *          (size multiplier after a slow or failed batch, default 0.5)
+ *      &lt;/decreaseFactor&gt;
+ *  &lt;/adaptiveBatchSize&gt;
+ * </pre>
+ *
+ * <p>This class is thread-safe.
+ * @since 2.1.3
+ */
+public class AdaptiveBatchSizer implements IXMLConfigurable {
+
+    private static final Logger LOG = LogManager.getLogger(
+            AdaptiveBatchSizer.class);
+
+    /** Default minimum batch size. */
+    public static final int DEFAULT_MIN_BATCH_SIZE = 10;
+    /** Default maximum batch size. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    /** Default target latency in milliseconds. */
+    public static final long DEFAULT_TARGET_LATENCY = 5000;
+    /** Default batch size increase step. */
+    public static final int DEFAULT_INCREASE_STEP = 10;
+    /** Default batch size decrease factor. */
+    public static final float DEFAULT_DECREASE_FACTOR = 0.5f;
+
+    private int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long targetLatency = DEFAULT_TARGET_LATENCY;
+    private int increaseStep = DEFAULT_INCREASE_STEP;
+    private float decreaseFactor = DEFAULT_DECREASE_FACTOR;
+
+    private volatile int batchSize = DEFAULT_MIN_BATCH_SIZE;
+
+    /**
+     * Gets the current batch size.
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Restarts adapting from the given batch size, kept within the
+     * minimum and maximum sizes.
+     * @param initialBatchSize batch size to start from
+     */
+    public synchronized void reset(int initialBatchSize) {
+        batchSize = bound(initialBatchSize);
+    }
+
+    /**
+     * Adjusts the batch size from a committed batch.
+     * @param committedSize number of operations in the batch
+     * @param latency time taken to commit the batch, in milliseconds
+     * @param success whether the batch was committed successfully
+     * @return the new batch size
+     */
+    public synchronized int record(
+            int committedSize, long latency, boolean success) {
+        int previous = batchSize;
+        if (!success || latency > targetLatency) {
+            batchSize = bound((int) (previous * decreaseFactor));
+        } else if (committedSize >= previous) {
+            batchSize = bound(previous + increaseStep);
+        }
+        if (batchSize != previous && LOG.isDebugEnabled()) {
+            LOG.debug(String.format(
+                    "Batch size changed from %s to %s (success: %s, "
+                  + "latency: %sms).", previous, batchSize, success, latency));
+        }
+        return batchSize;
+    }
+
+    private int bound(int size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+
+    /**
+     * Gets the smallest batch size.
+     * @return minimum batch size
+     */
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+    /**
+     * Sets the smallest batch size. Default is 10.
+     * @param minBatchSize minimum batch size
+     */
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        reset(batchSize);
+    }
+
+    /**
+     * Gets the largest batch size.
+     * @return maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    /**
+     * Sets the largest batch size. Default is 1000.
+     * @param maxBatchSize maximum batch size
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        reset(batchSize);
+    }
+
+    /**
+     * Gets the maximum time in milliseconds a batch commit should take
+     * before the batch size is decreased.
+     * @return target latency
+     */
+    public long getTargetLatency() {
+        return targetLatency;
+    }
+    /**
+     * Sets the maximum time in milliseconds a batch commit should take
+     * before the batch size is decreased. Default is 5 seconds.
+     * @param targetLatency target latency
+     */
+    public void setTargetLatency(long targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    /**
+     * Gets the size added to the batch size after a good batch.
+     * @return increase step
+     */
+    public int getIncreaseStep() {
+        return increaseStep;
+    }
+    /**
+     * Sets the size added to the batch size after a good batch.
+     * Default is 10.
+     * @param increaseStep increase step
+     */
+    public void setIncreaseStep(int increaseStep) {
+        this.increaseStep = increaseStep;
+    }
+
+    /**
+     * Gets the batch size multiplier applied after a slow or failed batch.
+     * @return decrease factor
+     */
+    public float getDecreaseFactor() {
+        return decreaseFactor;
+    }
+    /**
+     * Sets the batch size multiplier applied after a slow or failed batch,
+     * between 0 and 1. Default is 0.5.
+     * @param decreaseFactor decrease factor
+     */
+    public void setDecreaseFactor(float decreaseFactor) {
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException(
+                    "Decrease factor must be between 0 and 1 exclusively.");
+        }
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setMinBatchSize(xml.getInt("minBatchSize", minBatchSize));
+        setMaxBatchSize(xml.getInt("maxBatchSize", maxBatchSize));
+        setTargetLatency(XMLConfigurationUtil.getDuration(
+                xml, "targetLatency", targetLatency));
+        setIncreaseStep(xml.getInt("increaseStep", increaseStep));
+        setDecreaseFactor(xml.getFloat("decreaseFactor", decreaseFactor));
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("adaptiveBatchSize");
+            writer.writeElementInteger("minBatchSize", minBatchSize);
+            writer.writeElementInteger("maxBatchSize", maxBatchSize);
+            writer.writeElementLong("targetLatency", targetLatency);
+            writer.writeElementInteger("increaseStep", increaseStep);
+            writer.writeElementFloat("decreaseFactor", decreaseFactor);
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AdaptiveBatchSizer)) {
+            return false;
+        }
+        AdaptiveBatchSizer castOther = (AdaptiveBatchSizer) other;
+        return new EqualsBuilder()
+                .append(minBatchSize, castOther.minBatchSize)
+                .append(maxBatchSize, castOther.maxBatchSize)
+                .append(targetLatency, castOther.targetLatency)
+                .append(increaseStep, castOther.increaseStep)
+                .append(decreaseFactor, castOther.decreaseFactor)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(minBatchSize)
+                .append(maxBatchSize)
+                .append(targetLatency)
+                .append(increaseStep)
+                .append(decreaseFactor)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("minBatchSize", minBatchSize)
+                .append("maxBatchSize", maxBatchSize)
+                .append("targetLatency", targetLatency)
+                .append("increaseStep", increaseStep)
+                .append("decreaseFactor", decreaseFactor)
+                .append("batchSize", batchSize)
+                .toString();
+    }
+}
@@ -0,0 +1,102 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Splits a failed batch in halves, recursively, to find the items making
+ * it fail.  Each half is committed on its own: halves committing
+ * successfully are done, while failing halves are split again until the
+ * failing items are isolated.  When the first half of a failing batch
+ * succeeds, the second half is known to fail and is split right away.
+ * Isolating <i>k</i> bad items out of <i>n</i> takes in the order of
+ * <i>k</i> log <i>n</i> commits.
+ * When both halves of the batch fail, the failure is not considered
+ * item-specific (e.g. backend down) and the whole batch is returned as
+ * failed after two commits.  The worst case is a batch where every item
+ * of one half fails, which takes up to <i>n</i> + 1 commits.
+ * @since 2.1.3
+ */
+final class BatchBisector {
+
+    private BatchBisector() {
+        super();
+    }
+
+    /**
+     * Commits all it can of a batch known to fail.
+     * @param batch the failed batch
+     * @param committer commits a part of the batch, throwing a
+     *        runtime exception if it fails
+     * @param <T> batch item type
+     * @return items which could not be committed, in batch order
+     */
+    static <T> List<T> bisect(List<T> batch, Consumer<List<T>> committer) {
+        List<T> failed = new ArrayList<>();
+        if (batch.size() <= 1) {
+            failed.addAll(batch);
+            return failed;
+        }
+        int middle = batch.size() / 2;
+        List<T> first = new ArrayList<>(batch.subList(0, middle));
+        List<T> second = new ArrayList<>(batch.subList(middle, batch.size()));
+        boolean firstCommitted = tryCommit(first, committer);
+        boolean secondCommitted = tryCommit(second, committer);
+        if (!firstCommitted && !secondCommitted) {
+            failed.addAll(batch);
+            return failed;
+        }
+        if (!firstCommitted) {
+            split(first, committer, failed);
+        }
+        if (!secondCommitted) {
+            split(second, committer, failed);
+        }
+        return failed;
+    }
+
+    // The given batch is known to fail
+    private static <T> void split(
+            List<T> batch, Consumer<List<T>> committer, List<T> failed) {
+        if (batch.size() <= 1) {
+            failed.addAll(batch);
+            return;
+        }
+        int middle = batch.size() / 2;
+        List<T> first = new ArrayList<>(batch.subList(0, middle));
+        List<T> second = new ArrayList<>(batch.subList(middle, batch.size()));
+        if (tryCommit(first, committer)) {
+            split(second, committer, failed);
+        } else {
+            split(first, committer, failed);
+            if (!tryCommit(second, committer)) {
+                split(second, committer, failed);
+            }
+        }
+    }
+
+    private static <T> boolean tryCommit(
+            List<T> batch, Consumer<List<T>> committer) {
+        try {
+            committer.accept(batch);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -27,11 +27,21 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.reactivestreams.Subscriber;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Commits documents to the target repository
@@ -56,8 +66,69 @@ import java.util.function.Consumer;
  *      &lt;queueName&gt;(name of the queue)&lt;/queueName&gt;
  *      &lt;maxRetries&gt;(max retries upon commit failures)&lt;/maxRetries&gt;
  *      &lt;maxRetryWait&gt;(max delay in milliseconds between retries)&lt;/maxRetryWait&gt;
+ *      &lt;maxBatchWait&gt;
+ *          (max time a batch waits for more documents before being sent)
+ *      &lt;/maxBatchWait&gt;
+ *      &lt;maxBatchBytes&gt;
+ *          (max total size in bytes of queued operations in a batch)
+ *      &lt;/maxBatchBytes&gt;
+ *      &lt;adaptiveBatchSize&gt;
+ *          (optional batch size adjustment, see {@link AdaptiveBatchSizer})
+ *      &lt;/adaptiveBatchSize&gt;
+ *      &lt;retryPolicy&gt;
+ *          (optional retries of failed batches, see {@link RetryPolicy})
+ *      &lt;/retryPolicy&gt;
+ *      &lt;deadLetterDir&gt;
+ *          (optional path where to store operations failing on their own)
+ *      &lt;/deadLetterDir&gt;
+ *      &lt;deadLetterMaxFailures&gt;
+ *          (failed commits before an operation is dead-lettered)
+ *      &lt;/deadLetterMaxFailures&gt;
+ *      &lt;subscriberConcurrency&gt;
+ *          (max number of batches committed at the same time)
+ *      &lt;/subscriberConcurrency&gt;
+ *      &lt;coalesceOperations&gt;
+ *          [false|true] (only commit the latest operation of each reference
+ *           in a batch)
+ *      &lt;/coalesceOperations&gt;
  * </pre>
  *
+ * <p>A batch is sent as soon as it reaches the commit batch size, the
+ * maximum batch wait time, or the maximum batch bytes, whichever comes
+ * first.  The maximum wait bounds how long documents trickling in remain
+ * uncommitted.  The maximum bytes is measured on queued (serialized)
+ * operations, excluding content kept in a content store; a single bigger
+ * operation is sent in a batch of its own.  Both are disabled by default.
+ *
+ * <p>When an {@link AdaptiveBatchSizer} is set, the commit batch size is
+ * only the initial size.  It is then adjusted from the time taken by, and
+ * the failures of, each committed batch.  A batch then reaching its size
+ * is sent with the next operation, the maximum batch wait, or the commit,
+ * whichever comes first.
+ *
+ * <p>By default, one batch is committed at a time.  A subscriber
+ * concurrency greater than one commits up to that many batches
+ * simultaneously, each on its own thread, which requires a thread-safe
+ * subscriber.  Every batch is finished (or requeued on failure) on its own,
+ * so the queue remains consistent whatever order batches complete in.
+ *
+ * <p>When operations are coalesced, only the latest operation of each
+ * reference in a batch is committed, and those it supersedes (e.g. an
+ * addition followed by a deletion of the same document) are removed from
+ * the queue without being sent.  Operations are only coalesced within a
+ * batch: a longer maximum batch wait coalesces more of them.
+ *
+ * <p>Without a {@link RetryPolicy}, a failed batch is put back on the
+ * queue right away.  With one, it is first retried on a scheduler thread
+ * as the policy dictates, without blocking the thread adding documents.
+ *
+ * <p>With a dead-letter directory, a batch still failing after its
+ * retries is split to isolate the operations making it fail, which are
+ * then stored in a {@link DeadLetterQueue} instead of being put back on
+ * the queue.  When no part of it can be committed, each of its operations
+ * has a failure recorded, and those having failed "deadLetterMaxFailures"
+ * times are stored in the dead-letter queue too.
+ *
  * @author Jeroen Steggink
  * @since 2.1.3
  */
@@ -73,6 +144,12 @@ public class BatchReactiveCommitter
     public static final int DEFAULT_COMMIT_BATCH_SIZE = 100;
 
     private int commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+    private int subscriberConcurrency = 1;
+    private long maxBatchWait;
+    private long maxBatchBytes;
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+    private RetryPolicy retryPolicy;
+    private boolean coalesceOperations;
 
     /**
      * Constructor.
@@ -86,7 +163,30 @@ public class BatchReactiveCommitter
      */
     public void init() {
         super.init();
-        documentBuffer = super.documentProcessor.buffer(commitBatchSize);
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.reset(commitBatchSize);
+        }
+        documentBuffer = newDocumentBuffer();
+    }
+
+    private Flux<List<UniversalIdIntQueueMessage>> newDocumentBuffer() {
+        boolean limited = adaptiveBatchSizer != null || maxBatchBytes > 0;
+        if (!limited && maxBatchWait <= 0) {
+            return super.documentProcessor.buffer(commitBatchSize);
+        }
+        // Windows close on count or time; size limits further split them.
+        // bufferTimeout is avoided as it does not honor backpressure.
+        int maxCount = adaptiveBatchSizer != null
+                ? adaptiveBatchSizer.getMaxBatchSize() : commitBatchSize;
+        Flux<Flux<UniversalIdIntQueueMessage>> windows = maxBatchWait > 0
+                ? super.documentProcessor.windowTimeout(
+                        maxCount, Duration.ofMillis(maxBatchWait))
+                : super.documentProcessor.window(maxCount);
+        return windows.concatMap(window -> limited
+                ? window.bufferUntil(new BatchLimit(
+                        adaptiveBatchSizer, maxBatchBytes), true)
+                : window.collectList().flux())
+                .filter(batch -> !batch.isEmpty());
     }
 
     /**
@@ -95,7 +195,77 @@ public class BatchReactiveCommitter
      */
     public void setSubscriber(AbstractBatchCommitterSubscriber subscriber) {
         subscriber.setQueue(queue);
-        documentBuffer.subscribe(subscriber);
+        subscriber.setAdaptiveBatchSizer(adaptiveBatchSizer);
+        subscriber.setRetryPolicy(retryPolicy);
+        subscriber.setCoalesceOperations(coalesceOperations);
+        subscriber.setDeadLetterQueue(deadLetterQueue, deadLetterMaxFailures);
+        subscriber.setConcurrency(subscriberConcurrency);
+        if (subscriberConcurrency <= 1) {
+            documentBuffer.subscribe(subscriber);
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                subscriberConcurrency, r -> {
+            Thread thread = new Thread(r, "committer-" + getQueueName() 
+                    + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Scheduler scheduler = Schedulers.fromExecutorService(executor);
+        documentBuffer
+                .flatMap(msgs -> Mono.defer(() -> Mono.fromFuture(subscriber.commit(msgs)))
+                        .subscribeOn(scheduler)
+                        // Messages of a failed batch are already back on
+                        // the queue: other batches carry on
+                        .onErrorResume(e -> {
+                            LOG.error("Could not commit batch.", e);
+                            return Mono.empty();
+                        }), subscriberConcurrency)
+                // Lets batches being committed complete
+                .doFinally(signal -> executor.shutdown())
+                .subscribe(null, subscriber::onError, subscriber::onComplete);
+        LOG.info(String.format("Committing up to %s batches concurrently.",
+                subscriberConcurrency));
+    }
+
+    /**
+     * Gets the maximum number of batches committed at the same time.
+     * @return subscriber concurrency
+     * @since 2.1.3
+     */
+    public int getSubscriberConcurrency() {
+        return subscriberConcurrency;
+    }
+    /**
+     * Sets the maximum number of batches committed at the same time.
+     * Default is 1.  Greater values require a thread-safe subscriber.
+     * Takes effect when the subscriber is set.
+     * @param subscriberConcurrency subscriber concurrency
+     * @since 2.1.3
+     */
+    public void setSubscriberConcurrency(int subscriberConcurrency) {
+        this.subscriberConcurrency = subscriberConcurrency;
+    }
+
+    /**
+     * Gets whether only the latest operation of each reference in a batch
+     * is committed.
+     * @return <code>true</code> if operations are coalesced
+     * @since 2.1.3
+     */
+    public boolean isCoalesceOperations() {
+        return coalesceOperations;
+    }
+    /**
+     * Sets whether only the latest operation of each reference in a batch
+     * is committed.  Default is <code>false</code>.  Takes effect when the
+     * subscriber is set.
+     * @param coalesceOperations <code>true</code> to coalesce operations
+     * @since 2.1.3
+     */
+    public void setCoalesceOperations(boolean coalesceOperations) {
+        this.coalesceOperations = coalesceOperations;
     }
 
     /**
@@ -112,15 +282,130 @@ public class BatchReactiveCommitter
     public void setCommitBatchSize(int commitBatchSize) {
         this.commitBatchSize = commitBatchSize;
         if (super.documentProcessor != null) {
-            documentBuffer = super.documentProcessor.buffer(commitBatchSize);
+            documentBuffer = newDocumentBuffer();
+        }
+    }
+
+    /**
+     * Gets the adaptive batch sizer.
+     * @return adaptive batch sizer or <code>null</code> if the commit
+     *         batch size is fixed
+     * @since 2.1.3
+     */
+    public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+        return adaptiveBatchSizer;
+    }
+    /**
+     * Sets an adaptive batch sizer to adjust the batch size from commit
+     * latency and failures, starting from the commit batch size.
+     * Default is <code>null</code> (fixed batch size).  Takes effect
+     * when the subscriber is set.
+     * @param adaptiveBatchSizer adaptive batch sizer
+     * @since 2.1.3
+     */
+    public void setAdaptiveBatchSizer(AdaptiveBatchSizer adaptiveBatchSizer) {
+        this.adaptiveBatchSizer = adaptiveBatchSizer;
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.reset(commitBatchSize);
+        }
+        if (super.documentProcessor != null) {
+            documentBuffer = newDocumentBuffer();
+        }
+    }
+
+    /**
+     * Gets the maximum time in milliseconds a batch waits for more
+     * documents before being sent.
+     * @return maximum batch wait
+     * @since 2.1.3
+     */
+    public long getMaxBatchWait() {
+        return maxBatchWait;
+    }
+    /**
+     * Sets the maximum time in milliseconds a batch waits for more
+     * documents before being sent. Zero (default) waits until the batch
+     * is full or the committer commits.
+     * @param maxBatchWait maximum batch wait
+     * @since 2.1.3
+     */
+    public void setMaxBatchWait(long maxBatchWait) {
+        this.maxBatchWait = maxBatchWait;
+        if (super.documentProcessor != null) {
+            documentBuffer = newDocumentBuffer();
         }
     }
 
+    /**
+     * Gets the maximum total size in bytes of the queued operations in a
+     * batch.
+     * @return maximum batch bytes
+     * @since 2.1.3
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+    /**
+     * Sets the maximum total size in bytes of the queued operations in a
+     * batch. Zero (default) does not limit batches by size.
+     * @param maxBatchBytes maximum batch bytes
+     * @since 2.1.3
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        if (super.documentProcessor != null) {
+            documentBuffer = newDocumentBuffer();
+        }
+    }
+
+    /**
+     * Gets the policy deciding when failed batches are retried.
+     * @return retry policy or <code>null</code> if failed batches are
+     *         not retried
+     * @since 2.1.3
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    /**
+     * Sets the policy deciding when failed batches are retried.
+     * Default is <code>null</code> (failed batches are put back on the
+     * queue without being retried).  Takes effect when the subscriber
+     * is set.
+     * @param retryPolicy retry policy
+     * @since 2.1.3
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     @Override
     protected void saveToXML(XMLStreamWriter writer) throws XMLStreamException {
         writer.writeStartElement("commitBatchSize");
         writer.writeCharacters(String.valueOf(commitBatchSize));
         writer.writeEndElement();
+        writer.writeStartElement("maxBatchWait");
+        writer.writeCharacters(String.valueOf(maxBatchWait));
+        writer.writeEndElement();
+        writer.writeStartElement("maxBatchBytes");
+        writer.writeCharacters(String.valueOf(maxBatchBytes));
+        writer.writeEndElement();
+        writer.writeStartElement("subscriberConcurrency");
+        writer.writeCharacters(String.valueOf(subscriberConcurrency));
+        writer.writeEndElement();
+        writer.writeStartElement("coalesceOperations");
+        writer.writeCharacters(String.valueOf(coalesceOperations));
+        writer.writeEndElement();
+    }
+
+    @Override
+    protected void saveNestedToXML(Writer out) throws IOException {
+        if (adaptiveBatchSizer != null) {
+            adaptiveBatchSizer.saveToXML(out);
+        }
+        if (retryPolicy != null) {
+            retryPolicy.saveToXML(out);
+        }
     }
 
     @Override
@@ -130,6 +415,22 @@ public class BatchReactiveCommitter
      */
     protected void loadFromXml(XMLConfiguration xml) {
         setCommitBatchSize(xml.getInt("commitBatchSize", DEFAULT_COMMIT_BATCH_SIZE));
+        setMaxBatchWait(XMLConfigurationUtil.getDuration(xml, "maxBatchWait", 0));
+        setMaxBatchBytes(xml.getLong("maxBatchBytes", 0));
+        setSubscriberConcurrency(xml.getInt("subscriberConcurrency", 1));
+        setCoalesceOperations(xml.getBoolean("coalesceOperations", false));
+        XMLConfiguration sizerXML = XMLConfigurationUtil.getXmlAt(xml, "adaptiveBatchSize");
+        if (sizerXML != null) {
+            AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+            XMLConfigurationUtil.loadFromXML(sizer, sizerXML);
+            setAdaptiveBatchSizer(sizer);
+        }
+        XMLConfiguration retryXML = XMLConfigurationUtil.getXmlAt(xml, "retryPolicy");
+        if (retryXML != null) {
+            RetryPolicy policy = new RetryPolicy();
+            XMLConfigurationUtil.loadFromXML(policy, retryXML);
+            setRetryPolicy(policy);
+        }
         init();
         setSubscriber((AbstractBatchCommitterSubscriber) XMLConfigurationUtil.newInstance(
                 xml, "committerSubscriber"));
@@ -137,6 +438,9 @@ public class BatchReactiveCommitter
 
     public void saveToXML(EnhancedXMLStreamWriter writer) throws XMLStreamException {
         writer.writeElementInteger("commitBatchSize", getCommitBatchSize());
+        writer.writeElementLong("maxBatchWait", getMaxBatchWait());
+        writer.writeElementLong("maxBatchBytes", getMaxBatchBytes());
+        writer.writeElementInteger("subscriberConcurrency", getSubscriberConcurrency());
     }
 
     @Override
@@ -144,6 +448,14 @@ public class BatchReactiveCommitter
         HashCodeBuilder hashCodeBuilder = new HashCodeBuilder();
         hashCodeBuilder.appendSuper(super.hashCode());
         hashCodeBuilder.append(commitBatchSize);
+        hashCodeBuilder.append(subscriberConcurrency);
+        hashCodeBuilder.append(coalesceOperations);
+        hashCodeBuilder.append(maxBatchWait);
+        hashCodeBuilder.append(maxBatchBytes);
+        hashCodeBuilder.append(adaptiveBatchSizer);
+        hashCodeBuilder.append(retryPolicy);
+        hashCodeBuilder.append(deadLetterDir);
+        hashCodeBuilder.append(deadLetterMaxFailures);
         return hashCodeBuilder.toHashCode();
     }
 
@@ -162,6 +474,14 @@ public class BatchReactiveCommitter
         EqualsBuilder equalsBuilder = new EqualsBuilder();
         equalsBuilder.appendSuper(super.equals(other));
         equalsBuilder.append(commitBatchSize, other.commitBatchSize);
+        equalsBuilder.append(subscriberConcurrency, other.subscriberConcurrency);
+        equalsBuilder.append(coalesceOperations, other.coalesceOperations);
+        equalsBuilder.append(maxBatchWait, other.maxBatchWait);
+        equalsBuilder.append(maxBatchBytes, other.maxBatchBytes);
+        equalsBuilder.append(adaptiveBatchSizer, other.adaptiveBatchSizer);
+        equalsBuilder.append(retryPolicy, other.retryPolicy);
+        equalsBuilder.append(deadLetterDir, other.deadLetterDir);
+        equalsBuilder.append(deadLetterMaxFailures, other.deadLetterMaxFailures);
         return equalsBuilder.isEquals();
     }
 
@@ -171,6 +491,43 @@ public class BatchReactiveCommitter
                 new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
         builder.appendSuper(super.toString());
         builder.append("commitBatchSize", commitBatchSize);
+        builder.append("subscriberConcurrency", subscriberConcurrency);
+        builder.append("coalesceOperations", coalesceOperations);
+        builder.append("maxBatchWait", maxBatchWait);
+        builder.append("maxBatchBytes", maxBatchBytes);
+        builder.append("adaptiveBatchSizer", adaptiveBatchSizer);
+        builder.append("retryPolicy", retryPolicy);
+        builder.append("deadLetterDir", deadLetterDir);
+        builder.append("deadLetterMaxFailures", deadLetterMaxFailures);
         return builder.toString();
     }
+
+    // Cuts a batch before the message that would exceed the adaptive
+    // batch size or the maximum bytes
+    private static class BatchLimit
+            implements Predicate<UniversalIdIntQueueMessage> {
+        private final AdaptiveBatchSizer sizer;
+        private final long maxBytes;
+        private int count;
+        private long bytes;
+        private BatchLimit(AdaptiveBatchSizer sizer, long maxBytes) {
+            this.sizer = sizer;
+            this.maxBytes = maxBytes;
+        }
+        @Override
+        public boolean test(UniversalIdIntQueueMessage msg) {
+            byte[] content = msg.getContent();
+            long size = content != null ? content.length : 0;
+            boolean full = sizer != null && count >= sizer.getBatchSize();
+            boolean heavy = maxBytes > 0 && bytes + size > maxBytes;
+            if (count > 0 && (full || heavy)) {
+                count = 1;
+                bytes = size;
+                return true;
+            }
+            count++;
+            bytes += size;
+            return false;
+        }
+    }
 }
@@ -0,0 +1,196 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Encodes commit operations in a documented, versioned binary format that
+ * does not depend on class internals.  Operations queued with this codec
+ * remain readable across upgrades, at the cost of only supporting
+ * {@link DocumentAddOperation} and {@link DocumentDeleteOperation}.
+ *
+ * <p>All numbers are big-endian and strings are UTF-8 bytes preceded by
+ * their length (-1 for <code>null</code>), as written by
+ * {@link DataOutputStream}:
+ *
+ * <pre>
+ *  byte    format version (1)
+ *  byte    operation type (1 = add, 2 = delete)
+ *  string  reference
+ *  (additions only:)
+ *  int     number of metadata fields (-1 for null metadata), each being:
+ *          string field name, int number of values, strings values
+ *  byte    content type (0 = none, 1 = inline, 2 = content store file)
+ *          inline: int length followed by content bytes
+ *          file:   string absolute file path
+ * </pre>
+ *
+ * <p>XML configuration usage:
+ *
+ * <pre>
+ *  &lt;codec class="com.norconex.committer.core.BinaryQueueCodec"&gt;
+ *      &lt;compression&gt;[NONE|DEFLATE|LZ4|ZSTD]&lt;/compression&gt;
+ *      &lt;compressionLevel&gt;(algorithm-specific level)&lt;/compressionLevel&gt;
+ *      &lt;skipIncompressible&gt;[false|true]&lt;/skipIncompressible&gt;
+ *      &lt;incompressibleContentTypes&gt;
+ *          (comma-separated content types or prefixes)
+ *      &lt;/incompressibleContentTypes&gt;
+ *  &lt;/codec&gt;
+ * </pre>
+ * @since 2.1.3
+ */
+public class BinaryQueueCodec extends AbstractQueueCodec {
+
+    /** Current format version. */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int TYPE_ADD = 1;
+    private static final int TYPE_DELETE = 2;
+    private static final int CONTENT_NONE = 0;
+    private static final int CONTENT_INLINE = 1;
+    private static final int CONTENT_FILE = 2;
+
+    @Override
+    protected void write(ICommitOperation operation, Output output)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeByte(FORMAT_VERSION);
+        if (operation instanceof DocumentAddOperation) {
+            Document doc = ((DocumentAddOperation) operation).getDocument();
+            out.writeByte(TYPE_ADD);
+            writeString(out, doc.reference);
+            writeMetadata(out, doc.metadata);
+            if (doc.contentFile != null) {
+                out.writeByte(CONTENT_FILE);
+                writeString(out, doc.contentFile);
+            } else if (doc.content != null) {
+                out.writeByte(CONTENT_INLINE);
+                out.writeInt(doc.content.length);
+                out.write(doc.content);
+            } else {
+                out.writeByte(CONTENT_NONE);
+            }
+        } else if (operation instanceof DocumentDeleteOperation) {
+            out.writeByte(TYPE_DELETE);
+            writeString(out, ((DocumentDeleteOperation) operation).getReference());
+        } else {
+            throw new CommitterException(getClass().getSimpleName()
+                    + " does not support operation type: "
+                    + operation.getClass().getName());
+        }
+        out.flush();
+    }
+
+    @Override
+    protected ICommitOperation read(Input input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new CommitterException(
+                    "Unsupported binary queue format version: " + version);
+        }
+        int type = in.readUnsignedByte();
+        String reference = readString(in);
+        if (type == TYPE_DELETE) {
+            return new DocumentDeleteOperation(reference);
+        }
+        if (type != TYPE_ADD) {
+            throw new CommitterException("Unknown operation type: " + type);
+        }
+        Properties metadata = readMetadata(in);
+        Document doc;
+        int contentType = in.readUnsignedByte();
+        if (contentType == CONTENT_INLINE) {
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            doc = new Document(reference, content, metadata);
+        } else if (contentType == CONTENT_FILE) {
+            doc = new Document(reference, metadata);
+            doc.contentFile = readString(in);
+        } else {
+            doc = new Document(reference, metadata);
+        }
+        return new DocumentAddOperation(doc);
+    }
+
+    private void writeMetadata(DataOutputStream out, Properties metadata)
+            throws IOException {
+        if (metadata == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(metadata.size());
+        for (Entry<String, List<String>> en : metadata.entrySet()) {
+            writeString(out, en.getKey());
+            List<String> values = en.getValue();
+            if (values == null) {
+                out.writeInt(0);
+                continue;
+            }
+            out.writeInt(values.size());
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+    private Properties readMetadata(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Properties metadata = new Properties();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            int count = in.readInt();
+            List<String> values = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                values.add(readString(in));
+            }
+            metadata.put(key, values);
+        }
+        return metadata;
+    }
+
+    private void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
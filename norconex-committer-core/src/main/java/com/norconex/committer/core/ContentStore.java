@@ -0,0 +1,151 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.commons.lang.TimeIdGenerator;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Side storage for document content too large to be kept in a queue
+ * message.  Content up to the configured threshold is kept in memory and
+ * travels inside the queued {@link Document}.  Bigger content is streamed
+ * to a file in the store directory and the queued document only holds
+ * a reference to that file, read back lazily by
+ * {@link DocumentAddOperation#getContentStream()}.
+ * @since 2.1.3
+ */
+public class ContentStore {
+
+    private static final Logger LOG = LogManager.getLogger(ContentStore.class);
+
+    /** File extension of stored content. */
+    public static final String EXTENSION_CONTENT = ".cntnt";
+
+    private final File directory;
+    private final long threshold;
+
+    /**
+     * Creates a content store.
+     * @param directory where to store content exceeding the threshold
+     * @param threshold maximum size in bytes of content kept in memory
+     */
+    public ContentStore(File directory, long threshold) {
+        super();
+        this.directory = directory;
+        this.threshold = threshold;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Creates a document, storing its content in memory or on file
+     * depending on its size.  At most <code>threshold</code> bytes of
+     * content are ever held in memory.
+     * @param reference document reference
+     * @param content document content (can be <code>null</code>)
+     * @param metadata document metadata
+     * @return document
+     * @throws IOException problem reading or storing content
+     */
+    public Document newDocument(String reference, InputStream content,
+            Properties metadata) throws IOException {
+        if (content == null) {
+            return new Document(reference, new byte[0], metadata);
+        }
+
+        // Read one byte past the threshold to find out if it is exceeded
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        long headSize = IOUtils.copyLarge(content, head, 0, threshold + 1);
+        if (headSize <= threshold) {
+            return new Document(reference, head.toByteArray(), metadata);
+        }
+
+        FileUtils.forceMkdir(directory);
+        File file = new File(directory, TimeIdGenerator.next() + EXTENSION_CONTENT);
+        try (OutputStream out = new FileOutputStream(file)) {
+            head.writeTo(out);
+            head = null;
+            IOUtils.copyLarge(content, out);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            throw e;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Content of %s stored in: %s", reference, file));
+        }
+        return new Document(reference, file, metadata);
+    }
+
+    /**
+     * Reads the whole content in memory, without size limit.
+     * @param content document content (can be <code>null</code>)
+     * @return content bytes
+     * @throws IOException problem reading content
+     */
+    static byte[] toByteArray(InputStream content) throws IOException {
+        if (content == null) {
+            return new byte[0];
+        }
+        return IOUtils.toByteArray(content);
+    }
+
+    /**
+     * Opens a stream on a document content, wherever it is stored.
+     * @param document the document
+     * @return content stream
+     * @throws IOException problem opening the stream
+     */
+    static InputStream openStream(Document document) throws IOException {
+        if (document.contentFile != null) {
+            return FileUtils.openInputStream(new File(document.contentFile));
+        }
+        if (document.content == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new ByteArrayInputStream(document.content);
+    }
+
+    /**
+     * Deletes a document content stored on file, if any.
+     * @param document the document
+     */
+    static void delete(Document document) {
+        if (document.contentFile != null) {
+            File file = new File(document.contentFile);
+            if (file.exists() && !FileUtils.deleteQuietly(file)) {
+                LOG.error("Could not delete stored content: " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Keeps commit operations the target repository keeps rejecting (also
+ * called "poison" documents), so they no longer hold back the rest of the
+ * queue nor get committed again on every restart.
+ *
+ * <p>Failures of queued operations are recorded by reference with
+ * {@link #recordFailure(ICommitOperation, Throwable, int)}.  Once an
+ * operation has failed the maximum number of times, it is stored in this
+ * queue along with its failure count, last error and failure dates.
+ * Failure counts survive restarts and are cleared once an operation is
+ * committed.  Stored operations ({@link DeadLetter}) can be listed,
+ * replayed to any committer and purged, from code or from the command
+ * line:
+ * </p>
+ * <pre>
+ *   java -cp ... com.norconex.committer.core.DeadLetterQueue &lt;dir&gt; list
+ *   java -cp ... com.norconex.committer.core.DeadLetterQueue &lt;dir&gt; replay &lt;committer.xml&gt;
+ *   java -cp ... com.norconex.committer.core.DeadLetterQueue &lt;dir&gt; purge
+ * </pre>
+ * <p>
+ * The committer XML file has a "committer" root element with a "class"
+ * attribute, like in crawler configurations.
+ * A dead-letter directory should only be used by one committer at a time.
+ * This class is thread-safe.
+ * </p>
+ * @since 2.1.3
+ */
+public class DeadLetterQueue {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(DeadLetterQueue.class);
+
+    /** Default number of failures before an operation is dead-lettered. */
+    public static final int DEFAULT_MAX_FAILURES = 5;
+
+    static final String EXTENSION_ENTRY = ".dlq";
+    static final String FAILURES_FILE = "failures.properties";
+
+    private static final String KEY_REFERENCE = "reference";
+    private static final String KEY_OPERATION = "operation";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_FIRST_FAILURE = "firstFailure";
+    private static final String KEY_LAST_FAILURE = "lastFailure";
+    private static final String KEY_LAST_ERROR = "lastError";
+    private static final String OPERATION_ADD = "ADD";
+    private static final String OPERATION_DELETE = "DELETE";
+
+    private static final AtomicLong LAST_ID = new AtomicLong();
+
+    private final File directory;
+    // Failures of operations not dead-lettered yet, by reference
+    private Map<String, Failure> failures;
+
+    /**
+     * Creates a dead-letter queue storing operations under the given
+     * directory.
+     * @param directory dead-letter directory
+     */
+    public DeadLetterQueue(String directory) {
+        super();
+        this.directory = new File(directory);
+    }
+
+    /**
+     * Gets the directory dead-letter operations are stored under.
+     * @return dead-letter directory
+     */
+    public String getDirectory() {
+        return directory.getPath();
+    }
+
+    /**
+     * Records a failure of an operation.  Once it has failed the given
+     * number of times, the operation is stored in this queue and its
+     * failures are cleared.  The original operation is left untouched:
+     * callers must delete it from their own queue when this method
+     * returns <code>true</code>.
+     * @param operation the operation
+     * @param error why the operation could not be committed, if known
+     * @param maxFailures number of failures before the operation is 
+     *        stored in this queue, or zero to only record the failure
+     * @return <code>true</code> if the operation was stored in this queue
+     */
+    public synchronized boolean recordFailure(
+            ICommitOperation operation, Throwable error, int maxFailures) {
+        Failure failure = failures().computeIfAbsent(
+                referenceOf(operation), k -> new Failure());
+        failure.record(error);
+        if (maxFailures > 0 && failure.count >= maxFailures) {
+            store(operation, failures.remove(referenceOf(operation)));
+            return true;
+        }
+        saveFailures();
+        return false;
+    }
+
+    /**
+     * Clears recorded failures of a committed operation.
+     * @param operation the committed operation
+     */
+    public synchronized void recordSuccess(ICommitOperation operation) {
+        // Most of the time, nothing failed: avoid resolving references
+        if (failures().isEmpty()) {
+            return;
+        }
+        if (failures.remove(referenceOf(operation)) != null) {
+            saveFailures();
+        }
+    }
+
+    /**
+     * Gets how many times an operation failed since it was last committed
+     * or stored in this queue.
+     * @param reference operation reference
+     * @return number of failures
+     */
+    public synchronized int getFailureCount(String reference) {
+        Failure failure = failures().get(reference);
+        return failure != null ? failure.count : 0;
+    }
+
+    /**
+     * Stores an operation which could not be committed, whatever its
+     * number of failures.  The failure is counted and the original
+     * operation is left untouched.
+     * @param operation the operation
+     * @param error why the operation could not be committed, if known
+     * @return the stored dead letter
+     */
+    public synchronized DeadLetter add(
+            ICommitOperation operation, Throwable error) {
+        Failure failure = failures().remove(referenceOf(operation));
+        if (failure == null) {
+            failure = new Failure();
+        }
+        failure.record(error);
+        return store(operation, failure);
+    }
+
+    private DeadLetter store(ICommitOperation operation, Failure failure) {
+        String reference = referenceOf(operation);
+        File base = new File(directory, nextId());
+        Properties entry = new Properties();
+        entry.setString(KEY_REFERENCE, reference);
+        entry.setInt(KEY_FAILURES, failure.count);
+        entry.setLong(KEY_FIRST_FAILURE, failure.first);
+        entry.setLong(KEY_LAST_FAILURE, failure.last);
+        if (failure.error != null) {
+            entry.setString(KEY_LAST_ERROR, failure.error);
+        }
+        try {
+            FileUtils.forceMkdir(directory);
+            if (operation instanceof IAddOperation) {
+                LOG.error("Sending addition to dead-letter queue: " 
+                        + reference + " (" + failure.error + ")");
+                IAddOperation op = (IAddOperation) operation;
+                entry.setString(KEY_OPERATION, OPERATION_ADD);
+                InputStream content = op.getContentStream();
+                try {
+                    FileUtils.copyInputStreamToFile(content != null ? content
+                            : IOUtils.toInputStream("", StandardCharsets.UTF_8),
+                            new File(base.getPath() + ".cntnt"));
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+                store(op.getMetadata(), new File(base.getPath() + ".meta"));
+            } else {
+                LOG.error("Sending deletion to dead-letter queue: " 
+                        + reference + " (" + failure.error + ")");
+                entry.setString(KEY_OPERATION, OPERATION_DELETE);
+            }
+            // Written last: an entry exists once its data is complete
+            File entryFile = new File(base.getPath() + EXTENSION_ENTRY);
+            File tmpFile = new File(base.getPath() + ".tmp");
+            store(entry, tmpFile);
+            Files.move(tmpFile.toPath(), entryFile.toPath());
+            saveFailures();
+            return new DeadLetter(base, entry);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot store dead-letter operation: " + reference, e);
+        }
+    }
+
+    /**
+     * Gets all stored dead letters, oldest first.
+     * @return dead letters
+     */
+    public synchronized List<DeadLetter> getDeadLetters() {
+        File[] files = directory.listFiles(
+                (dir, name) -> name.endsWith(EXTENSION_ENTRY));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        List<DeadLetter> letters = new ArrayList<>(files.length);
+        for (File file : files) {
+            Properties entry = load(file);
+            letters.add(new DeadLetter(new File(StringUtils.removeEnd(
+                    file.getPath(), EXTENSION_ENTRY)), entry));
+        }
+        return letters;
+    }
+
+    /**
+     * Gets the number of stored dead letters.
+     * @return number of dead letters
+     */
+    public synchronized int size() {
+        String[] names = directory.list(
+                (dir, name) -> name.endsWith(EXTENSION_ENTRY));
+        return names != null ? names.length : 0;
+    }
+
+    /**
+     * Sends all stored dead letters to a committer, oldest first, and
+     * deletes them from this queue.  The committer is not committed.
+     * @param committer committer to send dead letters to
+     * @return number of dead letters sent
+     */
+    public int replay(ICommitter committer) {
+        return replay(committer, letter -> true);
+    }
+
+    /**
+     * Sends stored dead letters matching a filter to a committer, oldest
+     * first, and deletes them from this queue.  The committer is not
+     * committed.
+     * @param committer committer to send dead letters to
+     * @param filter which dead letters to send
+     * @return number of dead letters sent
+     */
+    public synchronized int replay(
+            ICommitter committer, Predicate<DeadLetter> filter) {
+        int count = 0;
+        for (DeadLetter letter : getDeadLetters()) {
+            if (!filter.test(letter)) {
+                continue;
+            }
+            if (letter.isAddition()) {
+                InputStream content = letter.getContentStream();
+                try {
+                    committer.add(letter.getReference(), 
+                            content, letter.getMetadata());
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+            } else {
+                committer.remove(letter.getReference(), new Properties());
+            }
+            letter.delete();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Deletes stored dead letters matching a filter.
+     * @param filter which dead letters to delete
+     * @return number of dead letters deleted
+     */
+    public synchronized int purge(Predicate<DeadLetter> filter) {
+        int count = 0;
+        for (DeadLetter letter : getDeadLetters()) {
+            if (filter.test(letter)) {
+                letter.delete();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String referenceOf(ICommitOperation operation) {
+        if (operation instanceof IAddOperation) {
+            return ((IAddOperation) operation).getReference();
+        }
+        if (operation instanceof IDeleteOperation) {
+            return ((IDeleteOperation) operation).getReference();
+        }
+        throw new CommitterException(
+                "Unsupported dead-letter operation: " + operation);
+    }
+
+    private static String nextId() {
+        long now = System.currentTimeMillis() * 1000;
+        long id;
+        long last;
+        do {
+            last = LAST_ID.get();
+            id = Math.max(last + 1, now);
+        } while (!LAST_ID.compareAndSet(last, id));
+        return Long.toString(id);
+    }
+
+    private Map<String, Failure> failures() {
+        if (failures == null) {
+            failures = new HashMap<>();
+            File file = new File(directory, FAILURES_FILE);
+            if (file.exists()) {
+                Properties props = load(file);
+                for (String key : props.keySet()) {
+                    failures.put(key, Failure.parse(props.getString(key)));
+                }
+            }
+        }
+        return failures;
+    }
+
+    private void saveFailures() {
+        File file = new File(directory, FAILURES_FILE);
+        try {
+            if (failures.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                return;
+            }
+            FileUtils.forceMkdir(directory);
+            Properties props = new Properties();
+            for (Map.Entry<String, Failure> en : failures.entrySet()) {
+                props.setString(en.getKey(), en.getValue().format());
+            }
+            store(props, file);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot save failures to: " + file, e);
+        }
+    }
+
+    private static void store(Properties props, File file) 
+            throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "");
+        }
+    }
+
+    private static Properties load(File file) {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            throw new CommitterException("Cannot read: " + file, e);
+        }
+        return props;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("directory", directory)
+                .toString();
+    }
+
+    /**
+     * Lists, replays or purges the dead letters of a directory.
+     * @param args dead-letter directory, command ("list", "replay" or 
+     *        "purge") and, for "replay", the committer XML file
+     * @throws IOException problem reading the committer configuration
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream out = System.out;
+        if (args.length < 2 || ("replay".equals(args[1]) && args.length < 3)) {
+            out.println("Usage: DeadLetterQueue <dir> list");
+            out.println("       DeadLetterQueue <dir> replay <committer.xml>");
+            out.println("       DeadLetterQueue <dir> purge");
+            System.exit(1);
+            return;
+        }
+        DeadLetterQueue dlq = new DeadLetterQueue(args[0]);
+        switch (args[1]) {
+        case "list":
+            for (DeadLetter letter : dlq.getDeadLetters()) {
+                out.println(letter);
+            }
+            out.println(dlq.size() + " dead letter(s).");
+            break;
+        case "replay":
+            ICommitter committer;
+            try (Reader r = Files.newBufferedReader(
+                    new File(args[2]).toPath(), StandardCharsets.UTF_8)) {
+                XMLConfiguration xml = 
+                        XMLConfigurationUtil.newXMLConfiguration(r);
+                committer = XMLConfigurationUtil.newInstance(xml);
+            }
+            int count = dlq.replay(committer);
+            committer.commit();
+            out.println(count + " dead letter(s) replayed.");
+            break;
+        case "purge":
+            out.println(dlq.purge(letter -> true) 
+                    + " dead letter(s) purged.");
+            break;
+        default:
+            out.println("Unknown command: " + args[1]);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * An operation stored in a dead-letter queue.
+     */
+    public static final class DeadLetter {
+        private final File base;
+        private final Properties entry;
+
+        private DeadLetter(File base, Properties entry) {
+            this.base = base;
+            this.entry = entry;
+        }
+        /**
+         * Gets the unique identifier of this dead letter in its queue.
+         * @return identifier
+         */
+        public String getId() {
+            return base.getName();
+        }
+        /**
+         * Gets the operation document reference.
+         * @return reference
+         */
+        public String getReference() {
+            return entry.getString(KEY_REFERENCE);
+        }
+        /**
+         * Whether this dead letter is an addition (or a deletion).
+         * @return <code>true</code> for an addition
+         */
+        public boolean isAddition() {
+            return OPERATION_ADD.equals(entry.getString(KEY_OPERATION));
+        }
+        /**
+         * Gets how many times the operation failed.
+         * @return failure count
+         */
+        public int getFailureCount() {
+            return entry.getInt(KEY_FAILURES, 0);
+        }
+        /**
+         * Gets when the operation first failed, in milliseconds.
+         * @return first failure time
+         */
+        public long getFirstFailure() {
+            return entry.getLong(KEY_FIRST_FAILURE, 0);
+        }
+        /**
+         * Gets when the operation last failed, in milliseconds.
+         * @return last failure time
+         */
+        public long getLastFailure() {
+            return entry.getLong(KEY_LAST_FAILURE, 0);
+        }
+        /**
+         * Gets the last error, if known.
+         * @return last error or <code>null</code>
+         */
+        public String getLastError() {
+            return entry.getString(KEY_LAST_ERROR);
+        }
+        /**
+         * Gets the metadata of an addition.
+         * @return metadata (empty for deletions)
+         */
+        public Properties getMetadata() {
+            File file = new File(base.getPath() + ".meta");
+            return file.exists() ? load(file) : new Properties();
+        }
+        /**
+         * Gets the content of an addition.
+         * @return content stream or <code>null</code> for deletions
+         */
+        public InputStream getContentStream() {
+            if (!isAddition()) {
+                return null;
+            }
+            File file = new File(base.getPath() + ".cntnt");
+            try {
+                return new FileInputStream(file);
+            } catch (IOException e) {
+                throw new CommitterException("Cannot read: " + file, e);
+            }
+        }
+        private void delete() {
+            // Entry file first, so a partially deleted letter is ignored
+            FileUtils.deleteQuietly(new File(base.getPath() + EXTENSION_ENTRY));
+            FileUtils.deleteQuietly(new File(base.getPath() + ".meta"));
+            FileUtils.deleteQuietly(new File(base.getPath() + ".cntnt"));
+        }
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                    .append("id", getId())
+                    .append("reference", getReference())
+                    .append("operation", entry.getString(KEY_OPERATION))
+                    .append("failures", getFailureCount())
+                    .append("lastFailure", getLastFailure())
+                    .append("lastError", getLastError())
+                    .toString();
+        }
+    }
+
+    private static final class Failure {
+        private int count;
+        private long first;
+        private long last;
+        private String error;
+
+        private void record(Throwable e) {
+            last = System.currentTimeMillis();
+            if (count == 0) {
+                first = last;
+            }
+            count++;
+            if (e != null) {
+                error = ExceptionUtils.getRootCauseMessage(e);
+            }
+        }
+        // count|first|last|error
+        private String format() {
+            return count + "|" + first + "|" + last + "|" 
+                    + StringUtils.defaultString(error);
+        }
+        private static Failure parse(String value) {
+            String[] parts = StringUtils.split(value, "|", 4);
+            Failure failure = new Failure();
+            failure.count = Integer.parseInt(parts[0]);
+            failure.first = Long.parseLong(parts[1]);
+            failure.last = Long.parseLong(parts[2]);
+            failure.error = parts.length > 3 
+                    ? StringUtils.trimToNull(parts[3]) : null;
+            return failure;
+        }
+    }
+}
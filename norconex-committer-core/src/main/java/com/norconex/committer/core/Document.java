@@ -1,6 +1,6 @@
 package com.norconex.committer.core;
 
-import java.io.InputStream;
+import java.io.File;
 import java.io.Serializable;
 
 import com.esotericsoftware.kryo.serializers.DefaultSerializers;
@@ -8,7 +8,9 @@ import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.norconex.commons.lang.map.Properties;
 
 /**
- * Document contains the reference, metadata and content.
+ * Document contains the reference, metadata and content.  Content is either
+ * held in memory or, when too large, stored on file by a {@link ContentStore}
+ * in which case only the file path is kept.
  */
 public class Document implements Serializable {
 
@@ -17,6 +19,9 @@ public class Document implements Serializable {
 
     byte[] content = null;
 
+    /** Absolute path of the content file, if not held in memory. */
+    String contentFile = null;
+
     @FieldSerializer.Bind(serializer = PropertiesSerializer.class, valueClass = Properties.class, canBeNull = true)
     Properties metadata = null;
 
@@ -37,11 +42,18 @@ public class Document implements Serializable {
         this.metadata = metadata;
     }
 
+    public Document(String reference, File contentFile, Properties metadata) {
+        this.reference = reference;
+        this.contentFile = contentFile.getAbsolutePath();
+        this.metadata = metadata;
+    }
+
     @Override
     public String toString() {
         return "Document{" +
                 "reference='" + reference + '\'' +
                 ", content=" + content +
+                ", contentFile=" + contentFile +
                 ", metadata=" + metadata +
                 '}';
     }
@@ -1,15 +1,14 @@
 package com.norconex.committer.core;
 
-import com.esotericsoftware.kryo.KryoSerializable;
 import com.norconex.commons.lang.map.Properties;
-import org.apache.commons.io.IOUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * Operation for adding a document {@link Document}.
+ * Operation for adding a document {@link Document}. Content stored on file
+ * by a {@link ContentStore} is only opened when requested, and deleted
+ * along with the operation.
  */
 public class DocumentAddOperation implements IAddOperation {
 
@@ -22,6 +21,10 @@ public class DocumentAddOperation implements IAddOperation {
         this.document = document;
     }
 
+    Document getDocument() {
+        return document;
+    }
+
     @Override
     public String getReference() {
         return document.reference;
@@ -34,10 +37,11 @@ public class DocumentAddOperation implements IAddOperation {
 
     @Override
     public InputStream getContentStream() throws IOException {
-        return new ByteArrayInputStream(document.content);
+        return ContentStore.openStream(document);
     }
 
     @Override
     public void delete() {
+        ContentStore.delete(document);
     }
 }
@@ -19,7 +19,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -36,6 +40,16 @@ import com.norconex.commons.lang.map.Properties;
 
 /**
  * A file-based addition operation.
+ * <p>
+ * The reference and metadata files are only read the first time
+ * {@link #getReference()} or {@link #getMetadata()} is invoked, so
+ * committers never reading metadata do not pay for parsing it.
+ * Content can be obtained as a stream, as a read-only memory-mapped
+ * {@link ByteBuffer} ({@link #getContentBuffer()}), or be transferred
+ * directly to a channel ({@link #transferContentTo(WritableByteChannel)}),
+ * letting committers sending bytes over the network avoid copying them
+ * through the Java heap.
+ * </p>
  * @author Pascal Essiembre
  * @since 1.1.0
  */
@@ -45,12 +59,12 @@ public class FileAddOperation implements IAddOperation {
     private static final Logger LOG = 
             LogManager.getLogger(FileAddOperation.class);
 
-    private final String reference;
     private final File contentFile;
     private final File metaFile;
     private final File refFile;
-    private final Properties metadata;
     private final int hashCode;
+    private volatile String reference;
+    private volatile Properties metadata;
 
     /**
      * Constructor.
@@ -68,34 +82,22 @@ public class FileAddOperation implements IAddOperation {
                 basePath + FileSystemCommitter.EXTENSION_CONTENT);
         this.metaFile = new File( 
                 basePath + FileSystemCommitter.EXTENSION_METADATA);
-        try {
-            this.reference = FileUtils.readFileToString(
-                    refFile, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new CommitterException(
-                    "Could not load reference for " + refFile, e);
-        }
-        this.metadata = new Properties();
-        synchronized (metadata) {
-            if (metaFile.exists()) {
-                FileInputStream is = null;
-                try {
-                    is = new FileInputStream(metaFile);
-                    metadata.load(is);
-                } catch (IOException e) {
-                    throw new CommitterException(
-                            "Could not load metadata for " + metaFile, e);
-                } finally {
-                    IOUtils.closeQuietly(is);
-                }
-            }
-        }
-
     }
 
     @Override
     public String getReference() {
-        return reference;
+        String ref = reference;
+        if (ref == null) {
+            try {
+                ref = FileUtils.readFileToString(
+                        refFile, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new CommitterException(
+                        "Could not load reference for " + refFile, e);
+            }
+            reference = ref;
+        }
+        return ref;
     }
     
     @Override
@@ -118,7 +120,34 @@ public class FileAddOperation implements IAddOperation {
 
     @Override
     public Properties getMetadata() {
-        return metadata;
+        Properties meta = metadata;
+        if (meta == null) {
+            synchronized (this) {
+                meta = metadata;
+                if (meta == null) {
+                    meta = loadMetadata();
+                    metadata = meta;
+                }
+            }
+        }
+        return meta;
+    }
+
+    private Properties loadMetadata() {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            FileInputStream is = null;
+            try {
+                is = new FileInputStream(metaFile);
+                meta.load(is);
+            } catch (IOException e) {
+                throw new CommitterException(
+                        "Could not load metadata for " + metaFile, e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return meta;
     }
 
     @Override
@@ -130,6 +159,55 @@ public class FileAddOperation implements IAddOperation {
                     "Could not obtain content stream for " + contentFile, e);
         }
     }
+
+    /**
+     * Gets the content length in bytes, without reading the content.
+     * @return content length
+     * @since 2.1.3
+     */
+    public long getContentLength() {
+        return contentFile.length();
+    }
+
+    /**
+     * Gets the content as a read-only buffer mapped to the content file.
+     * The buffer remains valid after the content file is closed, but
+     * should no longer be used once this operation is deleted.
+     * @return content buffer
+     * @throws IOException problem mapping the content file
+     * @since 2.1.3
+     */
+    public ByteBuffer getContentBuffer() throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                contentFile.toPath(), StandardOpenOption.READ)) {
+            return channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Transfers the content to the given channel.  When the target is a
+     * socket or file channel, the operating system can copy bytes
+     * directly without going through the Java heap.
+     * The target channel is not closed.
+     * @param target channel to write the content to
+     * @return number of bytes transferred
+     * @throws IOException problem transferring the content
+     * @since 2.1.3
+     */
+    public long transferContentTo(WritableByteChannel target)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                contentFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(
+                        position, size - position, target);
+            }
+            return position;
+        }
+    }
     
     @Override
     public int hashCode() {
@@ -148,9 +226,9 @@ public class FileAddOperation implements IAddOperation {
             return false;
         }
         FileAddOperation other = (FileAddOperation) obj;
+        // Files identify the operation: comparing does not parse them
         EqualsBuilder equalsBuilder = new EqualsBuilder();
-        equalsBuilder.append(contentFile, other.contentFile);
-        equalsBuilder.append(metadata, other.metadata);
+        equalsBuilder.append(refFile, other.refFile);
         return equalsBuilder.isEquals();
     }
     
@@ -158,8 +236,8 @@ public class FileAddOperation implements IAddOperation {
     public String toString() {
         ToStringBuilder builder = 
                 new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
-        builder.append("file", contentFile);
-        builder.append("metadata", metadata);
+        builder.append("refFile", refFile);
+        builder.append("contentFile", contentFile);
         return builder.toString();
     }
 }
@@ -0,0 +1,449 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.committer.core.impl.FileSystemCommitter;
+import com.norconex.commons.lang.file.FileUtil;
+
+/**
+ * Append-only index of the reference files queued by a
+ * {@link FileSystemCommitter}, so queued operations can be taken in
+ * creation order without walking the whole queue directory.
+ *
+ * <p>Each queued reference file is appended as one fixed-length record
+ * (its path relative to the queue directory) to a journal file.  A cursor
+ * file holds the journal offset of the oldest record not yet committed.
+ * Taking operations reads records from the cursor onward, and the number
+ * of queued operations is derived from the journal length in constant
+ * time.  Once every record is committed, both files are deleted, which
+ * also keeps the journal from growing forever.
+ *
+ * <p>The cursor only moves past records taken by commits that completed.
+ * If the JVM dies, records of commits in progress are taken again on
+ * restart, and those already committed (files no longer existing) are
+ * skipped by the caller.  Records of failed commits stay behind the cursor
+ * and are taken first by the next commit, ahead of records appended after
+ * them.
+ * When the journal is missing (e.g. a queue created by an older version)
+ * or is corrupted, it is rebuilt once by walking the queue directory.
+ *
+ * <p>One instance exists per queue directory within a JVM.  A queue
+ * directory must not be shared by several JVMs.
+ * @since 2.1.3
+ */
+public final class FileQueueIndex {
+
+    private static final Logger LOG =
+            LogManager.getLogger(FileQueueIndex.class);
+
+    /** Journal file name, in the queue directory. */
+    public static final String JOURNAL_FILE = "queue.journal";
+    /** Cursor file name, in the queue directory. */
+    public static final String CURSOR_FILE = "queue.cursor";
+
+    // Fixed length of a journal record, including its line feed
+    static final int RECORD_LENGTH = 128;
+
+    private static final Map<File, FileQueueIndex> INDEXES = new HashMap<>();
+
+    private final File directory;
+    private final File journalFile;
+    private final File cursorFile;
+
+    // Appends share the read lock, anything moving or deleting the
+    // journal takes the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile FileChannel appendChannel;
+    private volatile FileChannel readChannel;
+
+    // Next record to take, and start offsets of batches being committed
+    // or waiting to be retried
+    private long readPosition;
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<>();
+    // Files of failed batches still existing, by batch start offset
+    private final TreeMap<Long, List<File>> retries = new TreeMap<>();
+
+    private FileQueueIndex(File directory) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.cursorFile = new File(directory, CURSOR_FILE);
+        open();
+    }
+
+    /**
+     * Gets the index of a queue directory.
+     * @param directory queue directory
+     * @return queue index
+     */
+    public static FileQueueIndex get(File directory) {
+        File dir = directory.getAbsoluteFile();
+        synchronized (INDEXES) {
+            FileQueueIndex index = INDEXES.get(dir);
+            if (index == null) {
+                index = new FileQueueIndex(dir);
+                INDEXES.put(dir, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the queue directory.
+     * @return queue directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Appends a queued reference file to the index.  Must be invoked once
+     * the reference file is fully written.
+     * @param refFile reference file
+     */
+    public void append(File refFile) {
+        ByteBuffer record = toRecord(refFile);
+        lock.readLock().lock();
+        try {
+            appendChannel().write(record);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot append to queue journal: " + refFile, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the next queued reference files, in the order they were
+     * appended.  Files of failed commits are taken first.  Taken files are
+     * not given to other callers until released with failure.
+     * @param max maximum number of files to take
+     * @return taken files (possibly empty)
+     */
+    public Batch take(int max) {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (!retries.isEmpty()) {
+                    return takeRetry(max);
+                }
+                if (!journalFile.exists()) {
+                    return new Batch(-1, Collections.<File>emptyList());
+                }
+                long end = Math.min(readChannel().size(),
+                        readPosition + (long) max * RECORD_LENGTH);
+                if (end <= readPosition) {
+                    return new Batch(-1, Collections.<File>emptyList());
+                }
+                ByteBuffer buf = ByteBuffer.allocate(
+                        (int) (end - readPosition));
+                while (buf.hasRemaining() && readChannel().read(
+                        buf, readPosition + buf.position()) >= 0) {
+                    // keep reading
+                }
+                List<File> files = new ArrayList<>(
+                        buf.capacity() / RECORD_LENGTH);
+                String records = new String(
+                        buf.array(), StandardCharsets.UTF_8);
+                for (String path : StringUtils.split(records, '\n')) {
+                    path = path.trim();
+                    if (!path.isEmpty()) {
+                        files.add(new File(directory, path));
+                    }
+                }
+                Batch batch = new Batch(readPosition, files);
+                inFlight.merge(readPosition, 1, Integer::sum);
+                readPosition = end;
+                return batch;
+            }
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot read queue journal: " + journalFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Must be called while holding the write lock
+    private Batch takeRetry(int max) {
+        Map.Entry<Long, List<File>> retry = retries.pollFirstEntry();
+        List<File> files = retry.getValue();
+        if (files.size() > max) {
+            // The rest stays first in line, as one more pending batch
+            retries.put(retry.getKey(),
+                    new ArrayList<>(files.subList(max, files.size())));
+            inFlight.merge(retry.getKey(), 1, Integer::sum);
+            files = new ArrayList<>(files.subList(0, max));
+        }
+        return new Batch(retry.getKey(), files);
+    }
+
+    /**
+     * Releases files taken from this index once their commit is over.
+     * Files of a failed commit still existing are kept ahead of the
+     * files not yet taken, so the next commit takes them first.
+     * @param batch taken files
+     * @param failed <code>true</code> if the commit failed
+     */
+    public void release(Batch batch, boolean failed) {
+        if (batch.start < 0) {
+            return;
+        }
+        List<File> remaining = new ArrayList<>();
+        if (failed) {
+            for (File file : batch.files) {
+                if (file.exists()) {
+                    remaining.add(file);
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (!remaining.isEmpty()) {
+                    // Still pending: the cursor must not move past it
+                    List<File> rest = retries.get(batch.start);
+                    if (rest != null) {
+                        // Rest of a split retry, now one batch again
+                        remaining.addAll(rest);
+                        inFlight.computeIfPresent(
+                                batch.start, (k, v) -> v > 1 ? v - 1 : null);
+                    }
+                    retries.put(batch.start, remaining);
+                    return;
+                }
+                inFlight.computeIfPresent(
+                        batch.start, (k, v) -> v > 1 ? v - 1 : null);
+                long size = journalFile.exists() ? readChannel().size() : 0;
+                if (inFlight.isEmpty() && readPosition >= size) {
+                    // Everything committed: start over with a new journal
+                    closeChannels();
+                    Files.deleteIfExists(journalFile.toPath());
+                    Files.deleteIfExists(cursorFile.toPath());
+                    readPosition = 0;
+                } else {
+                    writeCursor(inFlight.isEmpty()
+                            ? readPosition : inFlight.firstKey());
+                }
+            }
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot update queue cursor: " + cursorFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of queued files not yet taken, in constant time.
+     * This may include files already committed before an unclean shutdown.
+     * @return queued file count
+     */
+    public synchronized long size() {
+        long size = Math.max(0, journalFile.length() - readPosition)
+                / RECORD_LENGTH;
+        for (List<File> files : retries.values()) {
+            size += files.size();
+        }
+        return size;
+    }
+
+    /**
+     * Rebuilds the journal by walking the queue directory.  Files
+     * currently taken are indexed again.
+     */
+    public void rebuild() {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closeChannels();
+                Files.deleteIfExists(journalFile.toPath());
+                Files.deleteIfExists(cursorFile.toPath());
+                readPosition = 0;
+                inFlight.clear();
+                retries.clear();
+                final List<File> refFiles = new ArrayList<>();
+                if (directory.isDirectory()) {
+                    FileUtil.visitAllFiles(directory, refFiles::add,
+                            f -> f.getName().endsWith(
+                                    FileSystemCommitter.EXTENSION_REFERENCE));
+                }
+                if (!refFiles.isEmpty()) {
+                    ByteBuffer buf = ByteBuffer.allocate(
+                            refFiles.size() * RECORD_LENGTH);
+                    for (File file : refFiles) {
+                        buf.put(toRecord(file));
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        appendChannel().write(buf);
+                    }
+                }
+                if (!refFiles.isEmpty()) {
+                    LOG.info(String.format("Rebuilt queue journal of %s "
+                            + "with %s files.", directory, refFiles.size()));
+                }
+            }
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot rebuild queue journal: " + journalFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void open() {
+        long length = journalFile.length();
+        long cursor = readCursor();
+        if (!journalFile.exists() || length % RECORD_LENGTH != 0
+                || cursor > length || cursor % RECORD_LENGTH != 0) {
+            if (journalFile.exists()) {
+                LOG.warn("Queue journal is corrupted, rebuilding it: "
+                        + journalFile);
+            }
+            rebuild();
+        } else {
+            readPosition = cursor;
+        }
+    }
+
+    private long readCursor() {
+        if (!cursorFile.isFile()) {
+            return 0;
+        }
+        try {
+            String cursor = FileUtils.readFileToString(
+                    cursorFile, StandardCharsets.UTF_8).trim();
+            return Long.parseLong(cursor);
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Cannot read queue cursor: " + cursorFile, e);
+            return -1;
+        }
+    }
+
+    private void writeCursor(long cursor) throws IOException {
+        try (FileChannel channel = FileChannel.open(cursorFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(cursor).getBytes(
+                    StandardCharsets.UTF_8)));
+        }
+    }
+
+    private ByteBuffer toRecord(File refFile) {
+        String path = FilenameUtils.separatorsToUnix(
+                directory.toPath().relativize(
+                        refFile.getAbsoluteFile().toPath()).toString());
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= RECORD_LENGTH) {
+            throw new CommitterException(
+                    "Queued file path too long for queue journal: " + path);
+        }
+        byte[] record = new byte[RECORD_LENGTH];
+        System.arraycopy(bytes, 0, record, 0, bytes.length);
+        for (int i = bytes.length; i < RECORD_LENGTH - 1; i++) {
+            record[i] = ' ';
+        }
+        record[RECORD_LENGTH - 1] = '\n';
+        return ByteBuffer.wrap(record);
+    }
+
+    private FileChannel appendChannel() throws IOException {
+        FileChannel channel = appendChannel;
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (journalFile) {
+            if (appendChannel == null) {
+                FileUtils.forceMkdir(directory);
+                appendChannel = FileChannel.open(journalFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            return appendChannel;
+        }
+    }
+
+    private FileChannel readChannel() throws IOException {
+        synchronized (journalFile) {
+            if (readChannel == null) {
+                readChannel = FileChannel.open(
+                        journalFile.toPath(), StandardOpenOption.READ);
+            }
+            return readChannel;
+        }
+    }
+
+    private void closeChannels() throws IOException {
+        synchronized (journalFile) {
+            if (appendChannel != null) {
+                appendChannel.close();
+                appendChannel = null;
+            }
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Reference files taken from the index, to be released once
+     * committed.
+     */
+    public static final class Batch {
+        private final long start;
+        private final List<File> files;
+        private Batch(long start, List<File> files) {
+            this.start = start;
+            this.files = files;
+        }
+        /**
+         * Gets the taken reference files.
+         * @return reference files
+         */
+        public List<File> getFiles() {
+            return files;
+        }
+        /**
+         * Whether no file was taken.
+         * @return <code>true</code> if empty
+         */
+        public boolean isEmpty() {
+            return files.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+/**
+ * Encodes commit operations to bytes stored in a {@link PersistentQueue}
+ * message, and decodes them back.  Implementations must be thread-safe.
+ * @since 2.1.3
+ * @see KryoQueueCodec
+ * @see BinaryQueueCodec
+ */
+public interface IQueueCodec {
+
+    /**
+     * Encodes a commit operation.
+     * @param operation the operation to encode
+     * @return encoded operation
+     */
+    byte[] encode(ICommitOperation operation);
+
+    /**
+     * Decodes a commit operation previously encoded by this codec.
+     * @param bytes encoded operation
+     * @return decoded operation
+     */
+    ICommitOperation decode(byte[] bytes);
+
+    /**
+     * Registers an additional class (typically a custom commit operation)
+     * this codec must be able to encode.  Codecs not needing registration
+     * can ignore it.
+     * @param type class to register
+     */
+    default void registerClass(Class<?> type) {
+        // NO-OP
+    }
+}
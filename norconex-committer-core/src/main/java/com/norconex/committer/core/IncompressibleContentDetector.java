@@ -0,0 +1,195 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Detects document content that is already compressed (images, archives,
+ * media, PDFs, etc.) and would not shrink any further.  Detection relies on
+ * the document content type when present in its metadata, and otherwise on
+ * well-known "magic" bytes found at the start of the content.
+ * @since 2.1.3
+ */
+public class IncompressibleContentDetector {
+
+    /** Metadata fields checked for a document content type. */
+    public static final List<String> CONTENT_TYPE_FIELDS =
+            Collections.unmodifiableList(Arrays.asList(
+                    "document.contentType", "Content-Type"));
+
+    /**
+     * Default content types (or content type prefixes) considered
+     * incompressible.
+     */
+    public static final List<String> DEFAULT_CONTENT_TYPES =
+            Collections.unmodifiableList(Arrays.asList(
+                    "image/jpeg", "image/png", "image/gif", "image/webp",
+                    "audio/", "video/",
+                    "application/pdf",
+                    "application/zip", "application/gzip",
+                    "application/x-gzip", "application/x-bzip2",
+                    "application/x-xz", "application/x-7z-compressed",
+                    "application/x-rar-compressed", "application/zstd",
+                    "application/java-archive", "application/epub+zip",
+                    "application/vnd.openxmlformats-officedocument.",
+                    "application/vnd.oasis.opendocument."));
+
+    // Signatures of compressed formats, matched at the content start
+    private static final byte[][] MAGIC_BYTES = {
+        { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },            // JPEG
+        { (byte) 0x89, 'P', 'N', 'G' },                       // PNG
+        { 'G', 'I', 'F', '8' },                               // GIF
+        { '%', 'P', 'D', 'F' },                               // PDF
+        { 'P', 'K', 3, 4 },                                   // ZIP & co.
+        { 0x1F, (byte) 0x8B },                                // GZIP
+        { 'B', 'Z', 'h' },                                    // BZIP2
+        { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 },               // XZ
+        { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C },   // 7-Zip
+        { 'R', 'a', 'r', '!' },                               // RAR
+        { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD },             // Zstandard
+        { 'O', 'g', 'g', 'S' },                               // OGG
+        { 'f', 'L', 'a', 'C' },                               // FLAC
+        { 'I', 'D', '3' },                                    // MP3
+    };
+    // Formats identified by a signature at offset 4 (ISO media: MP4, MOV)
+    private static final byte[] FTYP = { 'f', 't', 'y', 'p' };
+    // WEBP images are RIFF containers
+    private static final byte[] RIFF = { 'R', 'I', 'F', 'F' };
+    private static final byte[] WEBP = { 'W', 'E', 'B', 'P' };
+
+    private final List<String> contentTypes = new ArrayList<>();
+
+    /**
+     * Creates a detector using the default content types.
+     */
+    public IncompressibleContentDetector() {
+        this(DEFAULT_CONTENT_TYPES);
+    }
+    /**
+     * Creates a detector using the given content types.
+     * @param contentTypes content types or content type prefixes
+     */
+    public IncompressibleContentDetector(List<String> contentTypes) {
+        super();
+        setContentTypes(contentTypes);
+    }
+
+    public List<String> getContentTypes() {
+        return Collections.unmodifiableList(contentTypes);
+    }
+    /**
+     * Sets the content types (or content type prefixes, such as
+     * <code>video/</code>) considered incompressible.
+     * @param contentTypes content types
+     */
+    public void setContentTypes(List<String> contentTypes) {
+        this.contentTypes.clear();
+        if (contentTypes != null) {
+            for (String type : contentTypes) {
+                if (StringUtils.isNotBlank(type)) {
+                    this.contentTypes.add(
+                            type.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the given document content is already compressed.
+     * Documents whose content is not held in memory are never
+     * considered incompressible.
+     * @param document the document
+     * @return <code>true</code> if content is incompressible
+     */
+    public boolean isIncompressible(Document document) {
+        if (document.content == null || document.content.length == 0) {
+            return false;
+        }
+        String contentType = getContentType(document.metadata);
+        if (contentType != null) {
+            return isIncompressibleType(contentType);
+        }
+        return hasCompressedSignature(document.content);
+    }
+
+    /**
+     * Whether the given content type is one of the configured
+     * incompressible types.
+     * @param contentType content type, possibly with parameters
+     * @return <code>true</code> if incompressible
+     */
+    public boolean isIncompressibleType(String contentType) {
+        String type = StringUtils.substringBefore(contentType, ";")
+                .trim().toLowerCase(Locale.ENGLISH);
+        for (String incompressible : contentTypes) {
+            if (type.startsWith(incompressible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the given bytes start with the signature of a known
+     * compressed format.
+     * @param content content bytes
+     * @return <code>true</code> if a compressed signature was found
+     */
+    public static boolean hasCompressedSignature(byte[] content) {
+        for (byte[] magic : MAGIC_BYTES) {
+            if (startsWith(content, 0, magic)) {
+                return true;
+            }
+        }
+        return startsWith(content, 4, FTYP)
+                || (startsWith(content, 0, RIFF)
+                        && startsWith(content, 8, WEBP));
+    }
+
+    private static String getContentType(Properties metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        for (String field : CONTENT_TYPE_FIELDS) {
+            String type = metadata.getString(field);
+            if (StringUtils.isNotBlank(type)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(
+            byte[] content, int offset, byte[] prefix) {
+        if (content.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
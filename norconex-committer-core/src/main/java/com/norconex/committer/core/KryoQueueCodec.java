@@ -0,0 +1,114 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.collections4.map.ListOrderedMap;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.norconex.commons.lang.map.ObservableMap;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Encodes commit operations with Kryo.  Fast and compact, but the encoded
+ * form depends on the fields of the encoded classes, so queued operations
+ * may not be readable after upgrading.  Use {@link BinaryQueueCodec} when
+ * queues must survive upgrades.
+ *
+ * <p>Custom operation classes must be registered with
+ * {@link #registerClass(Class)} (done from the committer
+ * <code>serializationClasses</code> configuration).  Registered classes
+ * apply to all threads.
+ *
+ * <p>XML configuration usage:
+ *
+ * <pre>
+ *  &lt;codec class="com.norconex.committer.core.KryoQueueCodec"&gt;
+ *      &lt;compression&gt;[NONE|DEFLATE|LZ4|ZSTD]&lt;/compression&gt;
+ *      &lt;compressionLevel&gt;(algorithm-specific level)&lt;/compressionLevel&gt;
+ *      &lt;skipIncompressible&gt;[false|true]&lt;/skipIncompressible&gt;
+ *      &lt;incompressibleContentTypes&gt;
+ *          (comma-separated content types or prefixes)
+ *      &lt;/incompressibleContentTypes&gt;
+ *  &lt;/codec&gt;
+ * </pre>
+ * @since 2.1.3
+ */
+public class KryoQueueCodec extends AbstractQueueCodec {
+
+    private static final Logger LOG =
+            LogManager.getLogger(KryoQueueCodec.class);
+
+    private final List<Class<?>> registeredClasses =
+            new CopyOnWriteArrayList<>();
+    private final ThreadLocal<ThreadKryo> kryos =
+            ThreadLocal.withInitial(ThreadKryo::new);
+
+    @Override
+    public void registerClass(Class<?> type) {
+        if (!registeredClasses.contains(type)) {
+            registeredClasses.add(type);
+            LOG.info(String.format(
+                    "Registered class for Kryo serialization: %s",
+                    type.getCanonicalName()));
+        }
+    }
+
+    @Override
+    protected void write(ICommitOperation operation, Output output) {
+        kryo().writeClassAndObject(output, operation);
+    }
+
+    @Override
+    protected ICommitOperation read(Input input) {
+        return (ICommitOperation) kryo().readClassAndObject(input);
+    }
+
+    // Calling thread's Kryo instance, with all registered classes
+    Kryo kryo() {
+        ThreadKryo threadKryo = kryos.get();
+        // Registration order must be the same on all threads for class
+        // ids to match.
+        while (threadKryo.registered < registeredClasses.size()) {
+            threadKryo.kryo.register(
+                    registeredClasses.get(threadKryo.registered++));
+        }
+        return threadKryo.kryo;
+    }
+
+    private static class ThreadKryo {
+        private final Kryo kryo = new Kryo();
+        private int registered;
+        private ThreadKryo() {
+            kryo.register(ArrayList.class);
+            kryo.register(byte[].class);
+            kryo.register(Document.class);
+            kryo.register(DocumentAddOperation.class);
+            kryo.register(DocumentDeleteOperation.class);
+            kryo.register(HashMap.class);
+            kryo.register(ListOrderedMap.class);
+            kryo.register(ObservableMap.class);
+            kryo.register(Properties.class);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps only the latest operation of each reference in a batch.  When a
+ * document is added then deleted (or added again) before being committed,
+ * only the last operation reflects its state, and the previous ones are
+ * superseded.  Sending them would only cost the target repository useless
+ * writes.  Operations are expected in the order they were queued.
+ * @since 2.1.3
+ */
+final class OperationCoalescer {
+
+    private OperationCoalescer() {
+        super();
+    }
+
+    /**
+     * Gets the latest operation of each reference, in batch order.
+     * The given batch is not modified, and is returned as is when no
+     * operation is superseded.
+     * @param batch operations, in queuing order
+     * @return operations not superseded by a later one
+     */
+    static List<ICommitOperation> coalesce(List<ICommitOperation> batch) {
+        if (batch.size() <= 1) {
+            return batch;
+        }
+        // Position of the latest operation of each reference
+        Map<String, Integer> latest = new HashMap<>(batch.size() * 2);
+        for (int i = 0; i < batch.size(); i++) {
+            String reference = referenceOf(batch.get(i));
+            if (reference != null) {
+                latest.put(reference, i);
+            }
+        }
+        if (latest.size() == batch.size()) {
+            return batch;
+        }
+        List<ICommitOperation> coalesced = new ArrayList<>(latest.size());
+        for (int i = 0; i < batch.size(); i++) {
+            ICommitOperation op = batch.get(i);
+            String reference = referenceOf(op);
+            if (reference == null || latest.get(reference) == i) {
+                coalesced.add(op);
+            }
+        }
+        return coalesced;
+    }
+
+    private static String referenceOf(ICommitOperation operation) {
+        if (operation instanceof IAddOperation) {
+            return ((IAddOperation) operation).getReference();
+        }
+        if (operation instanceof IDeleteOperation) {
+            return ((IDeleteOperation) operation).getReference();
+        }
+        return null;
+    }
+}
@@ -1,48 +1,90 @@
 package com.norconex.committer.core;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import com.esotericsoftware.kryo.serializers.DeflateSerializer;
 import com.esotericsoftware.minlog.Log;
 import com.github.ddth.queue.IQueueMessage;
-import com.github.ddth.queue.QueueSpec;
-import com.github.ddth.queue.impl.RocksDbQueueFactory;
 import com.github.ddth.queue.impl.universal.UniversalIdIntQueueMessage;
-import com.github.ddth.queue.impl.universal.idint.UniversalRocksDbQueue;
-import com.github.ddth.queue.impl.universal.idint.UniversalRocksDbQueueFactory;
-import com.norconex.commons.lang.map.ObservableMap;
-import com.norconex.commons.lang.map.Properties;
-import org.apache.commons.collections4.map.ListOrderedMap;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.File;
 import java.util.*;
-
+import java.util.function.Predicate;
+
+/**
+ * A queue of commit operations persisted in RocksDB.  Each queue name and
+ * queue directory combination has its own RocksDB storage, found under
+ * <code>queueDir/queueName</code>.  Instances created for the same name and
+ * directory share the same underlying storage (RocksDB only allows one
+ * process-wide handle per directory), while instances created for different
+ * names or directories are fully independent from each other.
+ *
+ * <p>By default, every offered, taken or finished message is written to
+ * RocksDB right away. When a group commit size greater than one is set,
+ * those writes are instead accumulated in one RocksDB write batch, written
+ * once that many messages are pending, or once the group commit maximum
+ * delay has elapsed, whichever comes first. Group commit trades a bounded
+ * window of non-persisted messages (lost if the JVM dies) for far fewer
+ * individual writes. Pending messages can be taken before they are written,
+ * and are always written on {@link #flush()} and {@link #destroy()}.
+ * Writes can also be synced to disk, so that they survive an operating
+ * system crash, at the cost of throughput.  Instances sharing the same
+ * storage share the group commit settings of the first one created.
+ *
+ * <p>Operations are encoded to message bytes by an {@link IQueueCodec}
+ * (a {@link KryoQueueCodec} by default).
+ *
+ * <p>When a buffer size is set, offered messages are first kept in a
+ * bounded in-memory ring buffer, and only written to RocksDB when the
+ * buffer is full.  Messages consumed straight from the buffer never touch
+ * disk, but are lost if the JVM dies before they are processed (buffered
+ * messages are written to RocksDB on {@link #destroy()}).  Once the buffer
+ * is full, the {@link OverflowPolicy} decides what producers calling
+ * {@link #acquireCapacity()} experience.  Queue order is preserved: while
+ * overflowed messages remain in RocksDB, new messages go to RocksDB too.
+ */
 public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
 
     private static final Logger LOG = LogManager.getLogger(PersistentQueue.class);
-    private static UniversalRocksDbQueue queue;
-
-    static private final ThreadLocal<Kryo> kryos = new ThreadLocal<Kryo>() {
-        protected Kryo initialValue() {
-            Kryo kryo = new Kryo();
-            kryo.register(ArrayList.class);
-            kryo.register(byte[].class);
-            kryo.register(Document.class, new DeflateSerializer(kryo.getDefaultSerializer(Document.class)));
-            kryo.register(DocumentAddOperation.class);
-            kryo.register(DocumentDeleteOperation.class);
-            kryo.register(HashMap.class);
-            kryo.register(ListOrderedMap.class);
-            kryo.register(ObservableMap.class);
-            kryo.register(Properties.class);
-            return kryo;
-        };
-    };
+
+    // Open RocksDB queues, keyed by storage directory
+    private static final Map<String, SharedQueue> OPEN_QUEUES = new HashMap<>();
+
+    /** Default maximum delay before pending group commit writes are flushed. */
+    public static final long DEFAULT_GROUP_COMMIT_MAX_DELAY = 1000;
+    /** Default maximum time producers wait for buffer capacity. */
+    public static final long DEFAULT_OVERFLOW_TIMEOUT = 60000;
+
+    /**
+     * What happens to producers when the in-memory buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for buffer capacity, up to the overflow timeout. */
+        BLOCK,
+        /** Write overflowing messages to RocksDB. */
+        SPILL,
+        /** Reject new messages with a {@link CommitterException}. */
+        FAIL
+    }
+
+    private final RocksDbQueueStore queue;
+    private final String storageDir;
+    private boolean destroyed;
+
+    private final int groupCommitSize;
+    private final long groupCommitMaxDelay;
+    private final boolean syncWrites;
+
+    private final IQueueCodec codec;
+
+    private final int bufferSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowTimeout;
+    private final ArrayDeque<UniversalIdIntQueueMessage> buffer;
+    // Buffer slots reserved by producers about to offer, guarded by buffer
+    private int bufferReserved;
+    // Taken buffered messages, tracked by identity as they have no RocksDB id
+    private final Set<UniversalIdIntQueueMessage> bufferedInFlight =
+            Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
 
     private String queueName;
     private String queueDir;
@@ -50,12 +92,98 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
     public static class Builder {
         private String queueName;
         private String queueDir;
+        private int groupCommitSize;
+        private long groupCommitMaxDelay = DEFAULT_GROUP_COMMIT_MAX_DELAY;
+        private boolean syncWrites;
+        private IQueueCodec codec;
+        private int bufferSize;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private long overflowTimeout = DEFAULT_OVERFLOW_TIMEOUT;
 
         public Builder(String queueName, String queueDir) {
             this.queueName = queueName;
             this.queueDir = queueDir;
         }
 
+        /**
+         * Sets the number of pending messages written to RocksDB together,
+         * in one write batch. Zero or one disables group commit (default).
+         * @param groupCommitSize group commit size
+         * @return this builder
+         */
+        public Builder groupCommitSize(int groupCommitSize) {
+            this.groupCommitSize = groupCommitSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time in milliseconds pending group commit writes
+         * may wait before being written to RocksDB.  Zero only writes them
+         * when the group commit size is reached.
+         * @param groupCommitMaxDelay maximum delay in milliseconds
+         * @return this builder
+         */
+        public Builder groupCommitMaxDelay(long groupCommitMaxDelay) {
+            this.groupCommitMaxDelay = groupCommitMaxDelay;
+            return this;
+        }
+
+        /**
+         * Sets whether RocksDB writes are synced to disk (fsync) before
+         * being acknowledged.  Default is <code>false</code>.
+         * @param syncWrites <code>true</code> to sync writes
+         * @return this builder
+         */
+        public Builder syncWrites(boolean syncWrites) {
+            this.syncWrites = syncWrites;
+            return this;
+        }
+
+        /**
+         * Sets the codec used to encode and decode queued operations.
+         * Default is a {@link KryoQueueCodec}.
+         * @param codec queue codec
+         * @return this builder
+         */
+        public Builder codec(IQueueCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of messages kept in the in-memory
+         * buffer. Zero (default) disables the buffer: every message is
+         * written to RocksDB.
+         * @param bufferSize buffer size
+         * @return this builder
+         */
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Sets what happens when the in-memory buffer is full.
+         * Default is {@link OverflowPolicy#BLOCK}.
+         * @param overflowPolicy overflow policy
+         * @return this builder
+         */
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time in milliseconds producers wait for buffer
+         * capacity with {@link OverflowPolicy#BLOCK}.
+         * @param overflowTimeout overflow timeout in milliseconds
+         * @return this builder
+         */
+        public Builder overflowTimeout(long overflowTimeout) {
+            this.overflowTimeout = overflowTimeout;
+            return this;
+        }
+
         public PersistentQueue build() {
             return new PersistentQueue(this);
         }
@@ -64,20 +192,149 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
     private PersistentQueue(Builder builder) {
         this.queueName = builder.queueName;
         this.queueDir = builder.queueDir;
-        initRocksDB(queueName, queueDir);
+        this.storageDir = new File(queueDir, queueName).getAbsolutePath();
+        this.groupCommitSize = builder.groupCommitSize;
+        this.groupCommitMaxDelay = builder.groupCommitMaxDelay;
+        this.syncWrites = builder.syncWrites;
+        this.queue = openRocksDB(queueName, storageDir,
+                groupCommitSize, groupCommitMaxDelay, syncWrites);
+        this.codec = builder.codec != null ? builder.codec : new KryoQueueCodec();
+        this.bufferSize = Math.max(0, builder.bufferSize);
+        this.overflowPolicy = builder.overflowPolicy != null
+                ? builder.overflowPolicy : OverflowPolicy.BLOCK;
+        this.overflowTimeout = builder.overflowTimeout;
+        this.buffer = new ArrayDeque<>(bufferSize);
     }
 
-    private void initRocksDB(String queueName, String queueDir) {
+    private static RocksDbQueueStore openRocksDB(String queueName, String storageDir,
+            int groupCommitSize, long groupCommitMaxDelay, boolean syncWrites) {
         if(LOG.isTraceEnabled()) {
             // Enable Kryo trace logging when trace is enabled
             Log.TRACE();
         }
 
-        QueueSpec queueSpec = new QueueSpec(queueName);
-        queueSpec.setField(RocksDbQueueFactory.SPEC_FIELD_STORAGE_DIR, queueDir);
+        synchronized (OPEN_QUEUES) {
+            SharedQueue shared = OPEN_QUEUES.get(storageDir);
+            if (shared == null) {
+                shared = new SharedQueue(new RocksDbQueueStore(new File(storageDir),
+                        groupCommitSize, groupCommitMaxDelay, syncWrites));
+                OPEN_QUEUES.put(storageDir, shared);
+                LOG.info(String.format("Opened persistent queue \"%s\" in: %s", queueName, storageDir));
+            }
+            shared.references++;
+            return shared.queue;
+        }
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public String getQueueDir() {
+        return queueDir;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public long getGroupCommitMaxDelay() {
+        return groupCommitMaxDelay;
+    }
+
+    public boolean isSyncWrites() {
+        return syncWrites;
+    }
+
+    public IQueueCodec getCodec() {
+        return codec;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getOverflowTimeout() {
+        return overflowTimeout;
+    }
 
-        if (queue == null) {
-            queue = new UniversalRocksDbQueueFactory().getQueue(queueSpec);
+    private boolean isBuffered() {
+        return bufferSize > 0;
+    }
+
+    /**
+     * Waits for, or reserves, in-memory buffer capacity for one message
+     * about to be offered, according to the overflow policy.  Does nothing
+     * when there is no buffer or the policy is {@link OverflowPolicy#SPILL}.
+     * @throws CommitterException buffer is full and the policy is
+     *         {@link OverflowPolicy#FAIL}, or the overflow timeout elapsed
+     */
+    public void acquireCapacity() {
+        if (!isBuffered() || overflowPolicy == OverflowPolicy.SPILL) {
+            return;
+        }
+        synchronized (buffer) {
+            if (overflowPolicy == OverflowPolicy.FAIL) {
+                if (isBufferFull()) {
+                    throw new CommitterException(String.format(
+                            "Queue \"%s\" buffer is full (%s messages).", queueName, bufferSize));
+                }
+            } else {
+                long deadline = System.currentTimeMillis() + overflowTimeout;
+                while (isBufferFull()) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new CommitterException(String.format(
+                                "Timed out after %sms waiting for queue \"%s\" buffer capacity.",
+                                overflowTimeout, queueName));
+                    }
+                    try {
+                        buffer.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CommitterException(
+                                "Interrupted while waiting for queue buffer capacity.", e);
+                    }
+                }
+            }
+            bufferReserved++;
+        }
+    }
+
+    // Must be called while holding the buffer lock
+    private boolean isBufferFull() {
+        return buffer.size() + bufferReserved >= bufferSize;
+    }
+
+    /**
+     * Gets how full the in-memory buffer is, from 0 (empty) to 1 (full, or
+     * overflowing to RocksDB).  Producers can use it to throttle themselves.
+     * Always 0 when there is no buffer.
+     * @return buffer pressure
+     */
+    public float getPressure() {
+        if (!isBuffered()) {
+            return 0;
+        }
+        synchronized (buffer) {
+            if (getDiskSize() > 0) {
+                return 1;
+            }
+            return (float) buffer.size() / bufferSize;
+        }
+    }
+
+    /**
+     * Gets the number of messages in the in-memory buffer.
+     * @return buffered message count
+     */
+    public int getBufferedCount() {
+        synchronized (buffer) {
+            return buffer.size();
         }
     }
 
@@ -86,12 +343,15 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
      * @param type Class
      */
     public void registerClassForSerialization(Class type) {
-        kryos.get().register(type);
-        LOG.info(String.format("Registered class for Kyro serialization: %s", type.getCanonicalName()));
+        codec.registerClass(type);
     }
 
     @Override
     public int size() {
+        return getBufferedCount() + getDiskSize();
+    }
+
+    private int getDiskSize() {
         return queue.queueSize();
     }
 
@@ -100,7 +360,7 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
      *
      */
     public boolean isEmpty() {
-        return queue.queueSize() == 0;
+        return size() == 0;
     }
 
     @Override
@@ -148,7 +408,45 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
      *
      */
     public boolean offer(UniversalIdIntQueueMessage message) {
-        return queue.queue(message);
+        if (isBuffered()) {
+            synchronized (buffer) {
+                if (bufferReserved > 0) {
+                    bufferReserved--;
+                }
+                if (buffer.size() < bufferSize && getDiskSize() == 0) {
+                    buffer.add(message);
+                    return true;
+                }
+            }
+        }
+        return spill(message);
+    }
+
+    /**
+     * Writes a message to RocksDB, bypassing the in-memory buffer.
+     * @param message message to queue
+     * @return <code>true</code> if the message was queued
+     */
+    public boolean spill(UniversalIdIntQueueMessage message) {
+        queue.queue(Collections.singletonList(message));
+        return true;
+    }
+
+    /**
+     * Offers several messages at once.  Messages written to RocksDB are
+     * written in one batch.
+     * @param messages messages to queue
+     * @return <code>true</code> if all messages were queued
+     */
+    public boolean offerAll(Collection<UniversalIdIntQueueMessage> messages) {
+        if (isBuffered()) {
+            for (UniversalIdIntQueueMessage message : messages) {
+                offer(message);
+            }
+        } else {
+            queue.queue(messages);
+        }
+        return true;
     }
 
     @Override
@@ -164,6 +462,19 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
      *
      */
     public UniversalIdIntQueueMessage poll() {
+        if (isBuffered()) {
+            UniversalIdIntQueueMessage buffered;
+            synchronized (buffer) {
+                buffered = buffer.poll();
+                if (buffered != null) {
+                    buffer.notifyAll();
+                }
+            }
+            if (buffered != null) {
+                bufferedInFlight.add(buffered);
+                return buffered;
+            }
+        }
         return queue.take();
     }
 
@@ -202,25 +513,76 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
         return false;
     }
 
-    /** @param message */
-    public static void finish(UniversalIdIntQueueMessage message) {
-        queue.finish(message);
+    /**
+     * Removes a message from the ephemeral queue once it has been processed.
+     * @param message processed message
+     */
+    public void finish(UniversalIdIntQueueMessage message) {
+        if (bufferedInFlight.remove(message)) {
+            // Never written to RocksDB
+            return;
+        }
+        queue.finish(Collections.singletonList(message));
+    }
+
+    /**
+     * Removes several processed messages from the ephemeral queue, in one
+     * RocksDB write batch.
+     * @param messages processed messages
+     */
+    public void finishAll(Collection<UniversalIdIntQueueMessage> messages) {
+        if (!bufferedInFlight.isEmpty()) {
+            List<UniversalIdIntQueueMessage> persisted = new ArrayList<>(messages.size());
+            for (UniversalIdIntQueueMessage message : messages) {
+                if (!bufferedInFlight.remove(message)) {
+                    persisted.add(message);
+                }
+            }
+            messages = persisted;
+        }
+        queue.finish(messages);
+    }
+
+    /**
+     * Writes all pending group commit writes to RocksDB.
+     * Does nothing when group commit is disabled.
+     */
+    public void flush() {
+        queue.flush();
     }
 
     public void finish(UniversalIdIntQueueMessage msg, Finish f) {
-        queue.finish(msg);
+        finish(msg);
     }
 
     public interface Finish {
         void finish(UniversalIdIntQueueMessage message);
     }
 
+    /**
+     * Releases this queue.  The underlying RocksDB storage is closed once
+     * every queue instance sharing it has been destroyed.  Queued messages
+     * are kept on disk.
+     */
     public void destroy() {
-        queue.destroy();
+        spillBuffer();
+        flush();
+        synchronized (OPEN_QUEUES) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            SharedQueue shared = OPEN_QUEUES.get(storageDir);
+            if (shared != null && --shared.references == 0) {
+                OPEN_QUEUES.remove(storageDir);
+                shared.queue.close();
+                LOG.info(String.format("Closed persistent queue \"%s\" in: %s", queueName, storageDir));
+            }
+        }
     }
 
     public int getQueueSize() {
-        return queue.queueSize();
+        return size();
     }
 
     public int getEphemeralSize() {
@@ -228,44 +590,94 @@ public class PersistentQueue extends AbstractQueue<UniversalIdIntQueueMessage> {
     }
 
     public void requeuAll() {
-        for(IQueueMessage msg : queue.getOrphanMessages(0)) {
-            queue.requeueSilent(msg);
-            queue.finish(msg);
-        }
+        requeueOrphans(msg -> true);
     }
 
     /**
-     *
-     * @param messages
+     * Puts messages left on the ephemeral queue back to the queue, except
+     * those rejected by the given filter, which are removed instead.
+     * @param filter whether a message should be requeued
+     */
+    public void requeueOrphans(Predicate<IQueueMessage<?, ?>> filter) {
+        queue.requeueOrphans(filter);
+    }
+
+    /**
+     * Puts the given messages from the ephemeral queue back to the queue,
+     * in one RocksDB write batch.  Buffered messages are written to RocksDB.
+     * @param messages messages to requeue
      */
-    public void requeuAll(Collection<IQueueMessage> messages) {
-        for(IQueueMessage msg : queue.getOrphanMessages(0)) {
-            queue.requeueSilent(msg);
-            queue.finish(msg);
+    public void requeuAll(Collection<? extends IQueueMessage<?, ?>> messages) {
+        List<UniversalIdIntQueueMessage> persisted = new ArrayList<>(messages.size());
+        List<UniversalIdIntQueueMessage> buffered = new ArrayList<>();
+        for(IQueueMessage<?, ?> msg : messages) {
+            if (bufferedInFlight.remove(msg)) {
+                buffered.add((UniversalIdIntQueueMessage) msg);
+            } else {
+                persisted.add((UniversalIdIntQueueMessage) msg);
+            }
+        }
+        queue.requeue(persisted);
+        if (!buffered.isEmpty()) {
+            queue.queue(buffered);
         }
     }
 
     /**
      * Put a message from the ephemeral queue back to the queue.
+     * Buffered messages are written to RocksDB.
      * @param message
      */
-    public void requeue(IQueueMessage message) {
-        queue.requeueSilent(message);
+    public void requeue(IQueueMessage<?, ?> message) {
+        if (bufferedInFlight.remove(message)) {
+            spill((UniversalIdIntQueueMessage) message);
+            return;
+        }
+        queue.requeue(Collections.singletonList(
+                (UniversalIdIntQueueMessage) message));
     }
 
-    public static byte[] serialize(ICommitOperation operation) {
+    // Writes buffered messages to RocksDB so they survive a restart
+    private void spillBuffer() {
+        if (!isBuffered()) {
+            return;
+        }
+        List<UniversalIdIntQueueMessage> messages;
+        synchronized (buffer) {
+            messages = new ArrayList<>(buffer);
+            buffer.clear();
+            buffer.notifyAll();
+        }
+        queue.queue(messages);
+        if (!messages.isEmpty()) {
+            LOG.info(String.format("Wrote %s buffered messages of queue \"%s\" to disk.",
+                    messages.size(), queueName));
+        }
+    }
 
-        OutputStream outputStream = new ByteArrayOutputStream();
-        Output output = new Output(outputStream);
-        kryos.get().writeClassAndObject(output, operation);
-        output.close();
-        return ((ByteArrayOutputStream) outputStream).toByteArray();
+    /**
+     * Encodes an operation with this queue codec.
+     * @param operation the operation to encode
+     * @return encoded operation
+     */
+    public byte[] encode(ICommitOperation operation) {
+        return codec.encode(operation);
+    }
+
+    /**
+     * Decodes an operation with this queue codec.
+     * @param content encoded operation
+     * @return decoded operation
+     */
+    public ICommitOperation decode(byte[] content) {
+        return codec.decode(content);
     }
 
-    public static ICommitOperation deserialize(byte[] content) {
-        InputStream inputStream = new ByteArrayInputStream(content);
-        Input input = new Input(inputStream);
-        ICommitOperation operation = (ICommitOperation) kryos.get().readClassAndObject(input);
-        return operation;
+    private static class SharedQueue {
+        private final RocksDbQueueStore queue;
+        private int references;
+        private SharedQueue(RocksDbQueueStore queue) {
+            this.queue = queue;
+        }
     }
 }
@@ -0,0 +1,459 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+/**
+ * Decides if and when a failed commit should be tried again.  The delay
+ * before a retry grows exponentially from the initial delay, up to the
+ * maximum delay.  A random part of each delay (the jitter) is removed so
+ * that many committers failing at the same time (e.g. when the target
+ * repository restarts) do not all retry at the same time.
+ *
+ * <p>Retries stop once the maximum number of retries is reached, once
+ * waiting for the next retry would exceed the maximum elapsed time, or
+ * when the failure is not retryable.  When "retry-on" exception types
+ * are set, only failures of (or caused by) these types are retried.
+ * Otherwise, all failures are.
+ *
+ * <p>With {@link #execute(Runnable, ScheduledExecutorService)}, retries
+ * are scheduled instead of blocking the calling thread.
+ *
+ * <p>Committers supporting retry policies should allow this inner
+ * configuration:
+ *
+ * <pre>
+ *  &lt;retryPolicy&gt;
+ *      &lt;maxRetries&gt;(max number of retries, default 3)&lt;/maxRetries&gt;
+ *      &lt;initialDelay&gt;(delay before first retry, default 1 second)&lt;/initialDelay&gt;
+ *      &lt;maxDelay&gt;(largest delay between retries, default 1 minute)&lt;/maxDelay&gt;
+ *      &lt;multiplier&gt;(delay multiplier after each retry, default 2)&lt;/multiplier&gt;
+ *      &lt;jitter&gt;
+ *          (fraction of each delay randomly removed, between 0 and 1,
+ *           default 0.5)
+ *      &lt;/jitter&gt;
+ *      &lt;maxElapsedTime&gt;
+ *          (max time spent retrying since the first attempt,
+ *           default 0 for no limit)
+ *      &lt;/maxElapsedTime&gt;
+ *      &lt;retryOn&gt;
+ *          (comma-separated exception class names, default retries all)
+ *      &lt;/retryOn&gt;
+ *  &lt;/retryPolicy&gt;
+ * </pre>
+ *
+ * <p>This class is thread-safe once configured.
+ * @since 2.1.3
+ */
+public class RetryPolicy implements IXMLConfigurable {
+
+    private static final Logger LOG = LogManager.getLogger(RetryPolicy.class);
+
+    /** Default maximum number of retries. */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    /** Default delay before the first retry, in milliseconds. */
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    /** Default maximum delay between retries, in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+    /** Default delay multiplier. */
+    public static final float DEFAULT_MULTIPLIER = 2f;
+    /** Default jitter. */
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long initialDelay = DEFAULT_INITIAL_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private float multiplier = DEFAULT_MULTIPLIER;
+    private float jitter = DEFAULT_JITTER;
+    private long maxElapsedTime;
+    private final List<Class<? extends Throwable>> retryOn = 
+            new ArrayList<>();
+
+    /**
+     * Creates a retry policy waiting the same fixed time between retries,
+     * without jitter.
+     * @param maxRetries maximum number of retries
+     * @param delay delay between retries, in milliseconds
+     * @return retry policy
+     */
+    public static RetryPolicy fixed(int maxRetries, long delay) {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(maxRetries);
+        policy.setInitialDelay(delay);
+        policy.setMaxDelay(delay);
+        policy.setMultiplier(1f);
+        policy.setJitter(0f);
+        return policy;
+    }
+
+    /**
+     * Runs an action, retrying it according to this policy when it fails.
+     * The first attempt is made on the calling thread.  Retries are
+     * scheduled on the given scheduler, so no thread is blocked while
+     * waiting between attempts.
+     * @param action action to run
+     * @param scheduler scheduler running retries
+     * @return a future completed when an attempt succeeds, or completed
+     *         exceptionally with the last failure when retries stop
+     */
+    public CompletableFuture<Void> execute(
+            Runnable action, ScheduledExecutorService scheduler) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        attempt(action, scheduler, future, 0, System.currentTimeMillis());
+        return future;
+    }
+
+    private void attempt(Runnable action, ScheduledExecutorService scheduler,
+            CompletableFuture<Void> future, int retry, long start) {
+        try {
+            action.run();
+            future.complete(null);
+        } catch (RuntimeException e) {
+            long delay = nextDelay(e, retry + 1, 
+                    System.currentTimeMillis() - start);
+            if (delay < 0) {
+                future.completeExceptionally(e);
+                return;
+            }
+            LOG.error(String.format("Attempt %s failed, retrying in %sms.",
+                    retry + 1, delay), e);
+            try {
+                scheduler.schedule(() -> attempt(action, scheduler, future, 
+                        retry + 1, start), delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException rejected) {
+                e.addSuppressed(rejected);
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Gets how long to wait before the given retry, or -1 if the failure
+     * should not be retried.
+     * @param failure the last failure
+     * @param retry retry number, starting at 1
+     * @param elapsed time elapsed since the first attempt, in milliseconds
+     * @return delay in milliseconds, or -1
+     */
+    public long nextDelay(Throwable failure, int retry, long elapsed) {
+        if (retry > maxRetries || !isRetryable(failure)) {
+            return -1;
+        }
+        long delay = getDelay(retry);
+        if (maxElapsedTime > 0 && elapsed + delay > maxElapsedTime) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Gets the delay before the given retry, with jitter applied.
+     * @param retry retry number, starting at 1
+     * @return delay in milliseconds
+     */
+    public long getDelay(int retry) {
+        double delay = initialDelay * Math.pow(multiplier, retry - 1);
+        delay = Math.min(delay, maxDelay);
+        if (jitter > 0) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return Math.max(0, Math.round(delay));
+    }
+
+    /**
+     * Whether a failure can be retried.  Without "retry-on" exception
+     * types, all failures can be retried.
+     * @param failure the failure
+     * @return <code>true</code> if the failure can be retried
+     */
+    public boolean isRetryable(Throwable failure) {
+        if (retryOn.isEmpty()) {
+            return true;
+        }
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            for (Class<? extends Throwable> type : retryOn) {
+                if (type.isInstance(t)) {
+                    return true;
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the maximum number of retries.
+     * @return maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+    /**
+     * Sets the maximum number of retries. Default is 3.
+     * @param maxRetries maximum number of retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Gets the delay before the first retry, in milliseconds.
+     * @return initial delay
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+    /**
+     * Sets the delay before the first retry, in milliseconds.
+     * Default is 1 second.
+     * @param initialDelay initial delay
+     */
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    /**
+     * Gets the largest delay between two retries, in milliseconds.
+     * @return maximum delay
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+    /**
+     * Sets the largest delay between two retries, in milliseconds.
+     * Default is 1 minute.
+     * @param maxDelay maximum delay
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Gets the factor the delay is multiplied by after each retry.
+     * @return multiplier
+     */
+    public float getMultiplier() {
+        return multiplier;
+    }
+    /**
+     * Sets the factor the delay is multiplied by after each retry.
+     * Default is 2.
+     * @param multiplier multiplier
+     */
+    public void setMultiplier(float multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException(
+                    "Multiplier must be 1 or greater.");
+        }
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * Gets the fraction of each delay randomly removed.
+     * @return jitter
+     */
+    public float getJitter() {
+        return jitter;
+    }
+    /**
+     * Sets the fraction of each delay randomly removed, between 0 (no
+     * jitter) and 1 (delays anywhere between zero and the computed delay).
+     * Default is 0.5.
+     * @param jitter jitter
+     */
+    public void setJitter(float jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException(
+                    "Jitter must be between 0 and 1.");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Gets the maximum time spent retrying since the first attempt,
+     * in milliseconds.
+     * @return maximum elapsed time, or 0 for no limit
+     */
+    public long getMaxElapsedTime() {
+        return maxElapsedTime;
+    }
+    /**
+     * Sets the maximum time spent retrying since the first attempt,
+     * in milliseconds. Default is 0 (no limit).
+     * @param maxElapsedTime maximum elapsed time
+     */
+    public void setMaxElapsedTime(long maxElapsedTime) {
+        this.maxElapsedTime = maxElapsedTime;
+    }
+
+    /**
+     * Gets the exception types that can be retried.
+     * @return exception types (never <code>null</code>)
+     */
+    public List<Class<? extends Throwable>> getRetryOn() {
+        return Collections.unmodifiableList(retryOn);
+    }
+    /**
+     * Sets the exception types that can be retried.  A failure is retried
+     * if it, or one of its causes, is of one of these types.
+     * When none are set (default), all failures are retried.
+     * @param retryOn exception types
+     */
+    @SafeVarargs
+    public final void setRetryOn(Class<? extends Throwable>... retryOn) {
+        setRetryOn(Arrays.asList(retryOn));
+    }
+    /**
+     * Sets the exception types that can be retried.  A failure is retried
+     * if it, or one of its causes, is of one of these types.
+     * When none are set (default), all failures are retried.
+     * @param retryOn exception types
+     */
+    public void setRetryOn(List<Class<? extends Throwable>> retryOn) {
+        this.retryOn.clear();
+        if (retryOn != null) {
+            this.retryOn.addAll(retryOn);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void loadFromXML(Reader in) {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setMaxRetries(xml.getInt("maxRetries", maxRetries));
+        setInitialDelay(XMLConfigurationUtil.getDuration(
+                xml, "initialDelay", initialDelay));
+        setMaxDelay(XMLConfigurationUtil.getDuration(
+                xml, "maxDelay", maxDelay));
+        setMultiplier(xml.getFloat("multiplier", multiplier));
+        setJitter(xml.getFloat("jitter", jitter));
+        setMaxElapsedTime(XMLConfigurationUtil.getDuration(
+                xml, "maxElapsedTime", maxElapsedTime));
+        String[] types = XMLConfigurationUtil.getCSVStringArray(
+                xml, "retryOn");
+        if (types != null) {
+            List<Class<? extends Throwable>> classes = new ArrayList<>();
+            for (String type : types) {
+                try {
+                    classes.add((Class<? extends Throwable>) 
+                            Class.forName(type.trim()));
+                } catch (ClassNotFoundException e) {
+                    throw new CommitterException(
+                            "Unknown retry-on exception type: " + type, e);
+                }
+            }
+            setRetryOn(classes);
+        }
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("retryPolicy");
+            writer.writeElementInteger("maxRetries", maxRetries);
+            writer.writeElementLong("initialDelay", initialDelay);
+            writer.writeElementLong("maxDelay", maxDelay);
+            writer.writeElementFloat("multiplier", multiplier);
+            writer.writeElementFloat("jitter", jitter);
+            writer.writeElementLong("maxElapsedTime", maxElapsedTime);
+            writer.writeElementString("retryOn", retryOnNames());
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    String retryOnNames() {
+        List<String> names = new ArrayList<>();
+        for (Class<? extends Throwable> type : retryOn) {
+            names.add(type.getName());
+        }
+        return StringUtils.join(names, ',');
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RetryPolicy)) {
+            return false;
+        }
+        RetryPolicy castOther = (RetryPolicy) other;
+        return new EqualsBuilder()
+                .append(maxRetries, castOther.maxRetries)
+                .append(initialDelay, castOther.initialDelay)
+                .append(maxDelay, castOther.maxDelay)
+                .append(multiplier, castOther.multiplier)
+                .append(jitter, castOther.jitter)
+                .append(maxElapsedTime, castOther.maxElapsedTime)
+                .append(retryOn, castOther.retryOn)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(maxRetries)
+                .append(initialDelay)
+                .append(maxDelay)
+                .append(multiplier)
+                .append(jitter)
+                .append(maxElapsedTime)
+                .append(retryOn)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("maxRetries", maxRetries)
+                .append("initialDelay", initialDelay)
+                .append("maxDelay", maxDelay)
+                .append("multiplier", multiplier)
+                .append("jitter", jitter)
+                .append("maxElapsedTime", maxElapsedTime)
+                .append("retryOn", retryOn)
+                .toString();
+    }
+}
@@ -0,0 +1,473 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.DBOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import com.github.ddth.queue.impl.universal.UniversalIdIntQueueMessage;
+
+/**
+ * RocksDB storage of a {@link PersistentQueue}.  Queued messages are kept
+ * in a "queue" column family, keyed by an increasing sequence number.
+ * Taken messages are moved to an "ephemeral" column family until
+ * finished, so those left there when the JVM dies can be requeued.
+ *
+ * <p>Every write (queue, take, finish, requeue) goes through a RocksDB
+ * {@link WriteBatch}.  Without group commit, each call is written on its
+ * own batch before returning.  With a group commit size greater than one,
+ * calls are added to a shared pending batch, written once that many
+ * messages are pending or once the maximum delay has elapsed, whichever
+ * comes first.  Pending messages can be taken before they are written.
+ * Writes can be synced to disk (fsync) at the cost of throughput.
+ */
+final class RocksDbQueueStore {
+
+    private static final Logger LOG =
+            LogManager.getLogger(RocksDbQueueStore.class);
+
+    private static final String QUEUE_FAMILY = "queue";
+    private static final String EPHEMERAL_FAMILY = "ephemeral";
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    private final File directory;
+    private final int groupCommitSize;
+
+    private final DBOptions options;
+    private final WriteOptions writeOptions;
+    private final List<ColumnFamilyHandle> families = new ArrayList<>();
+    private final RocksDB db;
+    private final ColumnFamilyHandle queueFamily;
+    private final ColumnFamilyHandle ephemeralFamily;
+    private ScheduledExecutorService flusher;
+
+    // Writes pending group commit, and the number of messages they cover
+    private WriteBatch pending = new WriteBatch();
+    private int pendingCount;
+    // Values of queued messages not yet written, or being written
+    private NavigableMap<Long, byte[]> pendingQueued = new TreeMap<>();
+    private NavigableMap<Long, byte[]> flushingQueued =
+            Collections.emptyNavigableMap();
+    // Serializes batch writes, so they are applied in order
+    private final Object flushLock = new Object();
+
+    // Next key to queue, and next key to take
+    private long nextKey;
+    private long cursor;
+    // Keys put back to the queue behind the cursor, taken first
+    private final TreeSet<Long> requeued = new TreeSet<>();
+    // Taken messages and their keys, by identity
+    private final Map<UniversalIdIntQueueMessage, Long> taken =
+            new IdentityHashMap<>();
+    private int queueSize;
+    private int ephemeralSize;
+    private boolean closed;
+
+    RocksDbQueueStore(File directory, int groupCommitSize,
+            long groupCommitMaxDelay, boolean syncWrites) {
+        this.directory = directory;
+        this.groupCommitSize = groupCommitSize;
+        options = new DBOptions()
+                .setCreateIfMissing(true)
+                .setCreateMissingColumnFamilies(true);
+        writeOptions = new WriteOptions().setSync(syncWrites);
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(new ColumnFamilyDescriptor(
+                RocksDB.DEFAULT_COLUMN_FAMILY));
+        descriptors.add(new ColumnFamilyDescriptor(bytes(QUEUE_FAMILY)));
+        descriptors.add(new ColumnFamilyDescriptor(bytes(EPHEMERAL_FAMILY)));
+        try {
+            FileUtils.forceMkdir(directory);
+            db = RocksDB.open(options, directory.getAbsolutePath(),
+                    descriptors, families);
+        } catch (Exception e) {
+            close(options, writeOptions);
+            throw new CommitterException(
+                    "Cannot open persistent queue storage: " + directory, e);
+        }
+        queueFamily = families.get(1);
+        ephemeralFamily = families.get(2);
+
+        long lastKey = -1;
+        try (RocksIterator it = db.newIterator(queueFamily)) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                queueSize++;
+                lastKey = Math.max(lastKey, toKey(it.key()));
+            }
+        }
+        try (RocksIterator it = db.newIterator(ephemeralFamily)) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                ephemeralSize++;
+                lastKey = Math.max(lastKey, toKey(it.key()));
+            }
+        }
+        nextKey = lastKey + 1;
+
+        if (isGroupCommit() && groupCommitMaxDelay > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "persistent-queue-flusher-"
+                        + directory.getName());
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly,
+                    groupCommitMaxDelay, groupCommitMaxDelay,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean isGroupCommit() {
+        return groupCommitSize > 1;
+    }
+
+    /**
+     * Queues messages, in the given order.
+     * @param messages messages to queue
+     */
+    void queue(Collection<UniversalIdIntQueueMessage> messages) {
+        synchronized (this) {
+            ensureOpen();
+            for (UniversalIdIntQueueMessage message : messages) {
+                long key = nextKey++;
+                byte[] value = message.getContent();
+                put(queueFamily, key, value);
+                pendingQueued.put(key, value);
+                queueSize++;
+            }
+            pendingCount += messages.size();
+        }
+        flushIfFull();
+    }
+
+    /**
+     * Takes the oldest queued message, moving it to the ephemeral storage.
+     * @return a message, or <code>null</code> if the queue is empty
+     */
+    UniversalIdIntQueueMessage take() {
+        UniversalIdIntQueueMessage message;
+        synchronized (this) {
+            ensureOpen();
+            Long key = requeued.pollFirst();
+            if (key == null) {
+                key = nextQueuedKey();
+                if (key == null) {
+                    return null;
+                }
+                cursor = key + 1;
+            }
+            byte[] value = queuedValue(key);
+            delete(queueFamily, key);
+            put(ephemeralFamily, key, value);
+            pendingQueued.remove(key);
+            pendingCount++;
+            queueSize--;
+            ephemeralSize++;
+            message = UniversalIdIntQueueMessage.newInstance();
+            message.setContent(value);
+            taken.put(message, key);
+        }
+        flushIfFull();
+        return message;
+    }
+
+    /**
+     * Removes taken messages from the ephemeral storage.  Messages not
+     * taken from this store are ignored.
+     * @param messages processed messages
+     */
+    void finish(Collection<UniversalIdIntQueueMessage> messages) {
+        synchronized (this) {
+            ensureOpen();
+            for (UniversalIdIntQueueMessage message : messages) {
+                Long key = taken.remove(message);
+                if (key != null) {
+                    delete(ephemeralFamily, key);
+                    pendingCount++;
+                    ephemeralSize--;
+                }
+            }
+        }
+        flushIfFull();
+    }
+
+    /**
+     * Puts taken messages back to the queue, where they are taken again
+     * before messages queued after them.  Messages not taken from this
+     * store are ignored.
+     * @param messages messages to requeue
+     */
+    void requeue(Collection<UniversalIdIntQueueMessage> messages) {
+        synchronized (this) {
+            ensureOpen();
+            for (UniversalIdIntQueueMessage message : messages) {
+                Long key = taken.remove(message);
+                if (key != null) {
+                    moveToQueue(key, message.getContent());
+                }
+            }
+        }
+        flushIfFull();
+    }
+
+    /**
+     * Puts messages left on the ephemeral storage by a previous run back
+     * to the queue, except those rejected by the given filter, which are
+     * removed instead.
+     * @param filter whether a message should be requeued
+     */
+    void requeueOrphans(
+            Predicate<? super UniversalIdIntQueueMessage> filter) {
+        flush();
+        synchronized (this) {
+            ensureOpen();
+            Set<Long> current = new HashSet<>(taken.values());
+            try (RocksIterator it = db.newIterator(ephemeralFamily)) {
+                for (it.seekToFirst(); it.isValid(); it.next()) {
+                    long key = toKey(it.key());
+                    if (current.contains(key)) {
+                        continue;
+                    }
+                    UniversalIdIntQueueMessage message =
+                            UniversalIdIntQueueMessage.newInstance();
+                    message.setContent(it.value());
+                    if (filter.test(message)) {
+                        moveToQueue(key, it.value());
+                    } else {
+                        delete(ephemeralFamily, key);
+                        pendingCount++;
+                        ephemeralSize--;
+                    }
+                }
+            }
+        }
+        flush();
+    }
+
+    // Must be called while holding this store lock
+    private void moveToQueue(long key, byte[] value) {
+        delete(ephemeralFamily, key);
+        put(queueFamily, key, value);
+        pendingQueued.put(key, value);
+        if (key < cursor) {
+            requeued.add(key);
+        }
+        pendingCount++;
+        ephemeralSize--;
+        queueSize++;
+    }
+
+    synchronized int queueSize() {
+        return queueSize;
+    }
+
+    synchronized int ephemeralSize() {
+        return ephemeralSize;
+    }
+
+    /**
+     * Writes pending writes to RocksDB.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            WriteBatch batch;
+            int count;
+            synchronized (this) {
+                if (closed || pendingCount == 0) {
+                    return;
+                }
+                batch = pending;
+                count = pendingCount;
+                pending = new WriteBatch();
+                pendingCount = 0;
+                flushingQueued = pendingQueued;
+                pendingQueued = new TreeMap<>();
+            }
+            // Written outside the store lock so producers and consumers
+            // are not blocked by I/O.
+            try {
+                db.write(writeOptions, batch);
+            } catch (RocksDBException e) {
+                throw new CommitterException(
+                        "Cannot write to persistent queue: " + directory, e);
+            } finally {
+                batch.close();
+                synchronized (this) {
+                    flushingQueued = Collections.emptyNavigableMap();
+                }
+            }
+            if (LOG.isDebugEnabled() && isGroupCommit()) {
+                LOG.debug(String.format(
+                        "Group commit wrote %s messages to: %s",
+                        count, directory));
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush persistent queue: " + directory, e);
+        }
+    }
+
+    private void flushIfFull() {
+        boolean full;
+        synchronized (this) {
+            full = pendingCount >= groupCommitSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes pending writes and closes RocksDB.
+     */
+    void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        synchronized (flushLock) {
+            try {
+                flush();
+            } finally {
+                closeStorage();
+            }
+        }
+    }
+
+    private void closeStorage() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.close();
+        }
+        for (ColumnFamilyHandle family : families) {
+            family.close();
+        }
+        db.close();
+        close(options, writeOptions);
+    }
+
+    // Must be called while holding this store lock
+    private void ensureOpen() {
+        if (closed) {
+            throw new CommitterException(
+                    "Persistent queue is closed: " + directory);
+        }
+    }
+
+    // Must be called while holding this store lock
+    private Long nextQueuedKey() {
+        Long key = null;
+        try (RocksIterator it = db.newIterator(queueFamily)) {
+            it.seek(toBytes(cursor));
+            if (it.isValid()) {
+                key = toKey(it.key());
+            }
+        }
+        key = min(key, flushingQueued.ceilingKey(cursor));
+        return min(key, pendingQueued.ceilingKey(cursor));
+    }
+
+    // Must be called while holding this store lock
+    private byte[] queuedValue(long key) {
+        byte[] value = pendingQueued.get(key);
+        if (value == null) {
+            value = flushingQueued.get(key);
+        }
+        if (value == null) {
+            try {
+                value = db.get(queueFamily, toBytes(key));
+            } catch (RocksDBException e) {
+                throw new CommitterException(
+                        "Cannot read from persistent queue: " + directory, e);
+            }
+        }
+        return value;
+    }
+
+    private void put(ColumnFamilyHandle family, long key, byte[] value) {
+        pending.put(family, toBytes(key), value);
+    }
+
+    private void delete(ColumnFamilyHandle family, long key) {
+        pending.remove(family, toBytes(key));
+    }
+
+    private static Long min(Long a, Long b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null ? a : Math.min(a, b);
+    }
+
+    // Big-endian, so keys sort in numeric order
+    private static byte[] toBytes(long key) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(key).array();
+    }
+
+    private static long toKey(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private static byte[] bytes(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void close(AutoCloseable... closeables) {
+        for (AutoCloseable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                LOG.warn("Could not close RocksDB resource.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,780 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Log-structured storage of queued operations.  Instead of creating
+ * several files per document, operations are appended as records to
+ * rolling segment files, and whole segments are deleted once all their
+ * records are committed.
+ *
+ * <p>Each segment is made of three files sharing the same sequence
+ * number:</p>
+ * <ul>
+ *   <li><b>.seg</b>: the records (reference, metadata and content).</li>
+ *   <li><b>.idx</b>: the offset of each complete record in the segment
+ *       (8 bytes per record).  A record is only visible once indexed,
+ *       so a record partially written when the JVM died is discarded.</li>
+ *   <li><b>.ack</b>: the position of each committed record (4 bytes per
+ *       record), so they are not committed again after a restart.</li>
+ * </ul>
+ *
+ * <p>A new segment is started once the current one reaches the maximum
+ * segment size.  Records are taken in the order they were appended.
+ * Records taken by a failed commit are taken again by the next one.</p>
+ *
+ * <p>Content is read before a record is appended (in memory up to 1MB,
+ * in a temporary file beyond), so the log is only locked while
+ * reserving space for the record.  Records are written concurrently
+ * and indexed as they complete.</p>
+ *
+ * <p>One instance exists per directory within a JVM.  A directory must
+ * not be shared by several JVMs.</p>
+ * @since 2.1.3
+ */
+public final class SegmentLog {
+
+    private static final Logger LOG = LogManager.getLogger(SegmentLog.class);
+
+    /** Default maximum segment size in bytes (64MB). */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    static final String EXTENSION_SEGMENT = ".seg";
+    static final String EXTENSION_INDEX = ".idx";
+    static final String EXTENSION_ACK = ".ack";
+
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int STAGE_MEMORY_SIZE = 1024 * 1024;
+    static final String EXTENSION_STAGED = ".tmp";
+
+    private static final Map<File, SegmentLog> LOGS = new HashMap<>();
+
+    private final File directory;
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+    // Segments in append order, the last one being written to
+    private final List<Segment> segments = new ArrayList<>();
+    // Next record to take
+    private Segment takeSegment;
+    private int takePosition;
+    // Records of failed commits, taken first
+    private final Deque<Record> retries = new ArrayDeque<>();
+
+    private SegmentLog(File directory) {
+        this.directory = directory;
+        open();
+    }
+
+    /**
+     * Gets the segment log of a directory.
+     * @param directory log directory
+     * @return segment log
+     */
+    public static SegmentLog get(File directory) {
+        File dir = directory.getAbsoluteFile();
+        synchronized (LOGS) {
+            SegmentLog log = LOGS.get(dir);
+            if (log == null) {
+                log = new SegmentLog(dir);
+                LOGS.put(dir, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Gets the directory holding the segments.
+     * @return directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the size in bytes after which a new segment is started.
+     * @return maximum segment size
+     */
+    public synchronized long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+    /**
+     * Sets the size in bytes after which a new segment is started.
+     * @param maxSegmentSize maximum segment size
+     */
+    public synchronized void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Appends a document addition.
+     * @param reference document reference
+     * @param content document content
+     * @param metadata document metadata
+     */
+    public void add(
+            String reference, InputStream content, Properties metadata) {
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        try {
+            metadata.store(meta, "");
+            append(TYPE_ADD, reference, meta.toByteArray(), content);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot queue document addition.  Ref: " + reference, e);
+        }
+    }
+
+    /**
+     * Appends a document removal.
+     * @param reference document reference
+     */
+    public void remove(String reference) {
+        try {
+            append(TYPE_DELETE, reference, new byte[0], null);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot queue document removal.  Ref: " + reference, e);
+        }
+    }
+
+    // Only reserving space for the record is done while locked: content
+    // is read before, and the record written after
+    private void append(byte type, String reference,
+            byte[] metadata, InputStream content) throws IOException {
+        try (StagedContent staged = new StagedContent()) {
+            if (content != null) {
+                staged.stage(content, directory);
+            }
+            byte[] ref = reference.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(
+                    Integer.BYTES * 2 + 1 + ref.length + metadata.length
+                    + Long.BYTES);
+            header.put(type);
+            header.putInt(ref.length);
+            header.put(ref);
+            header.putInt(metadata.length);
+            header.put(metadata);
+            header.putLong(staged.length);
+            header.flip();
+
+            Segment segment;
+            long start;
+            synchronized (this) {
+                segment = writeSegment();
+                start = segment.reserve(header.remaining() + staged.length);
+            }
+            boolean written = false;
+            try {
+                long position = start;
+                while (header.hasRemaining()) {
+                    position += segment.channel.write(header, position);
+                }
+                staged.writeTo(segment.channel, position);
+                written = true;
+            } finally {
+                completeWrite(segment, start, written);
+            }
+        }
+    }
+
+    private synchronized void completeWrite(
+            Segment segment, long start, boolean written) throws IOException {
+        segment.pendingWrites--;
+        if (written) {
+            // Indexing the record makes it visible
+            segment.addRecord(start);
+        } else {
+            deleteIfCommitted(segment);
+        }
+    }
+
+    /**
+     * Takes the next records to commit, in the order they were appended.
+     * Taken records are committed by deleting their operation, and must
+     * be released once the commit is over.
+     * @param max maximum number of records to take
+     * @return taken operations (possibly empty)
+     */
+    public synchronized List<ICommitOperation> take(int max) {
+        List<ICommitOperation> ops = new ArrayList<>();
+        try {
+            while (ops.size() < max && !retries.isEmpty()) {
+                Record record = retries.poll();
+                if (!record.segment.isAcked(record.position)) {
+                    ops.add(record.read());
+                }
+            }
+            while (ops.size() < max && takeSegment != null) {
+                if (takePosition >= takeSegment.recordCount()) {
+                    int next = segments.indexOf(takeSegment) + 1;
+                    if (next >= segments.size()) {
+                        break;
+                    }
+                    takeSegment = segments.get(next);
+                    takePosition = 0;
+                    continue;
+                }
+                if (!takeSegment.isAcked(takePosition)) {
+                    ops.add(new Record(takeSegment, takePosition).read());
+                }
+                takePosition++;
+            }
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot read queued operations from " + directory, e);
+        }
+        return ops;
+    }
+
+    /**
+     * Releases operations taken from this log once their commit is over.
+     * Operations of a failed commit not deleted are taken again by the
+     * next commit.
+     * @param operations taken operations
+     * @param failed <code>true</code> if the commit failed
+     */
+    public synchronized void release(
+            Collection<ICommitOperation> operations, boolean failed) {
+        if (!failed) {
+            return;
+        }
+        List<Record> failedRecords = new ArrayList<>();
+        for (ICommitOperation op : operations) {
+            Record record = ((RecordOperation) op).record();
+            if (!record.segment.isAcked(record.position)) {
+                failedRecords.add(record);
+            }
+        }
+        for (int i = failedRecords.size() - 1; i >= 0; i--) {
+            retries.addFirst(failedRecords.get(i));
+        }
+    }
+
+    /**
+     * Gets the number of records not yet committed.
+     * @return record count
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.recordCount() - segment.ackCount;
+        }
+        return size;
+    }
+
+    private synchronized void ack(Record record) {
+        Segment segment = record.segment;
+        if (!segments.contains(segment)) {
+            // Segment already fully committed and deleted
+            return;
+        }
+        try {
+            segment.ack(record.position);
+            deleteIfCommitted(segment);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot acknowledge committed record in " + segment, e);
+        }
+    }
+
+    // Deletes a segment no longer written to once all its records
+    // are committed
+    private void deleteIfCommitted(Segment segment) throws IOException {
+        if (segment != segments.get(segments.size() - 1)
+                && segment.pendingWrites == 0
+                && segment.ackCount == segment.recordCount()) {
+            if (takeSegment == segment) {
+                takeSegment = segments.get(segments.indexOf(segment) + 1);
+                takePosition = 0;
+            }
+            segments.remove(segment);
+            segment.delete();
+        }
+    }
+
+    // Segment to write to, starting a new one when full
+    private Segment writeSegment() throws IOException {
+        Segment last = segments.isEmpty()
+                ? null : segments.get(segments.size() - 1);
+        if (last != null && last.writePosition < maxSegmentSize) {
+            return last;
+        }
+        long sequence = last == null ? 1 : last.sequence + 1;
+        FileUtils.forceMkdir(directory);
+        Segment segment = new Segment(directory, sequence);
+        segments.add(segment);
+        if (takeSegment == null) {
+            takeSegment = segment;
+            takePosition = 0;
+        }
+        if (last != null && last.pendingWrites == 0
+                && last.ackCount == last.recordCount()) {
+            // Already fully committed while being written to
+            if (takeSegment == last) {
+                takeSegment = segment;
+                takePosition = 0;
+            }
+            segments.remove(last);
+            last.delete();
+        }
+        return segment;
+    }
+
+    private void open() {
+        // Content staged when the JVM stopped was never appended
+        File[] staged = directory.listFiles((FileFilter) f ->
+                f.getName().endsWith(EXTENSION_STAGED));
+        if (staged != null) {
+            for (File file : staged) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+        File[] files = directory.listFiles((FileFilter) f ->
+                f.getName().endsWith(EXTENSION_SEGMENT));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        try {
+            for (File file : files) {
+                long sequence = Long.parseLong(StringUtils.removeEnd(
+                        file.getName(), EXTENSION_SEGMENT));
+                Segment segment = new Segment(directory, sequence);
+                if (segment.ackCount == segment.recordCount()
+                        && file != files[files.length - 1]) {
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new CommitterException(
+                    "Cannot open segment log: " + directory, e);
+        }
+        if (!segments.isEmpty()) {
+            takeSegment = segments.get(0);
+        }
+        LOG.info(String.format("Opened segment log %s with %s segments "
+                + "and %s uncommitted records.",
+                directory, segments.size(), size()));
+    }
+
+    //--- Inner classes --------------------------------------------------------
+
+    private static class Segment {
+        private final long sequence;
+        private final File segmentFile;
+        private final File indexFile;
+        private final File ackFile;
+        private final FileChannel channel;
+        private final FileChannel indexChannel;
+        private final FileChannel ackChannel;
+        private long[] offsets = new long[64];
+        private int recordCount;
+        private final BitSet acks = new BitSet();
+        private int ackCount;
+        // End of the space reserved for records, and records being written
+        private long writePosition;
+        private int pendingWrites;
+
+        Segment(File dir, long sequence) throws IOException {
+            this.sequence = sequence;
+            String base = String.format("%020d", sequence);
+            segmentFile = new File(dir, base + EXTENSION_SEGMENT);
+            indexFile = new File(dir, base + EXTENSION_INDEX);
+            ackFile = new File(dir, base + EXTENSION_ACK);
+            channel = FileChannel.open(segmentFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            ackChannel = FileChannel.open(ackFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            load();
+        }
+
+        private void load() throws IOException {
+            // Ignore partially written index entries and records
+            long indexSize = indexChannel.size() / Long.BYTES * Long.BYTES;
+            ByteBuffer idx = readFully(indexChannel, 0, (int) indexSize);
+            while (idx.hasRemaining()) {
+                long offset = idx.getLong();
+                if (offset >= channel.size()) {
+                    break;
+                }
+                putOffset(offset);
+            }
+            indexChannel.truncate((long) recordCount * Long.BYTES);
+            indexChannel.position(indexChannel.size());
+            // Records are indexed as they complete, not in offset order.
+            // Space reserved after the last record was never indexed.
+            long last = -1;
+            for (int i = 0; i < recordCount; i++) {
+                last = Math.max(last, offsets[i]);
+            }
+            if (last >= 0) {
+                channel.truncate(last + recordLength(last));
+            } else {
+                channel.truncate(0);
+            }
+            writePosition = channel.size();
+            long ackSize = ackChannel.size() / Integer.BYTES * Integer.BYTES;
+            ackChannel.truncate(ackSize);
+            ackChannel.position(ackSize);
+            ByteBuffer ack = readFully(ackChannel, 0, (int) ackSize);
+            while (ack.hasRemaining()) {
+                int position = ack.getInt();
+                if (position < recordCount && !acks.get(position)) {
+                    acks.set(position);
+                    ackCount++;
+                }
+            }
+        }
+
+        private long recordLength(long offset) throws IOException {
+            ByteBuffer buf = readFully(channel, offset + 1, Integer.BYTES);
+            long position = offset + 1 + Integer.BYTES + buf.getInt();
+            buf = readFully(channel, position, Integer.BYTES);
+            position += Integer.BYTES + buf.getInt();
+            buf = readFully(channel, position, Long.BYTES);
+            position += Long.BYTES + buf.getLong();
+            return position - offset;
+        }
+
+        long reserve(long length) {
+            long start = writePosition;
+            writePosition += length;
+            pendingWrites++;
+            return start;
+        }
+
+        void addRecord(long offset) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+            buf.putLong(offset).flip();
+            while (buf.hasRemaining()) {
+                indexChannel.write(buf);
+            }
+            putOffset(offset);
+        }
+
+        private void putOffset(long offset) {
+            if (recordCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[recordCount++] = offset;
+        }
+
+        int recordCount() {
+            return recordCount;
+        }
+
+        boolean isAcked(int position) {
+            return acks.get(position);
+        }
+
+        void ack(int position) throws IOException {
+            if (acks.get(position)) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
+            buf.putInt(position).flip();
+            while (buf.hasRemaining()) {
+                ackChannel.write(buf);
+            }
+            acks.set(position);
+            ackCount++;
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            indexChannel.close();
+            ackChannel.close();
+            Files.deleteIfExists(segmentFile.toPath());
+            Files.deleteIfExists(indexFile.toPath());
+            Files.deleteIfExists(ackFile.toPath());
+        }
+
+        @Override
+        public String toString() {
+            return segmentFile.toString();
+        }
+    }
+
+    // Content read before appending its record, in memory up to a limit
+    // and then in a temporary file
+    private static final class StagedContent implements Closeable {
+        private final MemoryBuffer memory = new MemoryBuffer();
+        private File file;
+        private long length;
+
+        void stage(InputStream content, File dir) throws IOException {
+            OutputStream out = memory;
+            try {
+                byte[] buf = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buf)) != -1) {
+                    if (file == null 
+                            && memory.size() + read > STAGE_MEMORY_SIZE) {
+                        FileUtils.forceMkdir(dir);
+                        file = File.createTempFile(
+                                "content-", EXTENSION_STAGED, dir);
+                        out = new BufferedOutputStream(
+                                new FileOutputStream(file), COPY_BUFFER_SIZE);
+                        memory.writeTo(out);
+                        memory.reset();
+                    }
+                    out.write(buf, 0, read);
+                    length += read;
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        void writeTo(FileChannel channel, long position) throws IOException {
+            if (file == null) {
+                ByteBuffer buf = memory.toByteBuffer();
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+                return;
+            }
+            try (FileChannel in = FileChannel.open(
+                    file.toPath(), StandardOpenOption.READ)) {
+                long done = 0;
+                while (done < length) {
+                    done += channel.transferFrom(
+                            in, position + done, length - done);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (file != null) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private static final class MemoryBuffer extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static ByteBuffer readFully(
+            FileChannel channel, long position, int length)
+                    throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of segment.");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private final class Record {
+        private final Segment segment;
+        private final int position;
+        Record(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+        ICommitOperation read() throws IOException {
+            long offset = segment.offsets[position];
+            ByteBuffer buf = readFully(
+                    segment.channel, offset, 1 + Integer.BYTES);
+            byte type = buf.get();
+            int refLength = buf.getInt();
+            buf = readFully(segment.channel,
+                    offset + 1 + Integer.BYTES, refLength + Integer.BYTES);
+            byte[] ref = new byte[refLength];
+            buf.get(ref);
+            String reference = new String(ref, StandardCharsets.UTF_8);
+            if (type == TYPE_DELETE) {
+                return new DeleteOperation(this, reference);
+            }
+            long metaOffset = offset + 1 + Integer.BYTES * 2 + refLength;
+            int metaLength = buf.getInt();
+            buf = readFully(segment.channel,
+                    metaOffset, metaLength + Long.BYTES);
+            byte[] meta = new byte[metaLength];
+            buf.get(meta);
+            Properties metadata = new Properties();
+            metadata.load(new ByteArrayInputStream(meta));
+            long contentLength = buf.getLong();
+            return new AddOperation(this, reference, metadata,
+                    metaOffset + metaLength + Long.BYTES, contentLength);
+        }
+        void ack() {
+            SegmentLog.this.ack(this);
+        }
+    }
+
+    private interface RecordOperation {
+        Record record();
+    }
+
+    private static final class AddOperation
+            implements IAddOperation, RecordOperation {
+        private static final long serialVersionUID = 1L;
+        private final transient Record record;
+        private final String reference;
+        private final Properties metadata;
+        private final long contentOffset;
+        private final long contentLength;
+        AddOperation(Record record, String reference, Properties metadata,
+                long contentOffset, long contentLength) {
+            this.record = record;
+            this.reference = reference;
+            this.metadata = metadata;
+            this.contentOffset = contentOffset;
+            this.contentLength = contentLength;
+        }
+        @Override
+        public Record record() {
+            return record;
+        }
+        @Override
+        public String getReference() {
+            return reference;
+        }
+        @Override
+        public Properties getMetadata() {
+            return metadata;
+        }
+        @Override
+        public InputStream getContentStream() {
+            return new RegionInputStream(
+                    record.segment.channel, contentOffset, contentLength);
+        }
+        @Override
+        public void delete() {
+            record.ack();
+        }
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                    .append("segment", record.segment)
+                    .append("position", record.position)
+                    .append("reference", reference)
+                    .toString();
+        }
+    }
+
+    private static final class DeleteOperation
+            implements IDeleteOperation, RecordOperation {
+        private static final long serialVersionUID = 1L;
+        private final transient Record record;
+        private final String reference;
+        DeleteOperation(Record record, String reference) {
+            this.record = record;
+            this.reference = reference;
+        }
+        @Override
+        public Record record() {
+            return record;
+        }
+        @Override
+        public String getReference() {
+            return reference;
+        }
+        @Override
+        public void delete() {
+            record.ack();
+        }
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                    .append("segment", record.segment)
+                    .append("position", record.position)
+                    .append("reference", reference)
+                    .toString();
+        }
+    }
+
+    // Reads a region of a segment without moving the channel position
+    private static final class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        RegionInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int max = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, max), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Caches document content so it can be read more than once, reusing
+ * memory across documents.  Content is kept in fixed-size chunks of memory
+ * taken from a pool shared by all documents of the cache.  Chunks are
+ * given back to the pool once content is released, and reused by the
+ * next documents instead of being garbage-collected.  Content bigger than
+ * the maximum document memory, or read while the pool is exhausted, is
+ * written to a temporary file instead ("spilled").
+ * This class is thread-safe.
+ * @since 2.1.3
+ */
+public class ContentCache {
+
+    /** Default maximum memory used by all cached documents (16 MB). */
+    public static final long DEFAULT_MAX_POOL_SIZE = 16 * FileUtils.ONE_MB;
+    /** Default maximum memory used by a single cached document (1 MB). */
+    public static final int DEFAULT_MAX_DOCUMENT_SIZE = (int) FileUtils.ONE_MB;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long maxPoolSize;
+    private final int maxDocumentSize;
+    private final File directory;
+
+    private final ArrayDeque<byte[]> freeChunks = new ArrayDeque<>();
+    private final int maxChunks;
+    private int allocatedChunks;
+
+    private final AtomicLong documentCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /**
+     * Creates a content cache with default sizes, spilling content to
+     * the system temporary directory.
+     */
+    public ContentCache() {
+        this(DEFAULT_MAX_POOL_SIZE, DEFAULT_MAX_DOCUMENT_SIZE, null);
+    }
+    /**
+     * Creates a content cache.
+     * @param maxPoolSize maximum memory used by all cached documents
+     * @param maxDocumentSize maximum memory used by a single document
+     * @param directory where to spill bigger content, or <code>null</code>
+     *        for the system temporary directory
+     */
+    public ContentCache(
+            long maxPoolSize, int maxDocumentSize, File directory) {
+        super();
+        this.maxPoolSize = maxPoolSize;
+        this.maxDocumentSize = maxDocumentSize;
+        this.directory = directory;
+        this.maxChunks = (int) Math.min(
+                Integer.MAX_VALUE, Math.max(0, maxPoolSize / CHUNK_SIZE));
+    }
+
+    /**
+     * Gets the maximum memory used by all cached documents.
+     * @return maximum pool size in bytes
+     */
+    public long getMaxPoolSize() {
+        return maxPoolSize;
+    }
+    /**
+     * Gets the maximum memory used by a single cached document.
+     * @return maximum document size in bytes
+     */
+    public int getMaxDocumentSize() {
+        return maxDocumentSize;
+    }
+    /**
+     * Gets the directory where bigger content is spilled.
+     * @return directory or <code>null</code> for the system temporary 
+     *         directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the number of documents cached so far.
+     * @return document count
+     */
+    public long getDocumentCount() {
+        return documentCount.get();
+    }
+    /**
+     * Gets the number of documents cached so far whose content was
+     * written to a temporary file.
+     * @return spilled document count
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+    /**
+     * Gets the proportion of documents cached so far whose content was
+     * written to a temporary file, from 0 to 1.
+     * @return spill rate
+     */
+    public float getSpillRate() {
+        long documents = documentCount.get();
+        return documents == 0 ? 0 : spilledCount.get() / (float) documents;
+    }
+    /**
+     * Gets the memory currently held by cached documents.
+     * @return used memory in bytes
+     */
+    public synchronized long getUsedMemory() {
+        return (long) (allocatedChunks - freeChunks.size()) * CHUNK_SIZE;
+    }
+
+    /**
+     * Reads content so it can be read again by one or more readers.
+     * Each reader must release the returned content once done with it.
+     * @param content content to read (not closed)
+     * @param readers number of readers that will release the content
+     * @return cached content
+     * @throws IOException could not read or cache content
+     */
+    SharedContent read(InputStream content, int readers) throws IOException {
+        documentCount.incrementAndGet();
+        List<byte[]> chunks = new ArrayList<>();
+        long length = 0;
+        try {
+            while (length + CHUNK_SIZE <= maxDocumentSize) {
+                byte[] chunk = acquireChunk();
+                if (chunk == null) {
+                    break;
+                }
+                chunks.add(chunk);
+                int read = IOUtils.read(content, chunk);
+                length += read;
+                if (read < CHUNK_SIZE) {
+                    return new SharedContent(this, chunks, length, readers);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseChunks(chunks);
+            throw e;
+        }
+        return spill(chunks, content, readers);
+    }
+
+    // Chunks are all full
+    private SharedContent spill(List<byte[]> chunks, InputStream content,
+            int readers) throws IOException {
+        spilledCount.incrementAndGet();
+        File file = null;
+        try {
+            if (directory != null) {
+                FileUtils.forceMkdir(directory);
+                file = Files.createTempFile(directory.toPath(), 
+                        "committer-", ".content").toFile();
+            } else {
+                file = Files.createTempFile(
+                        "committer-", ".content").toFile();
+            }
+            try (OutputStream out = Files.newOutputStream(file.toPath())) {
+                for (byte[] chunk : chunks) {
+                    out.write(chunk);
+                }
+                IOUtils.copyLarge(content, out);
+            }
+            return new SharedContent(file, readers);
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(file);
+            throw e;
+        } finally {
+            releaseChunks(chunks);
+        }
+    }
+
+    private synchronized byte[] acquireChunk() {
+        byte[] chunk = freeChunks.pollFirst();
+        if (chunk == null && allocatedChunks < maxChunks) {
+            allocatedChunks++;
+            chunk = new byte[CHUNK_SIZE];
+        }
+        return chunk;
+    }
+
+    synchronized void releaseChunks(List<byte[]> chunks) {
+        for (byte[] chunk : chunks) {
+            freeChunks.addFirst(chunk);
+        }
+        chunks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("maxPoolSize", maxPoolSize)
+                .append("maxDocumentSize", maxDocumentSize)
+                .append("directory", directory)
+                .append("documentCount", documentCount)
+                .append("spilledCount", spilledCount)
+                .toString();
+    }
+}
@@ -21,6 +21,8 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -34,8 +36,9 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.commons.lang3.time.DateFormatUtils;
 
 import com.norconex.committer.core.CommitterException;
+import com.norconex.committer.core.FileQueueIndex;
 import com.norconex.committer.core.ICommitter;
-import com.norconex.commons.lang.TimeIdGenerator;
+import com.norconex.committer.core.SegmentLog;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
 import com.norconex.commons.lang.map.Properties;
@@ -53,8 +56,29 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  * <pre>
  *  &lt;committer class="com.norconex.committer.core.impl.FileSystemCommitter"&gt;
  *      &lt;directory&gt;(path where to save files)&lt;/directory&gt;
+ *      &lt;storage&gt;[FILES|SEGMENTS]&lt;/storage&gt;
+ *      &lt;maxSegmentSize&gt;
+ *          (size in bytes after which a new segment is started)
+ *      &lt;/maxSegmentSize&gt;
  *  &lt;/committer&gt;
  * </pre>
+ * <p>
+ * By default, each document is saved as separate files
+ * ({@link Storage#FILES}).  With {@link Storage#SEGMENTS}, documents are
+ * instead appended to a few rolling segment files of a {@link SegmentLog},
+ * avoiding the creation and deletion of several files per document.
+ * </p>
+ * <p>
+ * When used as a queue, reference files can also be recorded in a
+ * {@link FileQueueIndex} as they are written (see {@link #setIndexed(boolean)}),
+ * so they can be read back in order without walking the directory.
+ * </p>
+ * <p>
+ * This class is thread-safe.  Documents can be added from many threads
+ * at once without them waiting on each other: the directory of the
+ * current second is created once and shared, and file names are
+ * generated without locking.
+ * </p>
  * @author Pascal Essiembre
  */
 @SuppressWarnings("nls")
@@ -70,7 +94,28 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
     public static final String FILE_SUFFIX_ADD = "-add";
     public static final String FILE_SUFFIX_REMOVE = "-del";
     
+    /**
+     * How documents are stored.
+     * @since 2.1.3
+     */
+    public enum Storage {
+        /** Reference, metadata and content files per document. */
+        FILES,
+        /** Records appended to rolling segment files. */
+        SEGMENTS
+    }
+
+    // Unique and increasing file IDs: time in millis followed by 6 digits
+    private static final AtomicLong LAST_ID = new AtomicLong();
+    private static final long ID_TIME_MULTIPLIER = 1000000L;
+
     private String directory = DEFAULT_DIRECTORY;
+    private final AtomicReference<DateDir> dateDir = new AtomicReference<>();
+    private volatile FileQueueIndex queueIndex;
+    private volatile SegmentLog segmentLog;
+    private boolean indexed;
+    private Storage storage = Storage.FILES;
+    private long maxSegmentSize = SegmentLog.DEFAULT_MAX_SEGMENT_SIZE;
     
     /**
      * Gets the directory where files are committed.
@@ -86,10 +131,103 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
     public void setDirectory(String directory) {
         this.directory = directory;
     }
+
+    /**
+     * Gets whether queued reference files are recorded in a
+     * {@link FileQueueIndex}.
+     * @return <code>true</code> if indexed
+     * @since 2.1.3
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+    /**
+     * Sets whether queued reference files are recorded in a
+     * {@link FileQueueIndex}. Default is <code>false</code>.
+     * @param indexed <code>true</code> to index reference files
+     * @since 2.1.3
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Gets how documents are stored.
+     * @return storage
+     * @since 2.1.3
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+    /**
+     * Sets how documents are stored. Default is {@link Storage#FILES}.
+     * @param storage storage
+     * @since 2.1.3
+     */
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Gets the size in bytes after which a new segment is started, when
+     * using {@link Storage#SEGMENTS}.
+     * @return maximum segment size
+     * @since 2.1.3
+     */
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+    /**
+     * Sets the size in bytes after which a new segment is started, when
+     * using {@link Storage#SEGMENTS}. Default is 64MB.
+     * @param maxSegmentSize maximum segment size
+     * @since 2.1.3
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Gets the segment log of the committer directory, used with
+     * {@link Storage#SEGMENTS}.
+     * @return segment log
+     * @since 2.1.3
+     */
+    public SegmentLog getSegmentLog() {
+        File dir = new File(directory).getAbsoluteFile();
+        SegmentLog log = segmentLog;
+        if (log == null || !log.getDirectory().equals(dir)) {
+            log = SegmentLog.get(dir);
+            segmentLog = log;
+        }
+        if (log.getMaxSegmentSize() != maxSegmentSize) {
+            log.setMaxSegmentSize(maxSegmentSize);
+        }
+        return log;
+    }
+
+    /**
+     * Gets the index of the committer directory.
+     * @return queue index
+     * @since 2.1.3
+     */
+    public FileQueueIndex getQueueIndex() {
+        File dir = new File(directory).getAbsoluteFile();
+        FileQueueIndex index = queueIndex;
+        if (index == null || !index.getDirectory().equals(dir)) {
+            index = FileQueueIndex.get(dir);
+            queueIndex = index;
+        }
+        return index;
+    }
     
     @Override
     public void add(
             String reference, InputStream content, Properties metadata) {
+        if (storage == Storage.SEGMENTS) {
+            getSegmentLog().add(reference, content, metadata);
+            return;
+        }
         try {
             File targetFile = createFile(FILE_SUFFIX_ADD);
 
@@ -104,9 +242,7 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
             IOUtils.closeQuietly(out);
             
             // Reference
-            FileUtils.writeStringToFile(new File(
-                    targetFile.getAbsolutePath() + EXTENSION_REFERENCE),
-                    reference, StandardCharsets.UTF_8);
+            writeReference(targetFile, reference);
             
         } catch (IOException e) {
             throw new CommitterException(
@@ -115,17 +251,30 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
     }
     @Override
     public void remove(String reference, Properties metadata) {
+        if (storage == Storage.SEGMENTS) {
+            getSegmentLog().remove(reference);
+            return;
+        }
         try {
             File targetFile = createFile(FILE_SUFFIX_REMOVE);
-            FileUtils.writeStringToFile(new File(
-                    targetFile.getAbsolutePath() + EXTENSION_REFERENCE),
-                    reference, StandardCharsets.UTF_8);
+            writeReference(targetFile, reference);
         } catch (IOException e) {
             throw new CommitterException(
                     "Cannot queue document removal.  Ref: " + reference, e);
         }
     }
 
+    // The reference file is written last, marking the operation complete
+    private void writeReference(File targetFile, String reference)
+            throws IOException {
+        File refFile = new File(
+                targetFile.getAbsolutePath() + EXTENSION_REFERENCE);
+        FileUtils.writeStringToFile(refFile, reference, StandardCharsets.UTF_8);
+        if (indexed) {
+            getQueueIndex().append(refFile);
+        }
+    }
+
     @Override
     public void commit() {
         //DO NOTHING
@@ -150,26 +299,63 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
         return new File(directory); 
     }
     
-    private synchronized File createFile(String suffix) throws IOException {
-        // Create date directory
-        File dateDir = new File(directory, DateFormatUtils.format(
-                System.currentTimeMillis(), "yyyy/MM-dd/hh/mm/ss"));
-        if (!dateDir.exists()) {
-            try {
-                FileUtils.forceMkdir(dateDir);
-            } catch (IOException e) {
-                throw new CommitterException(
-                        "Cannot create commit directory: " + dateDir, e); 
+    private File createFile(String suffix) throws IOException {
+        long now = System.currentTimeMillis();
+        return new File(dateDir(now), nextId(now) + suffix);
+    }
+
+    // Directory of the current second, created once by whichever thread
+    // first needs it.  Concurrent creation of the same directory is safe.
+    private File dateDir(long now) {
+        long second = now / 1000;
+        DateDir current = dateDir.get();
+        if (current != null && current.second == second
+                && current.parent.equals(directory)) {
+            return current.dir;
+        }
+        File dir = new File(directory, 
+                DateFormatUtils.format(now, "yyyy/MM-dd/hh/mm/ss"));
+        try {
+            FileUtils.forceMkdir(dir);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot create commit directory: " + dir, e); 
+        }
+        dateDir.set(new DateDir(directory, second, dir));
+        return dir;
+    }
+
+    private static long nextId(long now) {
+        long candidate = now * ID_TIME_MULTIPLIER;
+        while (true) {
+            long last = LAST_ID.get();
+            long id = Math.max(last + 1, candidate);
+            if (LAST_ID.compareAndSet(last, id)) {
+                return id;
             }
         }
-        // Create file
-        return new File(dateDir, TimeIdGenerator.next() + suffix);
+    }
+
+    private static final class DateDir {
+        private final String parent;
+        private final long second;
+        private final File dir;
+        private DateDir(String parent, long second, File dir) {
+            this.parent = parent;
+            this.second = second;
+            this.dir = dir;
+        }
     }
 
     @Override
     public void loadFromXML(Reader in) {
         XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
         setDirectory(xml.getString("directory", DEFAULT_DIRECTORY));
+        String storageName = xml.getString("storage", null);
+        if (storageName != null) {
+            setStorage(Storage.valueOf(storageName.trim().toUpperCase()));
+        }
+        setMaxSegmentSize(xml.getLong("maxSegmentSize", maxSegmentSize));
     }
     @Override
     public void saveToXML(Writer out) throws IOException {
@@ -178,6 +364,8 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
             writer.writeStartElement("committer");
             writer.writeAttribute("class", getClass().getCanonicalName());
             writer.writeElementString("directory", directory);
+            writer.writeElementString("storage", storage.name());
+            writer.writeElementLong("maxSegmentSize", maxSegmentSize);
             writer.writeEndElement();
             writer.flush();
             writer.close();
@@ -190,6 +378,8 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
     public int hashCode() {
         HashCodeBuilder hashCodeBuilder = new HashCodeBuilder();
         hashCodeBuilder.append(directory);
+        hashCodeBuilder.append(storage);
+        hashCodeBuilder.append(maxSegmentSize);
         return hashCodeBuilder.toHashCode();
     }
     
@@ -207,6 +397,8 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
         FileSystemCommitter other = (FileSystemCommitter) obj;
         EqualsBuilder equalsBuilder = new EqualsBuilder();
         equalsBuilder.append(directory, other.directory);
+        equalsBuilder.append(storage, other.storage);
+        equalsBuilder.append(maxSegmentSize, other.maxSegmentSize);
         return equalsBuilder.isEquals();
     }
 
@@ -215,6 +407,9 @@ public class FileSystemCommitter implements ICommitter, IXMLConfigurable {
         ToStringBuilder builder = 
                 new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
         builder.append("directory", directory);
+        builder.append("indexed", indexed);
+        builder.append("storage", storage);
+        builder.append("maxSegmentSize", maxSegmentSize);
         return builder.toString();
     }
 }
@@ -19,17 +19,19 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.zip.GZIPOutputStream;
 
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -38,7 +40,6 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.json.JSONObject;
 
 import com.norconex.committer.core.CommitterException;
 import com.norconex.committer.core.ICommitter;
@@ -91,6 +92,10 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  *   {"doc-del": {"reference": "repeated as necessary"}}
  * ]
  * </pre> 
+ * <p>
+ * <b>Since 2.1.3</b>, documents are streamed to files as they are read,
+ * without holding their content in memory.
+ * </p>
  * 
  * <h3>XML configuration usage:</h3>
  * <pre>
@@ -116,6 +121,9 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
     /** Default committer directory */
     public static final String DEFAULT_DIRECTORY = "committer-json";
 
+    // Number of content characters read and escaped at once
+    private static final int CHUNK_SIZE = 8192;
+
     //TODO Support oneFilePerThread?
 
     private String directory = DEFAULT_DIRECTORY;
@@ -242,10 +250,6 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
             }
         }
         mainJSON.init();
-        int indent = 0;
-        if (pretty) {
-            indent = 2;
-        }
         
         Writer writer = mainJSON.writer;
 
@@ -256,15 +260,22 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
                     writer.write("\n  ");
                 }
             }
-            JSONObject doc = new JSONObject();
-            doc.put("reference", reference);
-            doc.put("metadata", metadata);
-            doc.put("content", 
-                    IOUtils.toString(content, StandardCharsets.UTF_8).trim());
-            
-            JSONObject docAdd = new JSONObject();
-            docAdd.put("doc-add", doc);
-            writer.write(docAdd.toString(indent));
+            writer.write("{\"doc-add\":");
+            writer.write(pretty ? " {" : "{");
+            writeKey(writer, "reference", 2);
+            writeString(writer, reference);
+            if (metadata != null) {
+                writer.write(',');
+                writeKey(writer, "metadata", 2);
+                writeMetadata(writer, metadata);
+            }
+            if (content != null) {
+                writer.write(',');
+                writeKey(writer, "content", 2);
+                writeContent(writer, content);
+            }
+            newLine(writer, 1);
+            writer.write("}}");
         } catch (IOException e) {
             mainJSON.close();
             throw new CommitterException("Cannot write to JSON file: " 
@@ -296,12 +307,6 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
         
         jsonFile.init();
         
-        
-        int indent = 0;
-        if (pretty) {
-            indent = 2;
-        }
-        
         Writer writer = jsonFile.writer;
         try {
             if (jsonFile.docCount > 0) {
@@ -310,13 +315,11 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
                     writer.write("\n  ");
                 }
             }
-            JSONObject doc = new JSONObject();
-            doc.put("reference", reference);
-
-            JSONObject docDel = new JSONObject();
-            docDel.put("doc-del", doc);
-            
-            writer.write(docDel.toString(indent));
+            writer.write("{\"doc-del\":");
+            writer.write(pretty ? " {" : "{");
+            writeKey(writer, "reference", -1);
+            writeString(writer, reference);
+            writer.write("}}");
         } catch (IOException e) {
             jsonFile.close();
             throw new CommitterException("Cannot write to JSON file: " 
@@ -328,6 +331,144 @@ public class JSONFileCommitter implements ICommitter, IXMLConfigurable  {
         }
     }
 
+    private void writeMetadata(Writer writer, Properties metadata) 
+            throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Entry<String, List<String>> en : metadata.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeKey(writer, en.getKey(), 3);
+            List<String> values = en.getValue();
+            writer.write('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                if (values.size() > 1) {
+                    newLine(writer, 4);
+                }
+                writeString(writer, values.get(i));
+            }
+            if (values.size() > 1) {
+                newLine(writer, 3);
+            }
+            writer.write(']');
+        }
+        newLine(writer, 2);
+        writer.write('}');
+    }
+
+    // Escapes content as it is read, dropping leading and trailing
+    // blanks (like String#trim()) without reading it all first
+    private void writeContent(Writer writer, InputStream content) 
+            throws IOException {
+        Reader reader = new InputStreamReader(content, StandardCharsets.UTF_8);
+        char[] chunk = new char[CHUNK_SIZE];
+        StringBuilder blanks = new StringBuilder();
+        boolean started = false;
+        writer.write('"');
+        int length;
+        while ((length = reader.read(chunk)) != -1) {
+            int start = 0;
+            if (!started) {
+                while (start < length && chunk[start] <= ' ') {
+                    start++;
+                }
+                if (start == length) {
+                    continue;
+                }
+                started = true;
+            }
+            int end = length;
+            while (end > start && chunk[end - 1] <= ' ') {
+                end--;
+            }
+            if (end > start) {
+                // Blanks were not trailing after all
+                writeEscaped(writer, blanks.toString());
+                blanks.setLength(0);
+                writeEscaped(writer, chunk, start, end);
+            }
+            blanks.append(chunk, end, length - end);
+        }
+        writer.write('"');
+    }
+
+    // Level is the indent level when pretty, or -1 to only add a space
+    private void writeKey(Writer writer, String key, int level) 
+            throws IOException {
+        if (level < 0) {
+            if (pretty) {
+                writer.write(' ');
+            }
+        } else {
+            newLine(writer, level);
+        }
+        writeString(writer, key);
+        writer.write(pretty ? ": " : ":");
+    }
+    private void newLine(Writer writer, int level) throws IOException {
+        if (pretty) {
+            writer.write('\n');
+            writer.write(StringUtils.repeat(' ', level * 2));
+        }
+    }
+    private static void writeString(Writer writer, String value) 
+            throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        writeEscaped(writer, value);
+        writer.write('"');
+    }
+    private static void writeEscaped(Writer writer, String value) 
+            throws IOException {
+        writeEscaped(writer, value.toCharArray(), 0, value.length());
+    }
+    // Writes characters not needing escaping in runs
+    private static void writeEscaped(
+            Writer writer, char[] chars, int start, int end) 
+                    throws IOException {
+        int run = start;
+        for (int i = start; i < end; i++) {
+            String escaped = escape(chars[i]);
+            if (escaped != null) {
+                writer.write(chars, run, i - run);
+                writer.write(escaped);
+                run = i + 1;
+            }
+        }
+        writer.write(chars, run, end - run);
+    }
+    private static String escape(char ch) {
+        switch (ch) {
+        case '"':
+            return "\\\"";
+        case '\\':
+            return "\\\\";
+        case '\b':
+            return "\\b";
+        case '\t':
+            return "\\t";
+        case '\n':
+            return "\\n";
+        case '\f':
+            return "\\f";
+        case '\r':
+            return "\\r";
+        default:
+            if (ch < ' ' || ch == '\u2028' || ch == '\u2029') {
+                return String.format("\\u%04x", (int) ch);
+            }
+            return null;
+        }
+    }
+
     @Override
     public void commit() {
         if (mainJSON != null) {
@@ -14,6 +14,7 @@
  */
 package com.norconex.committer.core.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -21,6 +22,13 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -28,7 +36,6 @@ import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -36,11 +43,11 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.norconex.committer.core.CommitterException;
 import com.norconex.committer.core.ICommitter;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
 import com.norconex.commons.lang.io.CachedInputStream;
-import com.norconex.commons.lang.io.CachedStreamFactory;
 import com.norconex.commons.lang.map.Properties;
 
 /**
@@ -49,9 +56,42 @@ import com.norconex.commons.lang.map.Properties;
  * Every committing requests will be dispatched and handled by all nested 
  * committers defined (in the order they were added).
  * </p>
+ * <p>
+ * By default, nested committers are invoked one after the other, so each
+ * addition, removal and commit takes as long as all nested committers
+ * combined.  In parallel mode, each nested committer is invoked from its
+ * own thread instead, in the order requests were received.  Up to
+ * "bufferSize" requests can wait for each committer before adding
+ * documents blocks, so a slower committer only holds back the crawler
+ * once its buffer is full.  Content is read once and shared by all
+ * committers.  A failing committer does not prevent others from
+ * committing: its failures are logged and the first one is thrown
+ * when committing (since 2.1.3).
+ * </p>
+ * <p>
+ * Content read by more than one committer is cached in a
+ * {@link ContentCache} held by this committer, which reuses memory across
+ * documents.  Content bigger than the maximum cached document size, or
+ * added while the cache memory pool is full, is written to a temporary
+ * file in the cache directory (since 2.1.3).
+ * </p>
  * <h3>XML configuration usage:</h3>
  * <pre>
  *  &lt;committer class="com.norconex.committer.core.impl.MultiCommitter"&gt;
+ *      &lt;parallel&gt;[false|true]&lt;/parallel&gt;
+ *      &lt;bufferSize&gt;
+ *          (max requests waiting for each committer in parallel mode)
+ *      &lt;/bufferSize&gt;
+ *      &lt;maxCachePoolSize&gt;
+ *          (max bytes of content cached in memory, for all documents)
+ *      &lt;/maxCachePoolSize&gt;
+ *      &lt;maxCacheDocumentSize&gt;
+ *          (max bytes of content cached in memory for a single document)
+ *      &lt;/maxCacheDocumentSize&gt;
+ *      &lt;cacheDir&gt;
+ *          (where to write bigger content, default is the system
+ *           temporary directory)
+ *      &lt;/cacheDir&gt;
  *      &lt;committer class="(committer class)"&gt;
  *          (Commmitter-specific configuration here)
  *      &lt;/committer&gt;
@@ -84,7 +124,22 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
     private static final Logger LOG = 
             LogManager.getLogger(FileSystemCommitter.class);
     
+    /**
+     * Default maximum number of requests waiting for each committer
+     * in parallel mode.
+     * @since 2.1.3
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 100;
+
     private final List<ICommitter> committers = new ArrayList<>();
+    private boolean parallel;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private long maxCachePoolSize = ContentCache.DEFAULT_MAX_POOL_SIZE;
+    private int maxCacheDocumentSize = ContentCache.DEFAULT_MAX_DOCUMENT_SIZE;
+    private String cacheDir;
+    private ContentCache contentCache;
+    // One lane per committer in parallel mode, created on first use
+    private List<Lane> lanes;
 
     /**
      * Constructor.
@@ -104,15 +159,17 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
      * Adds one or more committers.
      * @param committer committers
      */
-    public void addCommitter(ICommitter... committer) {
+    public synchronized void addCommitter(ICommitter... committer) {
         this.committers.addAll(Arrays.asList(committer));
+        lanes = null;
     }
     /**
      * Removes one or more committers.
      * @param committer committers
      */
-    public void removeCommitter(ICommitter... committer) {
+    public synchronized void removeCommitter(ICommitter... committer) {
         this.committers.removeAll(Arrays.asList(committer));
+        lanes = null;
     }
     /**
      * Gets nested committers.
@@ -121,29 +178,214 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
     public List<ICommitter> getCommitters() {
         return new ArrayList<>(committers);
     }
-    
+
+    /**
+     * Gets whether nested committers are invoked in parallel.
+     * @return <code>true</code> if invoked in parallel
+     * @since 2.1.3
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+    /**
+     * Sets whether nested committers are invoked in parallel, each
+     * from its own thread.  Default is <code>false</code>.
+     * @param parallel <code>true</code> to invoke committers in parallel
+     * @since 2.1.3
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Gets the maximum number of requests waiting for each committer
+     * in parallel mode.
+     * @return buffer size
+     * @since 2.1.3
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    /**
+     * Sets the maximum number of requests waiting for each committer
+     * in parallel mode.  Default is 100.
+     * @param bufferSize buffer size
+     * @since 2.1.3
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        lanes = null;
+    }
+
+    /**
+     * Gets the maximum number of bytes of content cached in memory,
+     * for all documents.
+     * @return maximum cache pool size
+     * @since 2.1.3
+     */
+    public long getMaxCachePoolSize() {
+        return maxCachePoolSize;
+    }
+    /**
+     * Sets the maximum number of bytes of content cached in memory,
+     * for all documents.  Default is 16 MB.
+     * @param maxCachePoolSize maximum cache pool size
+     * @since 2.1.3
+     */
+    public synchronized void setMaxCachePoolSize(long maxCachePoolSize) {
+        this.maxCachePoolSize = maxCachePoolSize;
+        contentCache = null;
+    }
+
+    /**
+     * Gets the maximum number of bytes of content cached in memory for a
+     * single document.
+     * @return maximum cached document size
+     * @since 2.1.3
+     */
+    public int getMaxCacheDocumentSize() {
+        return maxCacheDocumentSize;
+    }
+    /**
+     * Sets the maximum number of bytes of content cached in memory for a
+     * single document.  Memory is used in 64 KB chunks: the size is
+     * rounded down to a multiple of 64 KB.  Default is 1 MB.
+     * @param maxCacheDocumentSize maximum cached document size
+     * @since 2.1.3
+     */
+    public synchronized void setMaxCacheDocumentSize(
+            int maxCacheDocumentSize) {
+        this.maxCacheDocumentSize = maxCacheDocumentSize;
+        contentCache = null;
+    }
+
+    /**
+     * Gets the directory where content too big to be cached in memory
+     * is written.
+     * @return cache directory or <code>null</code> for the system 
+     *         temporary directory
+     * @since 2.1.3
+     */
+    public String getCacheDir() {
+        return cacheDir;
+    }
+    /**
+     * Sets the directory where content too big to be cached in memory
+     * is written.  Default is the system temporary directory.
+     * @param cacheDir cache directory
+     * @since 2.1.3
+     */
+    public synchronized void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+        contentCache = null;
+    }
+
+    /**
+     * Gets the cache of content read by more than one committer, with
+     * statistics on cached documents.
+     * @return content cache
+     * @since 2.1.3
+     */
+    public synchronized ContentCache getContentCache() {
+        if (contentCache == null) {
+            contentCache = new ContentCache(maxCachePoolSize, 
+                    maxCacheDocumentSize, 
+                    cacheDir != null ? new File(cacheDir) : null);
+        }
+        return contentCache;
+    }
+
     @Override
     public void add(
             String reference, InputStream content, Properties metadata) {
-        
-        CachedInputStream cachedInputStream;
+        if (parallel) {
+            addInParallel(reference, content, metadata);
+            return;
+        }
+
+        if (committers.size() == 1) {
+            // Read once: no need to cache
+            committers.get(0).add(reference, content, metadata);
+            return;
+        }
         if (content instanceof CachedInputStream) {
-            cachedInputStream = (CachedInputStream) content;
-        } else {
-            CachedStreamFactory factory = new CachedStreamFactory(
-                    (int) FileUtils.ONE_MB, (int) FileUtils.ONE_MB);
-            cachedInputStream = factory.newInputStream(content);
+            CachedInputStream cachedInputStream = (CachedInputStream) content;
+            for (int i = 0; i < committers.size(); i++) {
+                ICommitter committer = committers.get(i);
+                committer.add(reference, cachedInputStream, metadata);
+                cachedInputStream.rewind();
+            }
+            return;
         }
-        
-        for (int i = 0; i < committers.size(); i++) {
-            ICommitter committer = committers.get(i);
-            committer.add(reference, cachedInputStream, metadata);
-            cachedInputStream.rewind();
+
+        SharedContent shared = cacheContent(reference, content, 1);
+        try {
+            for (int i = 0; i < committers.size(); i++) {
+                ICommitter committer = committers.get(i);
+                try (InputStream is = shared.newInputStream()) {
+                    committer.add(reference, is, metadata);
+                } catch (IOException e) {
+                    throw new CommitterException(
+                            "Cannot read content of: " + reference, e);
+                }
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    private SharedContent cacheContent(
+            String reference, InputStream content, int readers) {
+        try {
+            return getContentCache().read(content, readers);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot read content of: " + reference, e);
+        }
+    }
+
+    private void addInParallel(
+            String reference, InputStream content, Properties metadata) {
+        List<Lane> activeLanes = lanes();
+        if (activeLanes.isEmpty()) {
+            return;
+        }
+        SharedContent shared = 
+                cacheContent(reference, content, activeLanes.size());
+        int submitted = 0;
+        try {
+            for (Lane lane : activeLanes) {
+                Properties laneMetadata = copy(metadata);
+                lane.submit(() -> {
+                    try (InputStream is = shared.newInputStream()) {
+                        lane.committer.add(reference, is, laneMetadata);
+                    } catch (IOException e) {
+                        throw new CommitterException(
+                                "Cannot read content of: " + reference, e);
+                    } finally {
+                        shared.release();
+                    }
+                });
+                submitted++;
+            }
+        } finally {
+            // Lanes never given the content will not release it
+            for (int i = submitted; i < activeLanes.size(); i++) {
+                shared.release();
+            }
         }
     }
 
     @Override
     public void remove(String reference, Properties metadata) {
+        if (parallel) {
+            for (Lane lane : lanes()) {
+                Properties laneMetadata = copy(metadata);
+                lane.submit(() -> lane.committer.remove(
+                        reference, laneMetadata));
+            }
+            return;
+        }
         for (int i = 0; i < committers.size(); i++) {
             ICommitter committer = committers.get(i);
             committer.remove(reference, metadata);
@@ -152,14 +394,87 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
 
     @Override
     public void commit() {
+        if (parallel) {
+            commitInParallel();
+            return;
+        }
         for (ICommitter committer : committers) {
             committer.commit();
         }
+        logCacheStats();
+    }
+
+    private void logCacheStats() {
+        ContentCache cache = contentCache;
+        if (cache != null && LOG.isDebugEnabled()) {
+            LOG.debug(String.format(
+                    "Content cache: %s documents, %.1f%% spilled to disk.",
+                    cache.getDocumentCount(), cache.getSpillRate() * 100));
+        }
+    }
+
+    // Commits all committers at once and waits for them all, whether
+    // some failed or not
+    private void commitInParallel() {
+        List<Lane> activeLanes = lanes();
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (Lane lane : activeLanes) {
+            commits.add(lane.submit(lane.committer::commit));
+        }
+        CompletableFuture.allOf(
+                commits.toArray(new CompletableFuture[commits.size()])).join();
+        CommitterException failure = null;
+        for (Lane lane : activeLanes) {
+            RuntimeException e = lane.failure.getAndSet(null);
+            if (e == null) {
+                continue;
+            }
+            if (failure == null) {
+                failure = new CommitterException(
+                        "Committer failed: " + lane.committer, e);
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        logCacheStats();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private synchronized List<Lane> lanes() {
+        if (lanes == null) {
+            List<Lane> newLanes = new ArrayList<>(committers.size());
+            for (int i = 0; i < committers.size(); i++) {
+                newLanes.add(new Lane(committers.get(i), i, bufferSize));
+            }
+            lanes = newLanes;
+        }
+        return lanes;
+    }
+
+    // Committers may modify metadata they are given: each gets its own
+    private static Properties copy(Properties metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        Properties copy = new Properties();
+        for (Entry<String, List<String>> en : metadata.entrySet()) {
+            copy.put(en.getKey(), new ArrayList<>(en.getValue()));
+        }
+        return copy;
     }
 
     @Override
     public void loadFromXML(Reader in) throws IOException {
         XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setParallel(xml.getBoolean("parallel", isParallel()));
+        setBufferSize(xml.getInt("bufferSize", getBufferSize()));
+        setMaxCachePoolSize(
+                xml.getLong("maxCachePoolSize", getMaxCachePoolSize()));
+        setMaxCacheDocumentSize(
+                xml.getInt("maxCacheDocumentSize", getMaxCacheDocumentSize()));
+        setCacheDir(xml.getString("cacheDir", getCacheDir()));
         List<HierarchicalConfiguration> xmlCommitters = 
                 xml.configurationsAt("committer");
         for (HierarchicalConfiguration xmlCommitter : xmlCommitters) {
@@ -175,6 +490,23 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
             XMLStreamWriter writer = factory.createXMLStreamWriter(out);
             writer.writeStartElement("committer");
             writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeStartElement("parallel");
+            writer.writeCharacters(Boolean.toString(parallel));
+            writer.writeEndElement();
+            writer.writeStartElement("bufferSize");
+            writer.writeCharacters(Integer.toString(bufferSize));
+            writer.writeEndElement();
+            writer.writeStartElement("maxCachePoolSize");
+            writer.writeCharacters(Long.toString(maxCachePoolSize));
+            writer.writeEndElement();
+            writer.writeStartElement("maxCacheDocumentSize");
+            writer.writeCharacters(Integer.toString(maxCacheDocumentSize));
+            writer.writeEndElement();
+            if (cacheDir != null) {
+                writer.writeStartElement("cacheDir");
+                writer.writeCharacters(cacheDir);
+                writer.writeEndElement();
+            }
             for (ICommitter committer : committers) {
                 writer.flush();
                 if (!(committer instanceof IXMLConfigurable)) {
@@ -199,6 +531,11 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
         MultiCommitter castOther = (MultiCommitter) other;
         return new EqualsBuilder()
                 .append(committers, castOther.committers)
+                .append(parallel, castOther.parallel)
+                .append(bufferSize, castOther.bufferSize)
+                .append(maxCachePoolSize, castOther.maxCachePoolSize)
+                .append(maxCacheDocumentSize, castOther.maxCacheDocumentSize)
+                .append(cacheDir, castOther.cacheDir)
                 .isEquals();
     }
 
@@ -206,6 +543,11 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
     public int hashCode() {
         return new HashCodeBuilder()
                 .append(committers)
+                .append(parallel)
+                .append(bufferSize)
+                .append(maxCachePoolSize)
+                .append(maxCacheDocumentSize)
+                .append(cacheDir)
                 .toHashCode();
     }
 
@@ -213,6 +555,54 @@ public class MultiCommitter implements ICommitter, IXMLConfigurable {
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
                 .append("committers", committers)
+                .append("parallel", parallel)
+                .append("bufferSize", bufferSize)
+                .append("maxCachePoolSize", maxCachePoolSize)
+                .append("maxCacheDocumentSize", maxCacheDocumentSize)
+                .append("cacheDir", cacheDir)
                 .toString();
-    }    
+    }
+
+    // Invokes a committer from its own thread, in submission order
+    private static final class Lane {
+        private final ICommitter committer;
+        private final Semaphore permits;
+        private final ThreadPoolExecutor executor;
+        private final AtomicReference<RuntimeException> failure =
+                new AtomicReference<>();
+
+        private Lane(ICommitter committer, int index, int bufferSize) {
+            this.committer = committer;
+            this.permits = new Semaphore(bufferSize);
+            // The thread ends when idle, so unused lanes hold no thread
+            this.executor = new ThreadPoolExecutor(1, 1, 
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "multi-committer-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        // Blocks while the buffer is full
+        private CompletableFuture<Void> submit(Runnable task) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommitterException(
+                        "Interrupted while waiting for: " + committer, e);
+            }
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Committer failed: " + committer, e);
+                    failure.compareAndSet(null, e);
+                } finally {
+                    permits.release();
+                }
+            }, executor);
+        }
+    }
 }
@@ -0,0 +1,553 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.committer.core.CommitterException;
+import com.norconex.committer.core.ICommitter;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * <p>
+ * Sends each document to the committers of the routes it matches, based
+ * on its metadata values.  Unlike the {@link MultiCommitter}, committers
+ * only receive the documents meant for them.
+ * </p>
+ * <p>
+ * A route matches a document when any of its restrictions matches (or
+ * when it has no restriction).  A restriction matches when one of the
+ * values of a metadata field matches a regular expression (default), is
+ * equal to a value, or when the field simply exists.  Values are not
+ * case sensitive unless specified otherwise.  Routes are evaluated once
+ * per document, and a committer found in more than one matching route
+ * only gets the document once.  Documents matching no route are not
+ * committed.
+ * </p>
+ * <p>
+ * Deletions have no reliable metadata: they are sent to the committers
+ * of all routes.  Committing commits all committers, one after the other.
+ * </p>
+ * <h3>XML configuration usage:</h3>
+ * <pre>
+ *  &lt;committer class="com.norconex.committer.core.impl.RoutingCommitter"&gt;
+ *      &lt;route&gt;
+ *          &lt;restrictTo field="(name)" match="[regex|equals|exists]"
+ *                  caseSensitive="[false|true]"&gt;
+ *              (value or regular expression, ignored with "exists")
+ *          &lt;/restrictTo&gt;
+ *          (... repeat restrictTo as needed ...)
+ *          &lt;committer class="(committer class)"&gt;
+ *              (Commmitter-specific configuration here)
+ *          &lt;/committer&gt;
+ *      &lt;/route&gt;
+ *      (... repeat route as needed ...)
+ *  &lt;/committer&gt;
+ * </pre>
+ *
+ * <h4>Usage example:</h4>
+ * <p>
+ * The following commits news and blog pages in different locations,
+ * while PDFs go to a third one.
+ * </p>
+ * <pre>
+ *  &lt;committer class="com.norconex.committer.core.impl.RoutingCommitter"&gt;
+ *      &lt;route&gt;
+ *          &lt;restrictTo field="section" match="equals"&gt;news&lt;/restrictTo&gt;
+ *          &lt;restrictTo field="section" match="equals"&gt;blog&lt;/restrictTo&gt;
+ *          &lt;committer class="com.norconex.committer.core.impl.FileSystemCommitter"&gt;
+ *              &lt;directory&gt;/export/articles/&lt;/directory&gt;
+ *          &lt;/committer&gt;
+ *      &lt;/route&gt;
+ *      &lt;route&gt;
+ *          &lt;restrictTo field="document.contentType"&gt;application/pdf&lt;/restrictTo&gt;
+ *          &lt;committer class="com.norconex.committer.core.impl.FileSystemCommitter"&gt;
+ *              &lt;directory&gt;/export/pdfs/&lt;/directory&gt;
+ *          &lt;/committer&gt;
+ *      &lt;/route&gt;
+ *  &lt;/committer&gt;
+ * </pre>
+ * @since 2.1.3
+ */
+public class RoutingCommitter implements ICommitter, IXMLConfigurable {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(RoutingCommitter.class);
+
+    private final List<Route> routes = new ArrayList<>();
+    private ContentCache contentCache;
+
+    /**
+     * Constructor.
+     */
+    public RoutingCommitter() {
+        super();
+    }
+    /**
+     * Constructor.
+     * @param routes routes
+     */
+    public RoutingCommitter(List<Route> routes) {
+        this.routes.addAll(routes);
+    }
+
+    /**
+     * Adds one or more routes.
+     * @param route routes
+     */
+    public void addRoute(Route... route) {
+        this.routes.addAll(Arrays.asList(route));
+    }
+    /**
+     * Removes one or more routes.
+     * @param route routes
+     */
+    public void removeRoute(Route... route) {
+        this.routes.removeAll(Arrays.asList(route));
+    }
+    /**
+     * Gets routes.
+     * @return routes
+     */
+    public List<Route> getRoutes() {
+        return new ArrayList<>(routes);
+    }
+
+    @Override
+    public void add(
+            String reference, InputStream content, Properties metadata) {
+        List<ICommitter> targets = new ArrayList<>();
+        Set<ICommitter> seen = Collections.newSetFromMap(
+                new IdentityHashMap<ICommitter, Boolean>());
+        for (Route route : routes) {
+            if (route.matches(metadata) && seen.add(route.committer)) {
+                targets.add(route.committer);
+            }
+        }
+        if (targets.isEmpty()) {
+            LOG.debug("No route matching document: " + reference);
+            return;
+        }
+        if (targets.size() == 1) {
+            targets.get(0).add(reference, content, metadata);
+            return;
+        }
+        SharedContent shared;
+        try {
+            shared = contentCache().read(content, 1);
+        } catch (IOException e) {
+            throw new CommitterException(
+                    "Cannot read content of: " + reference, e);
+        }
+        try {
+            for (ICommitter committer : targets) {
+                try (InputStream is = shared.newInputStream()) {
+                    committer.add(reference, is, metadata);
+                } catch (IOException e) {
+                    throw new CommitterException(
+                            "Cannot read content of: " + reference, e);
+                }
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    @Override
+    public void remove(String reference, Properties metadata) {
+        for (ICommitter committer : committers()) {
+            committer.remove(reference, metadata);
+        }
+    }
+
+    @Override
+    public void commit() {
+        for (ICommitter committer : committers()) {
+            committer.commit();
+        }
+    }
+
+    // Distinct committers of all routes, in route order
+    private List<ICommitter> committers() {
+        List<ICommitter> committers = new ArrayList<>(routes.size());
+        Set<ICommitter> seen = Collections.newSetFromMap(
+                new IdentityHashMap<ICommitter, Boolean>());
+        for (Route route : routes) {
+            if (seen.add(route.committer)) {
+                committers.add(route.committer);
+            }
+        }
+        return committers;
+    }
+
+    private synchronized ContentCache contentCache() {
+        if (contentCache == null) {
+            contentCache = new ContentCache();
+        }
+        return contentCache;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        List<HierarchicalConfiguration> xmlRoutes = 
+                xml.configurationsAt("route");
+        for (HierarchicalConfiguration xmlRoute : xmlRoutes) {
+            List<Restriction> restrictions = new ArrayList<>();
+            for (HierarchicalConfiguration xmlRestrict
+                    : xmlRoute.configurationsAt("restrictTo")) {
+                restrictions.add(new Restriction(
+                        xmlRestrict.getString("[@field]"),
+                        Match.valueOf(xmlRestrict.getString(
+                                "[@match]", Match.REGEX.name())
+                                .trim().toUpperCase(Locale.ENGLISH)),
+                        xmlRestrict.getString("", null),
+                        xmlRestrict.getBoolean("[@caseSensitive]", false)));
+            }
+            ICommitter committer = XMLConfigurationUtil.newInstance(
+                    xmlRoute, "committer");
+            addRoute(new Route(committer, 
+                    restrictions.toArray(new Restriction[] {})));
+        }
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        try {
+            XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+            writer.writeStartElement("committer");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            for (Route route : routes) {
+                writer.writeStartElement("route");
+                for (Restriction restriction : route.restrictions) {
+                    writer.writeStartElement("restrictTo");
+                    writer.writeAttribute("field", restriction.field);
+                    writer.writeAttribute("match", 
+                            restriction.match.name().toLowerCase(
+                                    Locale.ENGLISH));
+                    writer.writeAttribute("caseSensitive", 
+                            Boolean.toString(restriction.caseSensitive));
+                    if (restriction.value != null) {
+                        writer.writeCharacters(restriction.value);
+                    }
+                    writer.writeEndElement();
+                }
+                // Closes the route start tag before writing directly
+                writer.writeCharacters("");
+                writer.flush();
+                if (!(route.committer instanceof IXMLConfigurable)) {
+                    LOG.error("Cannot save committer to XML as it does not "
+                            + "implement IXMLConfigurable: " 
+                            + route.committer);
+                } else {
+                    ((IXMLConfigurable) route.committer).saveToXML(out);
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof RoutingCommitter)) {
+            return false;
+        }
+        RoutingCommitter castOther = (RoutingCommitter) other;
+        return new EqualsBuilder()
+                .append(routes, castOther.routes)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(routes)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("routes", routes)
+                .toString();
+    }
+
+    /**
+     * How a restriction matches metadata field values.
+     */
+    public enum Match {
+        /** A value matches a regular expression. */
+        REGEX,
+        /** A value is equal to the restriction value. */
+        EQUALS,
+        /** The field has at least one value. */
+        EXISTS
+    }
+
+    /**
+     * A condition on the values of a metadata field.
+     */
+    public static final class Restriction {
+        private final String field;
+        private final Match match;
+        private final String value;
+        private final boolean caseSensitive;
+        private final Pattern pattern;
+
+        /**
+         * Creates a case-insensitive restriction.
+         * @param field metadata field name
+         * @param match how field values are matched
+         * @param value value or regular expression (ignored with
+         *        {@link Match#EXISTS})
+         */
+        public Restriction(String field, Match match, String value) {
+            this(field, match, value, false);
+        }
+        /**
+         * Creates a restriction.
+         * @param field metadata field name
+         * @param match how field values are matched
+         * @param value value or regular expression (ignored with
+         *        {@link Match#EXISTS})
+         * @param caseSensitive whether values are case sensitive
+         */
+        public Restriction(String field, Match match, String value, 
+                boolean caseSensitive) {
+            if (StringUtils.isBlank(field)) {
+                throw new IllegalArgumentException(
+                        "Restriction field cannot be blank.");
+            }
+            if (match != Match.EXISTS && value == null) {
+                throw new IllegalArgumentException(
+                        "Restriction value cannot be null for: " + field);
+            }
+            this.field = field;
+            this.match = match;
+            this.value = value;
+            this.caseSensitive = caseSensitive;
+            // Compiled once, used for every document
+            this.pattern = match == Match.REGEX ? Pattern.compile(value, 
+                    caseSensitive ? 0 
+                            : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                    : null;
+        }
+
+        /**
+         * Gets the metadata field name.
+         * @return field name
+         */
+        public String getField() {
+            return field;
+        }
+        /**
+         * Gets how field values are matched.
+         * @return match
+         */
+        public Match getMatch() {
+            return match;
+        }
+        /**
+         * Gets the value or regular expression.
+         * @return value
+         */
+        public String getValue() {
+            return value;
+        }
+        /**
+         * Gets whether values are case sensitive.
+         * @return <code>true</code> if case sensitive
+         */
+        public boolean isCaseSensitive() {
+            return caseSensitive;
+        }
+
+        /**
+         * Whether metadata matches this restriction.
+         * @param metadata document metadata
+         * @return <code>true</code> if matching
+         */
+        public boolean matches(Properties metadata) {
+            if (metadata == null) {
+                return false;
+            }
+            List<String> values = metadata.getStrings(field);
+            if (match == Match.EXISTS) {
+                return !values.isEmpty();
+            }
+            for (String v : values) {
+                if (v == null) {
+                    continue;
+                }
+                if (match == Match.REGEX) {
+                    if (pattern.matcher(v).matches()) {
+                        return true;
+                    }
+                } else if (caseSensitive 
+                        ? value.equals(v) : value.equalsIgnoreCase(v)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Restriction)) {
+                return false;
+            }
+            Restriction castOther = (Restriction) other;
+            return new EqualsBuilder()
+                    .append(field, castOther.field)
+                    .append(match, castOther.match)
+                    .append(value, castOther.value)
+                    .append(caseSensitive, castOther.caseSensitive)
+                    .isEquals();
+        }
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder()
+                    .append(field)
+                    .append(match)
+                    .append(value)
+                    .append(caseSensitive)
+                    .toHashCode();
+        }
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                    .append("field", field)
+                    .append("match", match)
+                    .append("value", value)
+                    .append("caseSensitive", caseSensitive)
+                    .toString();
+        }
+    }
+
+    /**
+     * A committer and the restrictions documents must match to be
+     * sent to it.
+     */
+    public static final class Route {
+        private final ICommitter committer;
+        private final List<Restriction> restrictions;
+
+        /**
+         * Creates a route.  Without restrictions, all documents match.
+         * @param committer committer documents are sent to
+         * @param restrictions restrictions, any of which must match
+         */
+        public Route(ICommitter committer, Restriction... restrictions) {
+            if (committer == null) {
+                throw new IllegalArgumentException(
+                        "Route committer cannot be null.");
+            }
+            this.committer = committer;
+            this.restrictions = Collections.unmodifiableList(
+                    new ArrayList<>(Arrays.asList(restrictions)));
+        }
+
+        /**
+         * Gets the committer documents are sent to.
+         * @return committer
+         */
+        public ICommitter getCommitter() {
+            return committer;
+        }
+        /**
+         * Gets the restrictions, any of which must match.
+         * @return restrictions
+         */
+        public List<Restriction> getRestrictions() {
+            return restrictions;
+        }
+
+        /**
+         * Whether metadata matches this route.
+         * @param metadata document metadata
+         * @return <code>true</code> if matching
+         */
+        public boolean matches(Properties metadata) {
+            if (restrictions.isEmpty()) {
+                return true;
+            }
+            for (Restriction restriction : restrictions) {
+                if (restriction.matches(metadata)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Route)) {
+                return false;
+            }
+            Route castOther = (Route) other;
+            return new EqualsBuilder()
+                    .append(committer, castOther.committer)
+                    .append(restrictions, castOther.restrictions)
+                    .isEquals();
+        }
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder()
+                    .append(committer)
+                    .append(restrictions)
+                    .toHashCode();
+        }
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                    .append("committer", committer)
+                    .append("restrictions", restrictions)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.committer.core.CommitterException;
+import com.norconex.committer.core.ICommitter;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * <p>
+ * Spreads documents across nested committers (shards), each document
+ * being sent to only one of them.  The shard is obtained by consistent
+ * hashing of the document reference, so additions and deletions of
+ * the same reference always go to the same shard.
+ * </p>
+ * <p>
+ * Each shard is given a number of virtual nodes on a hash ring (default
+ * is 100).  More virtual nodes spread documents more evenly between
+ * shards.  Virtual nodes are derived from shard positions: adding a
+ * shard at the end only moves about a "1/N" portion of references to the
+ * new shard.  Changing the order of shards moves most references.
+ * </p>
+ * <p>
+ * Committing commits all shards in parallel, and waits for all of them
+ * to complete whether some failed or not.
+ * </p>
+ * <h3>XML configuration usage:</h3>
+ * <pre>
+ *  &lt;committer class="com.norconex.committer.core.impl.ShardingCommitter"&gt;
+ *      &lt;virtualNodes&gt;
+ *          (number of hash ring nodes for each shard, default is 100)
+ *      &lt;/virtualNodes&gt;
+ *      &lt;committer class="(shard committer class)"&gt;
+ *          (Commmitter-specific configuration here)
+ *      &lt;/committer&gt;
+ *      (... repeat committer tag as needed ...)
+ *  &lt;/committer&gt;
+ * </pre>
+ * @since 2.1.3
+ */
+public class ShardingCommitter implements ICommitter, IXMLConfigurable {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(ShardingCommitter.class);
+
+    /** Default number of hash ring nodes for each shard. */
+    public static final int DEFAULT_VIRTUAL_NODES = 100;
+
+    private final List<ICommitter> committers = new ArrayList<>();
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    // Hash ring, created on first use
+    private NavigableMap<Long, ICommitter> ring;
+
+    /**
+     * Constructor.
+     */
+    public ShardingCommitter() {
+        super();
+    }
+    /**
+     * Constructor.
+     * @param committers shard committers
+     */
+    public ShardingCommitter(List<ICommitter> committers) {
+        this.committers.addAll(committers);
+    }
+
+    /**
+     * Adds one or more shard committers.
+     * @param committer committers
+     */
+    public synchronized void addCommitter(ICommitter... committer) {
+        this.committers.addAll(Arrays.asList(committer));
+        ring = null;
+    }
+    /**
+     * Removes one or more shard committers.
+     * @param committer committers
+     */
+    public synchronized void removeCommitter(ICommitter... committer) {
+        this.committers.removeAll(Arrays.asList(committer));
+        ring = null;
+    }
+    /**
+     * Gets shard committers.
+     * @return committers
+     */
+    public List<ICommitter> getCommitters() {
+        return new ArrayList<>(committers);
+    }
+
+    /**
+     * Gets the number of hash ring nodes for each shard.
+     * @return virtual nodes
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+    /**
+     * Sets the number of hash ring nodes for each shard.
+     * Default is 100.
+     * @param virtualNodes virtual nodes
+     */
+    public synchronized void setVirtualNodes(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException(
+                    "Virtual nodes must be greater than zero.");
+        }
+        this.virtualNodes = virtualNodes;
+        ring = null;
+    }
+
+    /**
+     * Gets the shard committer a reference is sent to.
+     * @param reference document reference
+     * @return shard committer
+     */
+    public ICommitter getShard(String reference) {
+        NavigableMap<Long, ICommitter> currentRing = ring();
+        if (currentRing.isEmpty()) {
+            throw new CommitterException(
+                    "No committer to send document to: " + reference);
+        }
+        Entry<Long, ICommitter> node = currentRing.ceilingEntry(
+                hash(reference));
+        if (node == null) {
+            node = currentRing.firstEntry();
+        }
+        return node.getValue();
+    }
+
+    @Override
+    public void add(
+            String reference, InputStream content, Properties metadata) {
+        getShard(reference).add(reference, content, metadata);
+    }
+
+    @Override
+    public void remove(String reference, Properties metadata) {
+        getShard(reference).remove(reference, metadata);
+    }
+
+    // Commits all shards at once and waits for them all, whether
+    // some failed or not
+    @Override
+    public void commit() {
+        List<ICommitter> shards = getCommitters();
+        if (shards.isEmpty()) {
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                shards.size(), r -> {
+            Thread thread = new Thread(
+                    r, "sharding-committer-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        try {
+            for (ICommitter shard : shards) {
+                commits.add(CompletableFuture.runAsync(
+                        shard::commit, executor));
+            }
+            CommitterException failure = null;
+            for (int i = 0; i < commits.size(); i++) {
+                try {
+                    commits.get(i).join();
+                } catch (RuntimeException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    LOG.error("Committer failed: " + shards.get(i), cause);
+                    if (failure == null) {
+                        failure = new CommitterException(
+                                "Committer failed: " + shards.get(i), cause);
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized NavigableMap<Long, ICommitter> ring() {
+        if (ring == null) {
+            NavigableMap<Long, ICommitter> newRing = new TreeMap<>();
+            for (int i = 0; i < committers.size(); i++) {
+                for (int j = 0; j < virtualNodes; j++) {
+                    newRing.put(hash("shard-" + i + "-" + j), 
+                            committers.get(i));
+                }
+            }
+            ring = newRing;
+        }
+        return ring;
+    }
+
+    // MD5 is stable across JVMs and spreads values well, unlike
+    // String#hashCode()
+    private static long hash(String value) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CommitterException("MD5 not supported.", e);
+        }
+        byte[] digest = md5.digest(value.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << Byte.SIZE) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setVirtualNodes(xml.getInt("virtualNodes", getVirtualNodes()));
+        List<HierarchicalConfiguration> xmlCommitters = 
+                xml.configurationsAt("committer");
+        for (HierarchicalConfiguration xmlCommitter : xmlCommitters) {
+            addCommitter((ICommitter) 
+                    XMLConfigurationUtil.newInstance(xmlCommitter));
+        }
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        try {
+            XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+            writer.writeStartElement("committer");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeStartElement("virtualNodes");
+            writer.writeCharacters(Integer.toString(virtualNodes));
+            writer.writeEndElement();
+            for (ICommitter committer : committers) {
+                writer.flush();
+                if (!(committer instanceof IXMLConfigurable)) {
+                    LOG.error("Cannot save committer to XML as it does not "
+                            + "implement IXMLConfigurable: " + committer);
+                } else {
+                    ((IXMLConfigurable) committer).saveToXML(out);
+                }
+            }
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof ShardingCommitter)) {
+            return false;
+        }
+        ShardingCommitter castOther = (ShardingCommitter) other;
+        return new EqualsBuilder()
+                .append(committers, castOther.committers)
+                .append(virtualNodes, castOther.virtualNodes)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(committers)
+                .append(virtualNodes)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("committers", committers)
+                .append("virtualNodes", virtualNodes)
+                .toString();
+    }
+}
@@ -0,0 +1,112 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Document content cached by a {@link ContentCache} and shared by several
+ * readers, each reading it with its own stream.  Content is held in
+ * memory chunks from the cache pool, or in a temporary file.  Chunks are
+ * given back to the pool, or the file deleted, once every reader released
+ * the content.
+ * @since 2.1.3
+ */
+final class SharedContent {
+
+    private final ContentCache cache;
+    private final List<byte[]> chunks;
+    private final long length;
+    private final File file;
+    private final AtomicInteger readers;
+
+    SharedContent(ContentCache cache, List<byte[]> chunks, long length, 
+            int readers) {
+        this.cache = cache;
+        this.chunks = chunks;
+        this.length = length;
+        this.file = null;
+        this.readers = new AtomicInteger(readers);
+    }
+    SharedContent(File file, int readers) {
+        this.cache = null;
+        this.chunks = null;
+        this.length = file.length();
+        this.file = file;
+        this.readers = new AtomicInteger(readers);
+    }
+
+    /**
+     * Whether the content is stored in a temporary file.
+     * @return <code>true</code> if stored in a file
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Gets the content length.
+     * @return length in bytes
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Opens a new stream over the whole content.  It must not be read
+     * after the content was released.
+     * @return content stream
+     * @throws IOException could not open the content
+     */
+    InputStream newInputStream() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file.toPath());
+        }
+        List<InputStream> streams = new ArrayList<>(chunks.size());
+        long remaining = length;
+        for (byte[] chunk : chunks) {
+            int size = (int) Math.min(chunk.length, remaining);
+            streams.add(new ByteArrayInputStream(chunk, 0, size));
+            remaining -= size;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Lets go of the content for one reader.  Content is disposed of
+     * once all readers released it.
+     */
+    void release() {
+        if (readers.decrementAndGet() != 0) {
+            return;
+        }
+        if (file != null) {
+            FileUtils.deleteQuietly(file);
+        } else {
+            cache.releaseChunks(chunks);
+        }
+    }
+}
@@ -16,22 +16,34 @@ package com.norconex.committer.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.norconex.committer.core.impl.FileSystemCommitter;
 import com.norconex.commons.lang.map.Properties;
 
 public class AbstractFileQueueCommitterTest {
@@ -109,4 +121,285 @@ public class AbstractFileQueueCommitterTest {
         assertTrue(files.isEmpty());
     }
 
+    @Test
+    public void testIndexRebuiltFromUnindexedQueue() throws Exception {
+        File queue = temp.newFolder();
+        // Files queued without an index, like by older versions
+        FileSystemCommitter unindexed = new FileSystemCommitter();
+        unindexed.setDirectory(queue.getPath());
+        for (int i = 0; i < 10; i++) {
+            unindexed.remove(Integer.toString(i), new Properties());
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+        AbstractFileQueueCommitter committer = 
+                new CountingCommitter(counter, 0);
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueSize(4);
+        assertEquals(10, committer.getInitialQueueDocCount());
+
+        committer.commit();
+        assertEquals(4, counter.intValue());
+        committer.commit();
+        committer.commit();
+        assertEquals(10, counter.intValue());
+        assertTrue(FileUtils.listFiles(queue, null, true).isEmpty());
+    }
+
+    @Test
+    public void testFailedCommitRequeued() throws Exception {
+        File queue = temp.newFolder();
+        final AtomicInteger counter = new AtomicInteger();
+        AbstractFileQueueCommitter committer = 
+                new CountingCommitter(counter, 1);
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueSize(10);
+        for (int i = 0; i < 3; i++) {
+            committer.remove(Integer.toString(i), new Properties());
+        }
+
+        try {
+            committer.commit();
+            fail("Commit should have failed.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        // The two files left are taken again
+        committer.commit();
+        assertEquals(3, counter.intValue());
+        assertTrue(FileUtils.listFiles(queue, null, true).isEmpty());
+    }
+
+    @Test
+    public void testFailedCommitRetriedInOrder() throws Exception {
+        File queue = temp.newFolder();
+        final List<String> committed = new ArrayList<>();
+        AbstractFileQueueCommitter committer = new AbstractFileQueueCommitter() {
+            private boolean failed;
+            @Override
+            protected void commitAddition(IAddOperation operation)
+                    throws IOException {
+                if (!failed) {
+                    failed = true;
+                    throw new CommitterException("Simulated failure.");
+                }
+                committed.add("add:" + operation.getReference());
+                operation.delete();
+            }
+            @Override
+            protected void commitDeletion(IDeleteOperation operation)
+                    throws IOException {
+                committed.add("delete:" + operation.getReference());
+                operation.delete();
+            }
+            @Override
+            protected void commitComplete() {
+            }
+        };
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueSize(10);
+        committer.add("doc", IOUtils.toInputStream(
+                "content", StandardCharsets.UTF_8), new Properties());
+        committer.remove("doc", new Properties());
+        // One operation per commit
+        committer.setQueueSize(1);
+
+        try {
+            committer.commit();
+            fail("Commit should have failed.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        // The failed addition is committed before the later deletion
+        committer.commit();
+        committer.commit();
+        assertEquals(Arrays.asList("add:doc", "delete:doc"), committed);
+        assertEquals(0, committer.getInitialQueueDocCount());
+    }
+
+    @Test
+    public void testSegmentStorage() throws Exception {
+        File queue = temp.newFolder();
+        FileSystemCommitter producer = new FileSystemCommitter();
+        producer.setDirectory(queue.getPath());
+        producer.setStorage(FileSystemCommitter.Storage.SEGMENTS);
+        producer.setMaxSegmentSize(200);
+        for (int i = 0; i < 10; i++) {
+            Properties metadata = new Properties();
+            metadata.addString("id", Integer.toString(i));
+            producer.add(Integer.toString(i), IOUtils.toInputStream(
+                    "hello world " + i, StandardCharsets.UTF_8), metadata);
+        }
+        for (int i = 10; i < 15; i++) {
+            producer.remove(Integer.toString(i), new Properties());
+        }
+        assertTrue(FileUtils.listFiles(queue, 
+                new String[] {"seg"}, false).size() > 1);
+
+        final List<String> committed = new ArrayList<>();
+        AbstractFileQueueCommitter committer = 
+                new AbstractFileQueueCommitter() {
+            @Override
+            protected void commitAddition(IAddOperation operation)
+                    throws IOException {
+                String ref = operation.getReference();
+                assertEquals(ref, operation.getMetadata().getString("id"));
+                assertEquals("hello world " + ref, IOUtils.toString(
+                        operation.getContentStream(), StandardCharsets.UTF_8));
+                committed.add(ref);
+                operation.delete();
+            }
+            @Override
+            protected void commitDeletion(IDeleteOperation operation)
+                    throws IOException {
+                committed.add(operation.getReference());
+                operation.delete();
+            }
+            @Override
+            protected void commitComplete() {
+            }
+        };
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueStorage(FileSystemCommitter.Storage.SEGMENTS);
+        committer.setQueueSize(6);
+        assertEquals(15, committer.getInitialQueueDocCount());
+
+        committer.commit();
+        committer.commit();
+        committer.commit();
+        assertEquals(15, committed.size());
+        for (int i = 0; i < 15; i++) {
+            assertEquals(Integer.toString(i), committed.get(i));
+        }
+        assertEquals(0, committer.getInitialQueueDocCount());
+        // Only the segment last written to is kept
+        assertEquals(1, FileUtils.listFiles(
+                queue, new String[] {"seg"}, false).size());
+    }
+
+    @Test
+    public void testSegmentAppendNotBlocked() throws Exception {
+        File queue = temp.newFolder();
+        FileSystemCommitter producer = new FileSystemCommitter();
+        producer.setDirectory(queue.getPath());
+        producer.setStorage(FileSystemCommitter.Storage.SEGMENTS);
+
+        // Content bigger than kept in memory, finishing when released
+        String big = StringUtils.repeat('x', 2 * 1024 * 1024);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream slow = new SequenceInputStream(IOUtils.toInputStream(
+                big, StandardCharsets.UTF_8), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> slowAdd = executor.submit(() -> producer.add(
+                    "slow", slow, new Properties()));
+            // Other documents are appended while slow content is read
+            executor.submit(() -> {
+                producer.add("fast", IOUtils.toInputStream(
+                        "fast", StandardCharsets.UTF_8), new Properties());
+                producer.remove("gone", new Properties());
+            }).get(10, TimeUnit.SECONDS);
+            release.countDown();
+            slowAdd.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+
+        final Map<String, Integer> committed = new HashMap<>();
+        AbstractFileQueueCommitter committer = 
+                new AbstractFileQueueCommitter() {
+            @Override
+            protected void commitAddition(IAddOperation operation)
+                    throws IOException {
+                committed.put(operation.getReference(), IOUtils.toString(
+                        operation.getContentStream(), 
+                        StandardCharsets.UTF_8).length());
+                operation.delete();
+            }
+            @Override
+            protected void commitDeletion(IDeleteOperation operation)
+                    throws IOException {
+                committed.put(operation.getReference(), -1);
+                operation.delete();
+            }
+            @Override
+            protected void commitComplete() {
+            }
+        };
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueStorage(FileSystemCommitter.Storage.SEGMENTS);
+        committer.commit();
+        assertEquals(Integer.valueOf(4), committed.get("fast"));
+        assertEquals(Integer.valueOf(-1), committed.get("gone"));
+        assertEquals(Integer.valueOf(big.length()), committed.get("slow"));
+        assertTrue(FileUtils.listFiles(
+                queue, new String[] {"tmp"}, false).isEmpty());
+    }
+
+    @Test
+    public void testFailedSegmentCommitRequeued() throws Exception {
+        File queue = temp.newFolder();
+        final AtomicInteger counter = new AtomicInteger();
+        AbstractFileQueueCommitter committer = 
+                new CountingCommitter(counter, 1);
+        committer.setQueueDir(queue.getPath());
+        committer.setQueueStorage(FileSystemCommitter.Storage.SEGMENTS);
+        committer.setQueueSize(10);
+        for (int i = 0; i < 3; i++) {
+            committer.remove(Integer.toString(i), new Properties());
+        }
+
+        try {
+            committer.commit();
+            fail("Commit should have failed.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        committer.commit();
+        assertEquals(3, counter.intValue());
+        assertEquals(0, committer.getInitialQueueDocCount());
+    }
+
+    // Counts and deletes committed files, failing after a given number
+    // of them the first time
+    private static class CountingCommitter extends AbstractFileQueueCommitter {
+        private final AtomicInteger counter;
+        private int failAfter;
+        CountingCommitter(AtomicInteger counter, int failAfter) {
+            this.counter = counter;
+            this.failAfter = failAfter;
+        }
+        @Override
+        protected void commitAddition(IAddOperation operation)
+                throws IOException {
+            commitOperation(operation);
+        }
+        @Override
+        protected void commitDeletion(IDeleteOperation operation)
+                throws IOException {
+            commitOperation(operation);
+        }
+        private void commitOperation(ICommitOperation operation) {
+            if (failAfter > 0 && counter.get() == failAfter) {
+                failAfter = 0;
+                throw new CommitterException("Simulated failure.");
+            }
+            counter.incrementAndGet();
+            operation.delete();
+        }
+        @Override
+        protected void commitComplete() {
+        }
+    }
 }
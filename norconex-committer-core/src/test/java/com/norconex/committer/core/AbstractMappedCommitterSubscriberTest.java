@@ -16,14 +16,27 @@ package com.norconex.committer.core;
 
 import com.github.ddth.queue.impl.universal.UniversalIdIntQueueMessage;
 import com.norconex.commons.lang.map.Properties;
+import com.norconex.committer.core.DeadLetterQueue.DeadLetter;
 import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -31,12 +44,14 @@ import static org.junit.Assert.*;
 @SuppressWarnings({"nls"})
 public class AbstractMappedCommitterSubscriberTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private StubCommitter committer;
     private StubCommitterSubscriber subscriber;
     private Properties metadata = new Properties();
     private String defaultReference = "1";
     private PersistentQueue queue;
-    private String QUEUE_DIR = "committer-queue-test";
     private String QUEUE_NAME = "test";
 
     /**
@@ -50,6 +65,17 @@ public class AbstractMappedCommitterSubscriberTest {
         metadata.addString("myreference", defaultReference);
     }
 
+    /**
+     * Closes the queue of the committer under test, if any.
+     */
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.destroy();
+            queue = null;
+        }
+    }
+
     /**
      * Test no commit if not enough document
      *
@@ -65,7 +91,7 @@ public class AbstractMappedCommitterSubscriberTest {
     @Test
     public void testBatchCommit() throws InterruptedException {
         committer = new StubCommitter();
-        committer.setQueueDir(QUEUE_DIR);
+        committer.setQueueDir(tempFolder.getRoot().getPath());
         committer.setQueueName(QUEUE_NAME);
         committer.setCommitBatchSize(2);
 
@@ -119,11 +145,431 @@ public class AbstractMappedCommitterSubscriberTest {
         committer.commit();
     }
 
+    /** Test batches committed concurrently are all finished. */
+    @Test
+    public void testConcurrentBatchCommit() throws InterruptedException {
+        newCommitter("concurrent");
+        committer.setCommitBatchSize(2);
+        committer.setSubscriberConcurrency(4);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger committed = new AtomicInteger();
+        CountDownLatch complete = new CountDownLatch(1);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                maxRunning.accumulateAndGet(
+                        running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                committed.addAndGet(list.size());
+                running.decrementAndGet();
+                return true;
+            }
+            @Override
+            protected void hookOnComplete() {
+                complete.countDown();
+            }
+        });
+
+        for (int i = 0; i < 20; i++) {
+            committer.add(Integer.toString(i), null, metadata);
+        }
+        committer.commit();
+
+        assertTrue(complete.await(10, TimeUnit.SECONDS));
+        assertEquals(20, committed.get());
+        assertTrue(maxRunning.get() > 1);
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(0, queue.getEphemeralSize());
+    }
+
+    /** Test a failing batch does not stop batches committed with it. */
+    @Test
+    public void testConcurrentBatchFailure() throws InterruptedException {
+        newCommitter("concurrent-failure");
+        committer.setCommitBatchSize(2);
+        committer.setSubscriberConcurrency(4);
+
+        AtomicInteger committed = new AtomicInteger();
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch complete = new CountDownLatch(1);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                for (Object op : list) {
+                    if ("3".equals(((IAddOperation) op).getReference())) {
+                        throw new CommitterException("Failing batch.");
+                    }
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                committed.addAndGet(list.size());
+                return true;
+            }
+            @Override
+            protected void hookOnComplete() {
+                complete.countDown();
+            }
+        });
+
+        for (int i = 0; i < 20; i++) {
+            committer.add(Integer.toString(i), null, metadata);
+        }
+        committer.commit();
+
+        assertTrue(complete.await(10, TimeUnit.SECONDS));
+        assertEquals(0, interrupted.get());
+        assertEquals(18, committed.get());
+        assertEquals(0, queue.getEphemeralSize());
+    }
+
+    /** Test batches are sent on max wait before being full. */
+    @Test
+    public void testTimeBoundedBatches() throws InterruptedException {
+        newCommitter("max-wait");
+        committer.setCommitBatchSize(100);
+        committer.setMaxBatchWait(100);
+        List<Integer> batchSizes = startBoundedCommitter();
+
+        committer.add("1", null, metadata);
+        committer.add("2", null, metadata);
+        long start = System.currentTimeMillis();
+        while (batchSizes.isEmpty()
+                && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(2), batchSizes);
+        committer.commit();
+    }
+
+    /** Test batches are split on max bytes before being full. */
+    @Test
+    public void testBytesBoundedBatches() {
+        newCommitter("max-bytes");
+        committer.setCommitBatchSize(100);
+        // Each operation exceeds half the max bytes: one per batch
+        committer.setMaxBatchBytes(new KryoQueueCodec().encode(
+                new DocumentDeleteOperation("1")).length * 3 / 2);
+        List<Integer> batchSizes = startBoundedCommitter();
+
+        committer.remove("1", metadata);
+        committer.remove("2", metadata);
+        committer.remove("3", metadata);
+        committer.commit();
+        assertEquals(Arrays.asList(1, 1, 1), batchSizes);
+    }
+
+    /** Test batch size grows while batches are committed quickly. */
+    @Test
+    public void testAdaptiveBatchSize() {
+        newCommitter("adaptive");
+        committer.setCommitBatchSize(2);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(1);
+        sizer.setIncreaseStep(1);
+        committer.setAdaptiveBatchSizer(sizer);
+        List<Integer> batchSizes = startBoundedCommitter();
+
+        for (int i = 0; i < 20; i++) {
+            committer.remove(Integer.toString(i), metadata);
+        }
+        committer.commit();
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6), batchSizes);
+        assertEquals(7, sizer.getBatchSize());
+    }
+
+    /** Test failed batches are retried without blocking producers. */
+    @Test
+    public void testRetryPolicy() throws InterruptedException {
+        newCommitter("retry");
+        committer.setCommitBatchSize(2);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(10);
+        committer.setRetryPolicy(policy);
+
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch committed = new CountDownLatch(4);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                if (failures.get() < 2) {
+                    failures.incrementAndGet();
+                    throw new CommitterException("Failing attempt.");
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    committed.countDown();
+                }
+                return true;
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            committer.remove(Integer.toString(i), metadata);
+        }
+        committer.commit();
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, failures.get());
+    }
+
+    /** Test the adaptive batch sizer is saved along with the committer. */
+    @Test
+    public void testAdaptiveBatchSizerSaved() throws IOException {
+        StubCommitter stub = new StubCommitter();
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setTargetLatency(1234);
+        stub.setAdaptiveBatchSizer(sizer);
+        StringWriter out = new StringWriter();
+        stub.saveToXML(out);
+        String xml = out.toString();
+        assertTrue(xml, xml.contains("<adaptiveBatchSize>"));
+        assertTrue(xml, xml.contains("<targetLatency>1234</targetLatency>"));
+    }
+
+    /** Test the retry policy is saved along with the committer. */
+    @Test
+    public void testRetryPolicySaved() throws IOException {
+        StubCommitter stub = new StubCommitter();
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(123);
+        policy.setRetryOn(CommitterException.class);
+        stub.setRetryPolicy(policy);
+        StringWriter out = new StringWriter();
+        stub.saveToXML(out);
+        String xml = out.toString();
+        assertTrue(xml, xml.contains("<initialDelay>123</initialDelay>"));
+        assertTrue(xml, xml.contains("<retryOn>"
+                + CommitterException.class.getName() + "</retryOn>"));
+    }
+
+    /** Test the last batch is retried as much as needed after commit. */
+    @Test
+    public void testRetryAfterCommit() throws InterruptedException {
+        newCommitter("retry-after-commit");
+        committer.setCommitBatchSize(2);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(50);
+        policy.setMaxRetries(5);
+        committer.setRetryPolicy(policy);
+
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch committed = new CountDownLatch(2);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                if (failures.get() < 3) {
+                    failures.incrementAndGet();
+                    throw new CommitterException("Failing attempt.");
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    committed.countDown();
+                }
+                return true;
+            }
+        });
+
+        committer.remove("1", metadata);
+        committer.remove("2", metadata);
+        committer.commit();
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+        assertEquals(3, failures.get());
+    }
+
+    /** Test batches are still requested when a failed batch cannot be handled. */
+    @Test
+    public void testRetryFailureHandlingError() throws Exception {
+        newCommitter("retry-handling-error");
+        committer.setCommitBatchSize(1);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(0);
+        committer.setRetryPolicy(policy);
+        committer.setDeadLetterDir(tempFolder.newFolder("dlq").getAbsolutePath());
+
+        CountDownLatch committed = new CountDownLatch(1);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                committed.countDown();
+                return true;
+            }
+        });
+
+        // Undecodable, so the failed batch cannot be dead-lettered either
+        UniversalIdIntQueueMessage corrupted = UniversalIdIntQueueMessage.newInstance();
+        corrupted.setContent(new byte[] { 0 });
+        queue.offer(corrupted);
+        committer.remove("1", metadata);
+        committer.commit();
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+    }
+
+    /** Test retries of concurrent batches run concurrently too. */
+    @Test
+    public void testConcurrentRetries() throws InterruptedException {
+        newCommitter("concurrent-retry");
+        committer.setCommitBatchSize(1);
+        committer.setSubscriberConcurrency(2);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(10);
+        committer.setRetryPolicy(policy);
+
+        Set<String> failedOnce = ConcurrentHashMap.newKeySet();
+        CountDownLatch retrying = new CountDownLatch(2);
+        AtomicInteger concurrentRetries = new AtomicInteger();
+        CountDownLatch committed = new CountDownLatch(2);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                String ref = ((IDeleteOperation) list.get(0)).getReference();
+                if (failedOnce.add(ref)) {
+                    throw new CommitterException("Failing attempt.");
+                }
+                retrying.countDown();
+                try {
+                    if (retrying.await(5, TimeUnit.SECONDS)) {
+                        concurrentRetries.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                committed.countDown();
+                return true;
+            }
+        });
+
+        committer.remove("1", metadata);
+        committer.remove("2", metadata);
+        committer.commit();
+        assertTrue(committed.await(15, TimeUnit.SECONDS));
+        assertEquals(2, concurrentRetries.get());
+    }
+
+    /** Test failing messages are isolated and sent to dead-letter queue. */
+    @Test
+    public void testDeadLetterQueue() throws Exception {
+        File dlqDir = tempFolder.newFolder("dlq");
+        newCommitter("dlq");
+        committer.setCommitBatchSize(4);
+        committer.setDeadLetterDir(dlqDir.getAbsolutePath());
+
+        CountDownLatch committed = new CountDownLatch(3);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                for (Object op : list) {
+                    if ("2".equals(((IDeleteOperation) op).getReference())) {
+                        throw new CommitterException("Poison document.");
+                    }
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    committed.countDown();
+                }
+                return true;
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            committer.remove(Integer.toString(i), metadata);
+        }
+        committer.commit();
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+        List<DeadLetter> dead = 
+                new DeadLetterQueue(dlqDir.getPath()).getDeadLetters();
+        assertEquals(1, dead.size());
+        assertEquals("2", dead.get(0).getReference());
+        assertFalse(dead.get(0).isAddition());
+        assertEquals(0, queue.getEphemeralSize());
+    }
+
+    /** Test custom operations left being committed are requeued. */
+    @Test
+    public void testCustomOrphanRequeued() throws Exception {
+        File dlqDir = tempFolder.newFolder("dlq");
+        String queueDir = tempFolder.newFolder("queue").getAbsolutePath();
+        PersistentQueue previous =
+                new PersistentQueue.Builder("orphan", queueDir).build();
+        previous.registerClassForSerialization(
+                QueueCodecTest.CustomOperation.class);
+        UniversalIdIntQueueMessage msg = UniversalIdIntQueueMessage.newInstance();
+        msg.setContent(previous.encode(
+                new QueueCodecTest.CustomOperation("custom")));
+        previous.offer(msg);
+        previous.poll();
+        previous.destroy();
+
+        committer = new StubCommitter();
+        committer.setQueueDir(queueDir);
+        committer.setQueueName("orphan");
+        committer.serializationClasses.add(
+                QueueCodecTest.CustomOperation.class);
+        committer.setDeadLetterDir(dlqDir.getAbsolutePath());
+        committer.init();
+        queue = committer.getQueue();
+        assertEquals(0, queue.getEphemeralSize());
+        assertEquals(1, queue.getQueueSize());
+    }
+
+    /** Test only the latest operation of each reference is committed. */
+    @Test
+    public void testCoalesceOperations() throws Exception {
+        newCommitter("coalesce");
+        committer.setCommitBatchSize(6);
+        committer.setCoalesceOperations(true);
+
+        List<String> committed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                for (Object op : list) {
+                    committed.add(((IDeleteOperation) op).getReference());
+                }
+                done.countDown();
+                return true;
+            }
+        });
+
+        for (int i = 0; i < 6; i++) {
+            committer.remove(Integer.toString(i % 2), metadata);
+        }
+        committer.commit();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("0", "1"), committed);
+    }
+
+    /** Test operations added after commit are kept on the queue. */
+    @Test
+    public void testAddAfterCommit() {
+        newCommitter("after-commit");
+        committer.setBufferSize(10);
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                return true;
+            }
+        });
+        committer.commit();
+
+        int size = queue.getQueueSize();
+        committer.remove("1", metadata);
+        assertEquals(size + 1, queue.getQueueSize());
+        assertEquals(0, queue.getBufferedCount());
+    }
+
     /** Test batch commit. */
     @Test
     public void testBatchCommitWithErrors() throws InterruptedException {
         committer = new StubCommitter();
-        committer.setQueueDir(QUEUE_DIR);
+        committer.setQueueDir(tempFolder.getRoot().getPath());
         committer.setQueueName(QUEUE_NAME);
         committer.setCommitBatchSize(2);
         committer.init();
@@ -196,7 +642,7 @@ public class AbstractMappedCommitterSubscriberTest {
     @Test
     public void testSetSourceAndTargetReference() throws IOException {
         committer = new StubCommitter();
-        committer.setQueueDir(QUEUE_DIR);
+        committer.setQueueDir(tempFolder.getRoot().getPath());
         committer.setQueueName(QUEUE_NAME);
         committer.init();
 
@@ -247,6 +693,33 @@ public class AbstractMappedCommitterSubscriberTest {
         // assertTrue(op.getMetadata().containsKey("myreference"));
     }
 
+    // Creates the committer under test, with its own queue
+    private StubCommitter newCommitter(String queueSuffix) {
+        committer = new StubCommitter();
+        committer.setQueueDir(tempFolder.getRoot().getPath());
+        committer.setQueueName(QUEUE_NAME + "-" + queueSuffix);
+        return committer;
+    }
+
+    // Initializes the committer once configured, and subscribes to it
+    private void startCommitter(AbstractBatchCommitterSubscriber subscriber) {
+        committer.init();
+        queue = committer.getQueue();
+        committer.setSubscriber(subscriber);
+    }
+
+    private List<Integer> startBoundedCommitter() {
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        startCommitter(new StubCommitterSubscriber(queue) {
+            @Override
+            protected boolean processCommitOperations(List list) {
+                batchSizes.add(list.size());
+                return true;
+            }
+        });
+        return batchSizes;
+    }
+
     class StubCommitter extends BatchReactiveCommitter {
 
         @Override
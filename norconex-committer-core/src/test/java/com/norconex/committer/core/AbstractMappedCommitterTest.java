@@ -17,16 +17,23 @@ package com.norconex.committer.core;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.io.input.NullInputStream;
 import org.junit.Before;
 import org.junit.Rule;
@@ -34,8 +41,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.norconex.committer.core.AbstractMappedCommitter;
+import com.norconex.committer.core.DeadLetterQueue.DeadLetter;
 import com.norconex.committer.core.IAddOperation;
 import com.norconex.committer.core.ICommitOperation;
+import com.norconex.committer.core.impl.FileSystemCommitter;
 import com.norconex.commons.lang.map.Properties;
 
 /**
@@ -146,6 +155,212 @@ public class AbstractMappedCommitterTest {
         assertTrue(op.getMetadata().containsKey("myreference"));
     }
     
+    @Test
+    public void testCommitWorkers() throws IOException {
+        ParallelCommitter parallel = newParallelCommitter();
+        for (int i = 0; i < 20; i++) {
+            parallel.add("doc" + i, new NullInputStream(0), metadata);
+        }
+        parallel.commit();
+
+        assertEquals(20, parallel.committedCount.get());
+        assertTrue("Batches were not committed concurrently.",
+                parallel.maxConcurrent.get() > 1);
+        assertEquals(0, FileUtils.listFiles(new File(parallel.getQueueDir()),
+                TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+    }
+
+    @Test
+    public void testFailedCommitWorker() throws IOException {
+        ParallelCommitter parallel = newParallelCommitter();
+        for (int i = 0; i < 20; i++) {
+            parallel.add(i == 7 ? "fail" : "doc" + i, 
+                    new NullInputStream(0), metadata);
+        }
+        try {
+            parallel.commit();
+            fail("Commit should have failed.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        assertEquals(1, parallel.failures.get());
+        // Committed batches are deleted, others are kept for a next commit
+        int committedCount = parallel.committedCount.get();
+        assertTrue(committedCount < 20);
+        assertEquals(20 - committedCount, FileUtils.listFiles(
+                new File(parallel.getQueueDir()), new String[] {
+                        FileSystemCommitter.EXTENSION_REFERENCE.substring(1)},
+                true).size());
+    }
+
+    @Test
+    public void testNoDuplicateAfterFailedCommitWorker() throws IOException {
+        ParallelCommitter parallel = newParallelCommitter();
+        for (int i = 0; i < 20; i++) {
+            parallel.add(i == 3 ? "fail" : "doc" + i, 
+                    new NullInputStream(0), metadata);
+        }
+        try {
+            parallel.commit();
+            fail("Commit should have failed.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        parallel.failOnReference = false;
+        parallel.commit();
+        // Batches in flight when the failure occurred are not committed
+        // again by the next commit
+        assertEquals(20, parallel.committedReferences.size());
+        for (Entry<String, Integer> en 
+                : parallel.committedReferences.entrySet()) {
+            assertEquals("Committed more than once: " + en.getKey(), 
+                    Integer.valueOf(1), en.getValue());
+        }
+        assertEquals(0, FileUtils.listFiles(
+                new File(parallel.getQueueDir()), new String[] {
+                        FileSystemCommitter.EXTENSION_REFERENCE.substring(1)},
+                true).size());
+    }
+
+    @Test
+    public void testRetryPolicy() throws IOException {
+        ParallelCommitter retrying = newParallelCommitter();
+        retrying.setCommitWorkers(1);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(10);
+        retrying.setRetryPolicy(policy);
+        retrying.failAttempts.set(2);
+        for (int i = 0; i < 4; i++) {
+            retrying.add("doc" + i, new NullInputStream(0), metadata);
+        }
+        retrying.commit();
+        assertEquals(4, retrying.committedCount.get());
+        assertEquals(2, retrying.failures.get());
+    }
+
+    @Test
+    public void testDeadLetterQueue() throws IOException {
+        ParallelCommitter bisecting = newParallelCommitter();
+        bisecting.setCommitWorkers(1);
+        File dlqDir = tempFolder.newFolder("dlq");
+        bisecting.setDeadLetterDir(dlqDir.getAbsolutePath());
+        for (int i = 0; i < 8; i++) {
+            bisecting.add(i == 5 ? "fail" : "doc" + i, 
+                    new NullInputStream(0), metadata);
+        }
+        bisecting.commit();
+
+        assertEquals(7, bisecting.committedCount.get());
+        assertEquals(0, FileUtils.listFiles(new File(bisecting.getQueueDir()),
+                TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+        List<DeadLetter> dead = 
+                new DeadLetterQueue(dlqDir.getPath()).getDeadLetters();
+        assertEquals(1, dead.size());
+        assertEquals("fail", dead.get(0).getReference());
+        assertTrue(dead.get(0).isAddition());
+    }
+
+    @Test
+    public void testDeadLetterMaxFailures() throws IOException {
+        ParallelCommitter failing = newParallelCommitter();
+        failing.setCommitWorkers(1);
+        failing.setCommitBatchSize(1);
+        failing.setDeadLetterMaxFailures(2);
+        File dlqDir = tempFolder.newFolder("dlq");
+        failing.setDeadLetterDir(dlqDir.getAbsolutePath());
+        failing.add("fail", new NullInputStream(0), metadata);
+        try {
+            failing.commit();
+            fail("First failure should not be dead-lettered.");
+        } catch (CommitterException e) {
+            // expected
+        }
+        DeadLetterQueue dlq = new DeadLetterQueue(dlqDir.getPath());
+        assertEquals(1, dlq.getFailureCount("fail"));
+        assertEquals(0, dlq.size());
+
+        // Second run: the queued operation reaches the maximum
+        failing.commit();
+        assertEquals(1, dlq.size());
+        assertEquals(2, dlq.getDeadLetters().get(0).getFailureCount());
+        assertEquals(0, FileUtils.listFiles(new File(failing.getQueueDir()),
+                TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+    }
+
+    @Test
+    public void testCoalesceOperations() throws IOException {
+        ParallelCommitter coalescing = newParallelCommitter();
+        coalescing.setCommitWorkers(1);
+        coalescing.setCommitBatchSize(10);
+        coalescing.setCoalesceOperations(true);
+        for (int i = 0; i < 6; i++) {
+            coalescing.add("doc" + (i % 2), new NullInputStream(0), metadata);
+        }
+        coalescing.commit();
+
+        assertEquals(2, coalescing.committedCount.get());
+        assertEquals(0, FileUtils.listFiles(new File(coalescing.getQueueDir()),
+                TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+    }
+
+    private ParallelCommitter newParallelCommitter() throws IOException {
+        ParallelCommitter parallel = new ParallelCommitter();
+        parallel.setQueueDir(tempFolder.newFolder().toString());
+        parallel.setQueueSize(1000);
+        parallel.setCommitBatchSize(2);
+        parallel.setCommitWorkers(4);
+        return parallel;
+    }
+
+    class ParallelCommitter extends AbstractMappedCommitter {
+        private final AtomicInteger committedCount = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+        private final AtomicInteger failAttempts = new AtomicInteger();
+        private final Map<String, Integer> committedReferences = 
+                new ConcurrentHashMap<>();
+        private volatile boolean failOnReference = true;
+        @Override
+        protected void commitBatch(List<ICommitOperation> batch) {
+            int running = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(running, Math::max);
+            try {
+                Thread.sleep(50);
+                if (failAttempts.getAndDecrement() > 0) {
+                    failures.incrementAndGet();
+                    throw new CommitterException("Failing attempt.");
+                }
+                for (ICommitOperation op : batch) {
+                    if (failOnReference && "fail".equals(
+                            ((IAddOperation) op).getReference())) {
+                        failures.incrementAndGet();
+                        throw new CommitterException("Failing batch.");
+                    }
+                }
+                for (ICommitOperation op : batch) {
+                    committedReferences.merge(
+                            ((IAddOperation) op).getReference(), 1, 
+                            Integer::sum);
+                }
+                committedCount.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+        @Override
+        protected void saveToXML(XMLStreamWriter writer)
+                throws XMLStreamException {
+            // no saving
+        }
+        @Override
+        protected void loadFromXml(XMLConfiguration xml) {
+            // no loading
+        }
+    }
+
     class StubCommitter extends AbstractMappedCommitter {
 
         private List<ICommitOperation> commitBatch;
@@ -0,0 +1,74 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(10);
+        sizer.setMaxBatchSize(100);
+        sizer.setIncreaseStep(20);
+        sizer.setTargetLatency(1000);
+        sizer.reset(50);
+
+        // Full batches within target latency grow the size
+        assertEquals(70, sizer.record(50, 100, true));
+        assertEquals(90, sizer.record(70, 100, true));
+        assertEquals(100, sizer.record(90, 100, true));
+        // Partial batches do not
+        assertEquals(100, sizer.record(5, 100, true));
+        // Slow or failed batches shrink it
+        assertEquals(50, sizer.record(100, 2000, true));
+        assertEquals(25, sizer.record(50, 100, false));
+        assertEquals(12, sizer.record(25, 100, false));
+        assertEquals(10, sizer.record(12, 100, false));
+    }
+
+    @Test
+    public void testResetWithinBounds() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(10);
+        sizer.setMaxBatchSize(100);
+        sizer.reset(500);
+        assertEquals(100, sizer.getBatchSize());
+        sizer.reset(1);
+        assertEquals(10, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(5);
+        sizer.setMaxBatchSize(500);
+        sizer.setTargetLatency(2000);
+        sizer.setIncreaseStep(25);
+        sizer.setDecreaseFactor(0.75f);
+        StringWriter out = new StringWriter();
+        sizer.saveToXML(out);
+        AdaptiveBatchSizer loaded = new AdaptiveBatchSizer();
+        loaded.loadFromXML(new StringReader(out.toString()));
+        assertEquals(sizer, loaded);
+    }
+}
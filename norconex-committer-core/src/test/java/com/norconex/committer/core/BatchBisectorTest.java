@@ -0,0 +1,73 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BatchBisectorTest {
+
+    @Test
+    public void testIsolateFailingItems() {
+        List<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            batch.add(i);
+        }
+        List<Integer> committed = new ArrayList<>();
+        List<Integer> failed = BatchBisector.bisect(batch, part -> {
+            if (part.contains(3) || part.contains(6)) {
+                throw new CommitterException("Bad item.");
+            }
+            committed.addAll(part);
+        });
+        assertEquals(Arrays.asList(3, 6), failed);
+        assertEquals(14, committed.size());
+    }
+
+    @Test
+    public void testAllFailing() {
+        List<Integer> batch = Arrays.asList(1, 2, 3, 4, 5);
+        AtomicInteger commits = new AtomicInteger();
+        List<Integer> failed = BatchBisector.bisect(batch, part -> {
+            commits.incrementAndGet();
+            throw new CommitterException("Down.");
+        });
+        assertEquals(batch, failed);
+        assertEquals(2, commits.get());
+    }
+
+    @Test
+    public void testHalfFailing() {
+        List<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            batch.add(i);
+        }
+        AtomicInteger commits = new AtomicInteger();
+        List<Integer> failed = BatchBisector.bisect(batch, part -> {
+            commits.incrementAndGet();
+            if (part.get(0) >= 8) {
+                throw new CommitterException("Bad item.");
+            }
+        });
+        assertEquals(batch.subList(8, 16), failed);
+        assertEquals(16, commits.get());
+    }
+}
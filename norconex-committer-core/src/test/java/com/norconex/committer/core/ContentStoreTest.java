@@ -0,0 +1,89 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.commons.lang.map.Properties;
+
+public class ContentStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File storeDir;
+    private ContentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = new File(temp.getRoot(), "content");
+        store = new ContentStore(storeDir, 10);
+    }
+
+    @Test
+    public void testSmallContentInMemory() throws IOException {
+        byte[] bytes = "0123456789".getBytes();
+        Document doc = store.newDocument(
+                "ref", new ByteArrayInputStream(bytes), new Properties());
+        assertArrayEquals(bytes, doc.content);
+        assertNull(doc.contentFile);
+        assertFalse(storeDir.exists());
+    }
+
+    @Test
+    public void testLargeContentOnFile() throws IOException {
+        byte[] bytes = "0123456789ABCDEF".getBytes();
+        Document doc = store.newDocument(
+                "ref", new ByteArrayInputStream(bytes), new Properties());
+        assertNull(doc.content);
+        assertNotNull(doc.contentFile);
+        File file = new File(doc.contentFile);
+        assertTrue(file.exists());
+
+        // Survives queue serialization and is read back lazily
+        IQueueCodec codec = new KryoQueueCodec();
+        DocumentAddOperation op = (DocumentAddOperation)
+                codec.decode(codec.encode(new DocumentAddOperation(doc)));
+        try (InputStream is = op.getContentStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(is));
+        }
+        op.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testNullContent() throws IOException {
+        Document doc = store.newDocument("ref", null, new Properties());
+        try (InputStream is = new DocumentAddOperation(doc).getContentStream()) {
+            assertEquals(-1, is.read());
+        }
+    }
+}
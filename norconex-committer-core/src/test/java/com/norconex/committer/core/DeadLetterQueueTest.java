@@ -0,0 +1,116 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.committer.core.DeadLetterQueue.DeadLetter;
+import com.norconex.committer.core.impl.FileSystemCommitter;
+import com.norconex.commons.lang.map.Properties;
+
+public class DeadLetterQueueTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private DeadLetterQueue dlq;
+
+    @Before
+    public void setup() throws IOException {
+        dlq = new DeadLetterQueue(tempFolder.newFolder("dlq").getPath());
+    }
+
+    @Test
+    public void testMaxFailures() {
+        ICommitOperation op = newAddition("doc1", "content");
+        assertFalse(dlq.recordFailure(op, new CommitterException("1"), 3));
+        assertFalse(dlq.recordFailure(op, new CommitterException("2"), 3));
+        assertEquals(2, dlq.getFailureCount("doc1"));
+
+        // Failures are persisted
+        dlq = new DeadLetterQueue(dlq.getDirectory());
+        assertEquals(2, dlq.getFailureCount("doc1"));
+        assertTrue(dlq.recordFailure(op, new CommitterException("3"), 3));
+        assertEquals(0, dlq.getFailureCount("doc1"));
+
+        List<DeadLetter> letters = dlq.getDeadLetters();
+        assertEquals(1, letters.size());
+        DeadLetter letter = letters.get(0);
+        assertEquals("doc1", letter.getReference());
+        assertTrue(letter.isAddition());
+        assertEquals(3, letter.getFailureCount());
+        assertTrue(letter.getLastError().contains("3"));
+        assertTrue(letter.getFirstFailure() <= letter.getLastFailure());
+        assertEquals("value", letter.getMetadata().getString("key"));
+    }
+
+    @Test
+    public void testSuccessClearsFailures() {
+        ICommitOperation op = new DocumentDeleteOperation("doc1");
+        dlq.recordFailure(op, null, 2);
+        dlq.recordSuccess(op);
+        assertEquals(0, dlq.getFailureCount("doc1"));
+        assertFalse(dlq.recordFailure(op, null, 2));
+        assertEquals(0, dlq.size());
+    }
+
+    @Test
+    public void testReplayAndPurge() throws IOException {
+        dlq.add(newAddition("doc1", "content1"), null);
+        dlq.add(new DocumentDeleteOperation("doc2"), null);
+        dlq.add(newAddition("doc3", "content3"), null);
+        assertEquals(3, dlq.size());
+
+        FileSystemCommitter target = new FileSystemCommitter();
+        target.setDirectory(tempFolder.newFolder("target").getPath());
+        assertEquals(2, dlq.replay(target, letter -> !"doc3".equals(
+                letter.getReference())));
+        File targetDir = new File(target.getDirectory());
+        assertEquals(1, FileUtils.listFiles(targetDir, new String[] {
+                "cntnt"}, true).size());
+        assertEquals(2, FileUtils.listFiles(targetDir, new String[] {
+                "ref"}, true).size());
+
+        List<DeadLetter> letters = dlq.getDeadLetters();
+        assertEquals(1, letters.size());
+        try (InputStream is = letters.get(0).getContentStream()) {
+            assertEquals("content3", IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+        assertEquals(1, dlq.purge(letter -> true));
+        assertEquals(0, dlq.size());
+    }
+
+    private ICommitOperation newAddition(String reference, String content) {
+        Properties metadata = new Properties();
+        metadata.setString("key", "value");
+        return new DocumentAddOperation(new Document(reference,
+                content.getBytes(StandardCharsets.UTF_8), metadata));
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.committer.core.impl.FileSystemCommitter;
+import com.norconex.commons.lang.map.Properties;
+
+public class FileAddOperationTest {
+
+    private static final String CONTENT = "Some content to commit.";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testLazyReferenceAndMetadata() throws Exception {
+        File refFile = addDocument();
+        FileAddOperation op = new FileAddOperation(refFile);
+
+        // Nothing is read until asked for
+        FileUtils.write(refFile, "changed", StandardCharsets.UTF_8);
+        assertEquals("changed", op.getReference());
+        assertEquals("value", op.getMetadata().getString("key"));
+    }
+
+    @Test
+    public void testEqualsWithoutParsing() throws Exception {
+        File refFile = addDocument();
+        FileAddOperation op1 = new FileAddOperation(refFile);
+        FileAddOperation op2 = new FileAddOperation(refFile);
+
+        // Comparing must not need the metadata file
+        FileUtils.forceDelete(new File(StringUtils.removeEnd(
+                refFile.getAbsolutePath(), 
+                FileSystemCommitter.EXTENSION_REFERENCE)
+                + FileSystemCommitter.EXTENSION_METADATA));
+        assertEquals(op1, op2);
+        assertEquals(op1.hashCode(), op2.hashCode());
+        assertEquals(op1.toString(), op2.toString());
+    }
+
+    @Test
+    public void testContentAccess() throws Exception {
+        FileAddOperation op = new FileAddOperation(addDocument());
+        byte[] expected = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(expected.length, op.getContentLength());
+
+        ByteBuffer buffer = op.getContentBuffer();
+        byte[] mapped = new byte[buffer.remaining()];
+        buffer.get(mapped);
+        assertEquals(CONTENT, new String(mapped, StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expected.length,
+                op.transferContentTo(Channels.newChannel(out)));
+        assertEquals(CONTENT, out.toString(StandardCharsets.UTF_8.name()));
+    }
+
+    private File addDocument() throws Exception {
+        File dir = temp.newFolder();
+        FileSystemCommitter committer = new FileSystemCommitter();
+        committer.setDirectory(dir.getAbsolutePath());
+        Properties metadata = new Properties();
+        metadata.addString("key", "value");
+        committer.add("http://example.com/doc", new ByteArrayInputStream(
+                CONTENT.getBytes(StandardCharsets.UTF_8)), metadata);
+        Collection<File> refFiles = FileUtils.listFiles(dir,
+                new SuffixFileFilter(FileSystemCommitter.EXTENSION_REFERENCE),
+                TrueFileFilter.INSTANCE);
+        assertEquals(1, refFiles.size());
+        return refFiles.iterator().next();
+    }
+}
@@ -13,8 +13,21 @@
  * limitations under the License.
  */
 package com.norconex.committer.core;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import org.junit.After;
 import org.junit.Before;
@@ -22,6 +35,7 @@ import org.junit.Test;
 
 import com.norconex.committer.core.impl.FileSystemCommitter;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.map.Properties;
 
 
 /**
@@ -51,4 +65,34 @@ public class FileSystemCommitterTest {
         XMLConfigurationUtil.assertWriteRead(outCommitter);
     }
 
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        File dir = Files.createTempDirectory("FileSystemCommitterTest").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            FileSystemCommitter committer = new FileSystemCommitter();
+            committer.setDirectory(dir.getAbsolutePath());
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        committer.add("ref", new ByteArrayInputStream(
+                                "content".getBytes(StandardCharsets.UTF_8)),
+                                new Properties());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // Each addition must get its own reference, metadata and
+            // content files
+            assertEquals(8 * 100 * 3, FileUtils.listFiles(dir,
+                    TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+        } finally {
+            executor.shutdownNow();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
 }
@@ -0,0 +1,98 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.committer.core.impl.JSONFileCommitter;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Tests the {@link JSONFileCommitter}.
+ */
+public class JSONFileCommitterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCompactFile() throws IOException {
+        testFile(false);
+    }
+
+    @Test
+    public void testPrettyFile() throws IOException {
+        testFile(true);
+    }
+
+    private void testFile(boolean pretty) throws IOException {
+        File dir = tempFolder.newFolder();
+        JSONFileCommitter committer = new JSONFileCommitter();
+        committer.setDirectory(dir.getAbsolutePath());
+        committer.setPretty(pretty);
+
+        // Bigger than what is escaped at once, with blanks between chunks
+        String body = StringUtils.repeat("a \"quoted\"\t\\ line\n", 1000)
+                + StringUtils.repeat(' ', 10000) + "end\u0001\u2028";
+        Properties metadata = new Properties();
+        metadata.addString("single", "value");
+        metadata.addString("multi", "value1", "value\"2");
+        committer.add("doc1", toStream("  \n" + body + " \n\t "), metadata);
+        committer.add("doc2", toStream(StringUtils.repeat(' ', 9000)), 
+                new Properties());
+        committer.remove("doc3", null);
+        committer.commit();
+
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        String json = FileUtils.readFileToString(files[0], "UTF-8");
+        assertEquals(pretty, json.contains("\n"));
+        assertFalse(json.contains("\u2028"));
+
+        JSONArray docs = new JSONArray(json);
+        assertEquals(3, docs.length());
+        JSONObject doc1 = docs.getJSONObject(0).getJSONObject("doc-add");
+        assertEquals("doc1", doc1.getString("reference"));
+        assertEquals(body, doc1.getString("content"));
+        JSONObject meta = doc1.getJSONObject("metadata");
+        assertEquals("value", meta.getJSONArray("single").getString(0));
+        assertEquals("value\"2", meta.getJSONArray("multi").getString(1));
+        JSONObject doc2 = docs.getJSONObject(1).getJSONObject("doc-add");
+        assertEquals("", doc2.getString("content"));
+        assertEquals(0, doc2.getJSONObject("metadata").length());
+        assertEquals("doc3", docs.getJSONObject(2)
+                .getJSONObject("doc-del").getString("reference"));
+    }
+
+    private InputStream toStream(String content) {
+        return new ByteArrayInputStream(
+                content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,187 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.committer.core.impl.ContentCache;
+import com.norconex.committer.core.impl.MultiCommitter;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Tests the {@link MultiCommitter}.
+ */
+public class MultiCommitterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testParallel() {
+        RecordingCommitter fast = new RecordingCommitter(0);
+        RecordingCommitter slow = new RecordingCommitter(20);
+        MultiCommitter multi = new MultiCommitter();
+        multi.addCommitter(fast, slow);
+        multi.setParallel(true);
+
+        // Bigger than what is kept in memory
+        String big = StringUtils.repeat('x', (int) FileUtils.ONE_MB + 1);
+        multi.add("doc1", toStream("content1"), new Properties());
+        multi.add("doc2", toStream(big), new Properties());
+        multi.remove("doc1", new Properties());
+        multi.commit();
+
+        for (RecordingCommitter committer : new RecordingCommitter[] {
+                fast, slow}) {
+            assertEquals(4, committer.requests.size());
+            assertEquals("add:doc1:content1", committer.requests.get(0));
+            assertEquals("add:doc2:" + big, committer.requests.get(1));
+            assertEquals("remove:doc1", committer.requests.get(2));
+            assertEquals("commit", committer.requests.get(3));
+        }
+    }
+
+    @Test
+    public void testParallelFailure() {
+        RecordingCommitter healthy = new RecordingCommitter(0);
+        RecordingCommitter failing = new RecordingCommitter(0);
+        failing.failOn = "doc2";
+        MultiCommitter multi = new MultiCommitter();
+        multi.addCommitter(failing, healthy);
+        multi.setParallel(true);
+        for (int i = 1; i <= 3; i++) {
+            multi.add("doc" + i, toStream("content"), new Properties());
+        }
+        try {
+            multi.commit();
+            fail("Failure should be thrown on commit.");
+        } catch (CommitterException e) {
+            assertTrue(e.getCause().getMessage().contains("doc2"));
+        }
+        assertEquals(4, healthy.requests.size());
+        assertEquals(3, failing.requests.size());
+        assertEquals("commit", failing.requests.get(2));
+    }
+
+    @Test
+    public void testContentCache() throws IOException {
+        RecordingCommitter first = new RecordingCommitter(0);
+        RecordingCommitter second = new RecordingCommitter(0);
+        MultiCommitter multi = new MultiCommitter();
+        multi.addCommitter(first, second);
+        multi.setMaxCachePoolSize(FileUtils.ONE_MB);
+        multi.setMaxCacheDocumentSize((int) (FileUtils.ONE_MB / 2));
+        File cacheDir = tempFolder.newFolder("cache");
+        multi.setCacheDir(cacheDir.getPath());
+
+        String medium = StringUtils.repeat('m', 300 * 1024);
+        String big = StringUtils.repeat('b', (int) FileUtils.ONE_MB);
+        for (int i = 0; i < 3; i++) {
+            multi.add("medium" + i, toStream(medium), new Properties());
+        }
+        multi.add("big", toStream(big), new Properties());
+        multi.commit();
+
+        assertEquals(5, first.requests.size());
+        assertEquals("add:medium2:" + medium, second.requests.get(2));
+        assertEquals("add:big:" + big, second.requests.get(3));
+        ContentCache cache = multi.getContentCache();
+        assertEquals(4, cache.getDocumentCount());
+        assertEquals(1, cache.getSpilledCount());
+        assertEquals(0.25f, cache.getSpillRate(), 0.001f);
+        // Memory is given back to the pool, spilled files deleted
+        assertEquals(0, cache.getUsedMemory());
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        MultiCommitter multi = new MultiCommitter();
+        multi.setParallel(true);
+        multi.setBufferSize(10);
+        multi.setMaxCachePoolSize(FileUtils.ONE_MB);
+        multi.setCacheDir("/tmp/cache");
+        StringWriter out = new StringWriter();
+        multi.saveToXML(out);
+        MultiCommitter read = new MultiCommitter();
+        read.loadFromXML(new StringReader(out.toString()));
+        assertTrue(read.isParallel());
+        assertEquals(10, read.getBufferSize());
+        assertEquals(multi, read);
+    }
+
+    private InputStream toStream(String content) {
+        return new ByteArrayInputStream(
+                content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class RecordingCommitter implements ICommitter {
+        private final List<String> requests = new CopyOnWriteArrayList<>();
+        private final long delay;
+        private String failOn;
+        RecordingCommitter(long delay) {
+            this.delay = delay;
+        }
+        @Override
+        public void add(
+                String reference, InputStream content, Properties metadata) {
+            sleep();
+            if (reference.equals(failOn)) {
+                throw new CommitterException("Cannot add: " + reference);
+            }
+            try {
+                requests.add("add:" + reference + ":" 
+                        + IOUtils.toString(content, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new CommitterException(e);
+            }
+        }
+        @Override
+        public void remove(String reference, Properties metadata) {
+            sleep();
+            requests.add("remove:" + reference);
+        }
+        @Override
+        public void commit() {
+            requests.add("commit");
+        }
+        private void sleep() {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
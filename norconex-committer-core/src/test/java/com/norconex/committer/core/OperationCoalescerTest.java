@@ -0,0 +1,49 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OperationCoalescerTest {
+
+    @Test
+    public void testKeepLatestPerReference() {
+        ICommitOperation add1 = newAddition("doc1");
+        ICommitOperation add2 = newAddition("doc2");
+        ICommitOperation delete1 = new DocumentDeleteOperation("doc1");
+        ICommitOperation add3 = newAddition("doc3");
+        ICommitOperation readd2 = newAddition("doc2");
+        List<ICommitOperation> coalesced = OperationCoalescer.coalesce(
+                Arrays.asList(add1, add2, delete1, add3, readd2));
+        assertEquals(Arrays.asList(delete1, add3, readd2), coalesced);
+    }
+
+    @Test
+    public void testNothingSuperseded() {
+        List<ICommitOperation> batch = Arrays.asList(newAddition("doc1"),
+                new DocumentDeleteOperation("doc2"), newAddition("doc3"));
+        assertSame(batch, OperationCoalescer.coalesce(batch));
+    }
+
+    private ICommitOperation newAddition(String reference) {
+        return new DocumentAddOperation(new Document(reference));
+    }
+}
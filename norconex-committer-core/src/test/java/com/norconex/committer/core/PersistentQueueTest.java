@@ -1,17 +1,32 @@
 package com.norconex.committer.core;
 
+import com.github.ddth.queue.impl.universal.UniversalIdIntQueueMessage;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
 
 import static org.junit.Assert.*;
 
 public class PersistentQueueTest {
 
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     PersistentQueue persistentQueue;
 
     @Before
     public void setUp() throws Exception {
-        persistentQueue = new PersistentQueue.Builder("test", "queue").build();
+        persistentQueue = new PersistentQueue.Builder(
+                "test", temp.newFolder().getAbsolutePath()).build();
+    }
+
+    @After
+    public void tearDown() {
+        persistentQueue.destroy();
     }
 
     @Test
@@ -37,4 +52,240 @@ public class PersistentQueueTest {
 
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIndependentQueues() throws Exception {
+        String dir = temp.newFolder().getAbsolutePath();
+        PersistentQueue queueA = new PersistentQueue.Builder("a", dir).build();
+        PersistentQueue queueB = new PersistentQueue.Builder("b", dir).build();
+        PersistentQueue queueC = new PersistentQueue.Builder(
+                "a", temp.newFolder().getAbsolutePath()).build();
+        try {
+            int initialSize = queueA.size();
+            queueA.offer(newMessage("1"));
+            assertEquals(initialSize + 1, queueA.size());
+            assertEquals(0, queueB.size());
+            assertEquals(0, queueC.size());
+        } finally {
+            queueA.destroy();
+            queueB.destroy();
+            queueC.destroy();
+        }
+    }
+
+    @Test
+    public void testSharedQueue() throws Exception {
+        String dir = temp.newFolder().getAbsolutePath();
+        PersistentQueue queue1 = new PersistentQueue.Builder("same", dir).build();
+        PersistentQueue queue2 = new PersistentQueue.Builder("same", dir).build();
+        try {
+            queue1.offer(newMessage("1"));
+            assertEquals(1, queue2.size());
+            // Destroying one instance must not close the other one
+            queue1.destroy();
+            assertEquals(1, queue2.size());
+        } finally {
+            queue1.destroy();
+            queue2.destroy();
+        }
+    }
+
+    @Test
+    public void testFinishAll() throws Exception {
+        PersistentQueue queue = new PersistentQueue.Builder(
+                "finish", temp.newFolder().getAbsolutePath()).build();
+        try {
+            queue.offer(newMessage("1"));
+            queue.offer(newMessage("2"));
+            assertEquals(2, queue.size());
+            UniversalIdIntQueueMessage msg1 = queue.poll();
+            UniversalIdIntQueueMessage msg2 = queue.poll();
+            assertNotNull(msg1);
+            assertNotNull(msg2);
+            assertEquals(2, queue.getEphemeralSize());
+
+            queue.finishAll(Arrays.asList(msg1, msg2));
+            assertEquals(0, queue.getEphemeralSize());
+            assertTrue(queue.isEmpty());
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String dir = temp.newFolder().getAbsolutePath();
+        PersistentQueue queue = new PersistentQueue.Builder("group", dir)
+                .groupCommitSize(10)
+                .groupCommitMaxDelay(0)
+                .syncWrites(true)
+                .build();
+        try {
+            queue.offerAll(Arrays.asList(
+                    newMessage("1"), newMessage("2"), newMessage("3")));
+            // Pending writes can be taken before they are written
+            assertEquals(3, queue.size());
+            UniversalIdIntQueueMessage msg1 = queue.poll();
+            assertEquals("1", referenceOf(msg1));
+            queue.finishAll(Arrays.asList(msg1));
+            assertEquals(0, queue.getEphemeralSize());
+            assertEquals("2", referenceOf(queue.poll()));
+        } finally {
+            // Pending writes are written on destroy
+            queue.destroy();
+        }
+
+        queue = new PersistentQueue.Builder("group", dir).build();
+        try {
+            assertEquals(1, queue.size());
+            assertEquals(1, queue.getEphemeralSize());
+            assertEquals("3", referenceOf(queue.poll()));
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testOrphansRequeuedInOrder() throws Exception {
+        String dir = temp.newFolder().getAbsolutePath();
+        PersistentQueue queue = new PersistentQueue.Builder("orphans", dir).build();
+        try {
+            queue.offer(newMessage("1"));
+            queue.offer(newMessage("2"));
+            queue.poll();
+        } finally {
+            queue.destroy();
+        }
+
+        queue = new PersistentQueue.Builder("orphans", dir).build();
+        try {
+            assertEquals(1, queue.getEphemeralSize());
+            queue.requeuAll();
+            assertEquals(0, queue.getEphemeralSize());
+            assertEquals("1", referenceOf(queue.poll()));
+            UniversalIdIntQueueMessage msg2 = queue.poll();
+            assertEquals("2", referenceOf(msg2));
+
+            // Requeued messages are taken before newer ones
+            queue.offer(newMessage("3"));
+            queue.requeue(msg2);
+            assertEquals("2", referenceOf(queue.poll()));
+            assertEquals("3", referenceOf(queue.poll()));
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testBufferSpill() throws Exception {
+        PersistentQueue queue = new PersistentQueue.Builder(
+                "spill", temp.newFolder().getAbsolutePath())
+                .bufferSize(2)
+                .overflowPolicy(PersistentQueue.OverflowPolicy.SPILL)
+                .build();
+        try {
+            for (int i = 1; i <= 3; i++) {
+                queue.acquireCapacity();
+                queue.offer(newMessage(Integer.toString(i)));
+            }
+            assertEquals(2, queue.getBufferedCount());
+            assertEquals(3, queue.size());
+            assertEquals(1f, queue.getPressure(), 0f);
+
+            // Order is kept: new messages go to disk while it has some
+            assertEquals("1", referenceOf(queue.poll()));
+            queue.offer(newMessage("4"));
+            assertEquals("2", referenceOf(queue.poll()));
+            assertEquals("3", referenceOf(queue.poll()));
+            UniversalIdIntQueueMessage msg4 = queue.poll();
+            assertEquals("4", referenceOf(msg4));
+            assertTrue(queue.isEmpty());
+
+            // Only message 3, taken from disk, uses the ephemeral storage
+            queue.finish(msg4);
+            assertEquals(1, queue.getEphemeralSize());
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testBufferFail() throws Exception {
+        PersistentQueue queue = new PersistentQueue.Builder(
+                "fail", temp.newFolder().getAbsolutePath())
+                .bufferSize(1)
+                .overflowPolicy(PersistentQueue.OverflowPolicy.FAIL)
+                .build();
+        try {
+            queue.acquireCapacity();
+            queue.offer(newMessage("1"));
+            try {
+                queue.acquireCapacity();
+                fail("Should have failed on full buffer.");
+            } catch (CommitterException e) {
+                // expected
+            }
+            queue.poll();
+            queue.acquireCapacity();
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testBufferBlock() throws Exception {
+        PersistentQueue queue = new PersistentQueue.Builder(
+                "block", temp.newFolder().getAbsolutePath())
+                .bufferSize(1)
+                .overflowPolicy(PersistentQueue.OverflowPolicy.BLOCK)
+                .overflowTimeout(5000)
+                .build();
+        try {
+            queue.acquireCapacity();
+            queue.offer(newMessage("1"));
+            Thread consumer = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queue.poll();
+            });
+            consumer.start();
+            long start = System.currentTimeMillis();
+            queue.acquireCapacity();
+            assertTrue(System.currentTimeMillis() - start >= 100);
+            consumer.join();
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testBufferSpilledOnDestroy() throws Exception {
+        String dir = temp.newFolder().getAbsolutePath();
+        PersistentQueue queue = new PersistentQueue.Builder("destroy", dir)
+                .bufferSize(10)
+                .build();
+        PersistentQueue other = new PersistentQueue.Builder("destroy", dir).build();
+        try {
+            queue.offer(newMessage("1"));
+            assertEquals(0, other.size());
+            queue.destroy();
+            assertEquals(1, other.size());
+        } finally {
+            other.destroy();
+        }
+    }
+
+    private String referenceOf(UniversalIdIntQueueMessage msg) {
+        return ((DocumentDeleteOperation) persistentQueue.decode(
+                msg.getContent())).getReference();
+    }
+
+    private UniversalIdIntQueueMessage newMessage(String reference) {
+        UniversalIdIntQueueMessage msg = UniversalIdIntQueueMessage.newInstance();
+        msg.setContent(new KryoQueueCodec().encode(new DocumentDeleteOperation(reference)));
+        return msg;
+    }
+}
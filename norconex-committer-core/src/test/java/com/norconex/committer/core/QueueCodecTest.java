@@ -0,0 +1,188 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.norconex.committer.core.AbstractQueueCodec.Compression;
+import com.norconex.commons.lang.map.Properties;
+
+public class QueueCodecTest {
+
+    @Test
+    public void testKryoCodecs() throws IOException {
+        for (Compression compression : Compression.values()) {
+            KryoQueueCodec codec = new KryoQueueCodec();
+            codec.setCompression(compression);
+            assertRoundTrip(codec);
+        }
+    }
+
+    @Test
+    public void testBinaryCodecs() throws IOException {
+        for (Compression compression : Compression.values()) {
+            BinaryQueueCodec codec = new BinaryQueueCodec();
+            codec.setCompression(compression);
+            assertRoundTrip(codec);
+        }
+    }
+
+    @Test
+    public void testCompressionChange() {
+        // Messages remain readable after compression is changed
+        KryoQueueCodec codec = new KryoQueueCodec();
+        codec.setCompression(Compression.ZSTD);
+        byte[] bytes = codec.encode(new DocumentDeleteOperation("ref"));
+        codec.setCompression(Compression.NONE);
+        assertEquals("ref",
+                ((IDeleteOperation) codec.decode(bytes)).getReference());
+    }
+
+    @Test
+    public void testSkipIncompressible() {
+        KryoQueueCodec codec = new KryoQueueCodec();
+        codec.setCompression(Compression.ZSTD);
+        byte[] text = new byte[10000];
+        Arrays.fill(text, (byte) 'a');
+        byte[] jpeg = Arrays.copyOf(text, text.length);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        Properties pdf = new Properties();
+        pdf.addString("document.contentType", "application/pdf");
+
+        assertEquals(Compression.ZSTD, headerOf(codec, text, null));
+        assertEquals(Compression.NONE, headerOf(codec, jpeg, null));
+        assertEquals(Compression.NONE, headerOf(codec, text, pdf));
+
+        codec.setSkipIncompressible(false);
+        assertEquals(Compression.ZSTD, headerOf(codec, jpeg, null));
+
+        codec.setSkipIncompressible(true);
+        codec.setIncompressibleContentTypes(Arrays.asList("image/"));
+        assertEquals(Compression.ZSTD, headerOf(codec, text, pdf));
+    }
+
+    @Test
+    public void testDeflateRandomContent() throws IOException {
+        KryoQueueCodec codec = new KryoQueueCodec();
+        codec.setCompression(Compression.DEFLATE);
+        byte[] content = new byte[1024 * 1024];
+        new Random(1).nextBytes(content);
+
+        DocumentAddOperation add = (DocumentAddOperation) codec.decode(
+                codec.encode(new DocumentAddOperation(
+                        new Document("ref", content, null))));
+        try (InputStream is = add.getContentStream()) {
+            assertArrayEquals(content, IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testRegisteredClassOnAllThreads() throws Exception {
+        KryoQueueCodec codec = new KryoQueueCodec();
+        // Initialize this thread's Kryo before registration
+        codec.decode(codec.encode(new DocumentDeleteOperation("ref")));
+        codec.registerClass(CustomOperation.class);
+
+        byte[] bytes = codec.encode(new CustomOperation("custom"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ICommitOperation> op =
+                    executor.submit(() -> codec.decode(bytes));
+            assertEquals("custom",
+                    ((IDeleteOperation) op.get()).getReference());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        KryoQueueCodec codec = new KryoQueueCodec();
+        codec.setCompression(Compression.DEFLATE);
+        codec.setCompressionLevel(9);
+        codec.setSkipIncompressible(false);
+        codec.setIncompressibleContentTypes(Arrays.asList("image/", "video/"));
+        StringWriter out = new StringWriter();
+        codec.saveToXML(out);
+        KryoQueueCodec readCodec = new KryoQueueCodec();
+        readCodec.loadFromXML(new StringReader(out.toString()));
+        assertEquals(codec, readCodec);
+    }
+
+    private Compression headerOf(
+            IQueueCodec codec, byte[] content, Properties metadata) {
+        byte[] bytes = codec.encode(new DocumentAddOperation(
+                new Document("ref", content, metadata)));
+        return Compression.values()[bytes[0]];
+    }
+
+    private void assertRoundTrip(IQueueCodec codec) throws IOException {
+        Properties metadata = new Properties();
+        metadata.addString("title", "A title");
+        metadata.addString("keywords", "one", "two");
+        byte[] content = new byte[10000];
+        Arrays.fill(content, (byte) 'a');
+
+        DocumentAddOperation add = (DocumentAddOperation) codec.decode(
+                codec.encode(new DocumentAddOperation(
+                        new Document("addRef", content, metadata))));
+        assertEquals("addRef", add.getReference());
+        assertEquals("A title", add.getMetadata().getString("title"));
+        assertEquals(Arrays.asList("one", "two"),
+                add.getMetadata().getStrings("keywords"));
+        try (InputStream is = add.getContentStream()) {
+            assertArrayEquals(content, IOUtils.toByteArray(is));
+        }
+
+        ICommitOperation delete = codec.decode(
+                codec.encode(new DocumentDeleteOperation("deleteRef")));
+        assertTrue(delete instanceof DocumentDeleteOperation);
+        assertEquals("deleteRef",
+                ((DocumentDeleteOperation) delete).getReference());
+    }
+
+    public static class CustomOperation implements IDeleteOperation {
+        private String reference;
+        public CustomOperation() {
+        }
+        public CustomOperation(String reference) {
+            this.reference = reference;
+        }
+        @Override
+        public String getReference() {
+            return reference;
+        }
+        @Override
+        public void delete() {
+        }
+    }
+}
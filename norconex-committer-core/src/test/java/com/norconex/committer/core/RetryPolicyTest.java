@@ -0,0 +1,122 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testExponentialDelays() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(100);
+        policy.setMaxDelay(500);
+        policy.setJitter(0);
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(200, policy.getDelay(2));
+        assertEquals(400, policy.getDelay(3));
+        assertEquals(500, policy.getDelay(4));
+
+        policy.setJitter(0.5f);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(3);
+            assertTrue(delay >= 200 && delay <= 400);
+        }
+    }
+
+    @Test
+    public void testRetryLimits() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(2);
+        policy.setInitialDelay(100);
+        policy.setJitter(0);
+        policy.setMaxElapsedTime(1000);
+        CommitterException e = new CommitterException();
+        assertEquals(100, policy.nextDelay(e, 1, 0));
+        assertEquals(-1, policy.nextDelay(e, 3, 0));
+        assertEquals(-1, policy.nextDelay(e, 2, 900));
+
+        policy.setRetryOn(IOException.class);
+        assertFalse(policy.isRetryable(e));
+        assertTrue(policy.isRetryable(new CommitterException(
+                new UncheckedIOException(new IOException()))));
+        assertEquals(-1, policy.nextDelay(e, 1, 0));
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(3);
+        policy.setInitialDelay(1);
+        ScheduledExecutorService scheduler = 
+                Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            policy.execute(() -> {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new CommitterException("failing");
+                }
+            }, scheduler).get();
+            assertEquals(3, attempts.get());
+
+            attempts.set(0);
+            CompletableFuture<Void> future = policy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new CommitterException("always failing");
+            }, scheduler);
+            try {
+                future.get();
+                fail("Should have failed after all retries.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CommitterException);
+            }
+            assertEquals(4, attempts.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(5);
+        policy.setInitialDelay(200);
+        policy.setMaxDelay(30000);
+        policy.setMultiplier(3f);
+        policy.setJitter(0.25f);
+        policy.setMaxElapsedTime(120000);
+        policy.setRetryOn(IOException.class, IllegalStateException.class);
+        StringWriter out = new StringWriter();
+        policy.saveToXML(out);
+        RetryPolicy loaded = new RetryPolicy();
+        loaded.loadFromXML(new StringReader(out.toString()));
+        assertEquals(policy, loaded);
+    }
+}
@@ -0,0 +1,153 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.norconex.committer.core.impl.FileSystemCommitter;
+import com.norconex.committer.core.impl.RoutingCommitter;
+import com.norconex.committer.core.impl.RoutingCommitter.Match;
+import com.norconex.committer.core.impl.RoutingCommitter.Restriction;
+import com.norconex.committer.core.impl.RoutingCommitter.Route;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Tests the {@link RoutingCommitter}.
+ */
+public class RoutingCommitterTest {
+
+    @Test
+    public void testRouting() {
+        RecordingCommitter news = new RecordingCommitter();
+        RecordingCommitter pdfs = new RecordingCommitter();
+        RecordingCommitter tagged = new RecordingCommitter();
+        RoutingCommitter routing = new RoutingCommitter();
+        routing.addRoute(
+                new Route(news, 
+                        new Restriction("section", Match.EQUALS, "NEWS"),
+                        new Restriction("section", Match.EQUALS, "blog")),
+                new Route(pdfs, new Restriction(
+                        "contentType", Match.REGEX, "application/pdf.*")),
+                new Route(tagged, new Restriction("tag", Match.EXISTS, null)));
+
+        routing.add("doc1", toStream("news"), 
+                props("section", "news", "contentType", "text/html"));
+        routing.add("doc2", toStream("pdf"), 
+                props("contentType", "Application/PDF", "tag", "x"));
+        routing.add("doc3", toStream("none"), props("section", "sports"));
+        routing.remove("doc4", new Properties());
+        routing.commit();
+
+        assertEquals("[add:doc1:news, remove:doc4, commit]", 
+                news.requests.toString());
+        assertEquals("[add:doc2:pdf, remove:doc4, commit]", 
+                pdfs.requests.toString());
+        assertEquals("[add:doc2:pdf, remove:doc4, commit]", 
+                tagged.requests.toString());
+    }
+
+    @Test
+    public void testCaseSensitive() {
+        Restriction equals = new Restriction(
+                "section", Match.EQUALS, "News", true);
+        Restriction regex = new Restriction(
+                "section", Match.REGEX, "N.*", true);
+        assertTrue(equals.matches(props("section", "News")));
+        assertTrue(!equals.matches(props("section", "news")));
+        assertTrue(regex.matches(props("section", "News")));
+        assertTrue(!regex.matches(props("section", "news")));
+    }
+
+    @Test
+    public void testSameCommitterOnce() {
+        RecordingCommitter committer = new RecordingCommitter();
+        RoutingCommitter routing = new RoutingCommitter();
+        routing.addRoute(
+                new Route(committer, new Restriction("a", Match.EXISTS, null)),
+                new Route(committer, new Restriction("b", Match.EXISTS, null)));
+        routing.add("doc1", toStream("content"), props("a", "1", "b", "2"));
+        routing.remove("doc2", new Properties());
+        routing.commit();
+        assertEquals("[add:doc1:content, remove:doc2, commit]", 
+                committer.requests.toString());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        FileSystemCommitter fs1 = new FileSystemCommitter();
+        fs1.setDirectory("/tmp/routing1");
+        FileSystemCommitter fs2 = new FileSystemCommitter();
+        fs2.setDirectory("/tmp/routing2");
+        RoutingCommitter routing = new RoutingCommitter();
+        routing.addRoute(
+                new Route(fs1, 
+                        new Restriction("section", Match.EQUALS, "news"),
+                        new Restriction("type", Match.REGEX, "a|b", true)),
+                new Route(fs2));
+        System.out.println("Writing/Reading this: " + routing);
+        StringWriter out = new StringWriter();
+        routing.saveToXML(out);
+        RoutingCommitter read = new RoutingCommitter();
+        read.loadFromXML(new StringReader(out.toString()));
+        assertEquals(routing, read);
+    }
+
+    private static InputStream toStream(String content) {
+        return new ByteArrayInputStream(
+                content.getBytes(StandardCharsets.UTF_8));
+    }
+    private static Properties props(String... keyValues) {
+        Properties props = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            props.addString(keyValues[i], keyValues[i + 1]);
+        }
+        return props;
+    }
+
+    private static class RecordingCommitter implements ICommitter {
+        private final List<String> requests = new ArrayList<>();
+        @Override
+        public void add(
+                String reference, InputStream content, Properties metadata) {
+            try {
+                requests.add("add:" + reference + ":" 
+                        + IOUtils.toString(content, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new CommitterException(e);
+            }
+        }
+        @Override
+        public void remove(String reference, Properties metadata) {
+            requests.add("remove:" + reference);
+        }
+        @Override
+        public void commit() {
+            requests.add("commit");
+        }
+    }
+}
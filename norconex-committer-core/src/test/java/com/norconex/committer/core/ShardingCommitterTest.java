@@ -0,0 +1,146 @@
+/* Copyright 2018 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.committer.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.norconex.committer.core.impl.FileSystemCommitter;
+import com.norconex.committer.core.impl.ShardingCommitter;
+import com.norconex.commons.lang.map.Properties;
+
+/**
+ * Tests the {@link ShardingCommitter}.
+ */
+public class ShardingCommitterTest {
+
+    @Test
+    public void testSameShard() {
+        RecordingCommitter[] shards = new RecordingCommitter[] {
+                new RecordingCommitter(), new RecordingCommitter(),
+                new RecordingCommitter(), new RecordingCommitter()};
+        ShardingCommitter sharding = new ShardingCommitter();
+        sharding.addCommitter(shards);
+        for (int i = 0; i < 1000; i++) {
+            sharding.add("doc" + i, new ByteArrayInputStream(new byte[] {}), 
+                    new Properties());
+            sharding.remove("doc" + i, new Properties());
+        }
+        sharding.commit();
+
+        int total = 0;
+        for (RecordingCommitter shard : shards) {
+            int docs = (shard.requests.size() - 1) / 2;
+            // Roughly even distribution
+            assertTrue("Uneven shard: " + docs, docs > 150 && docs < 350);
+            total += docs;
+            for (int i = 0; i < shard.requests.size() - 1; i += 2) {
+                String ref = shard.requests.get(i).replaceFirst("add:", "");
+                assertEquals("remove:" + ref, shard.requests.get(i + 1));
+            }
+            assertEquals("commit", 
+                    shard.requests.get(shard.requests.size() - 1));
+        }
+        assertEquals(1000, total);
+    }
+
+    @Test
+    public void testConsistentHashing() {
+        ShardingCommitter sharding = new ShardingCommitter();
+        sharding.addCommitter(new RecordingCommitter(), 
+                new RecordingCommitter(), new RecordingCommitter());
+        ICommitter[] before = new ICommitter[1000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = sharding.getShard("doc" + i);
+        }
+        RecordingCommitter added = new RecordingCommitter();
+        sharding.addCommitter(added);
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            ICommitter after = sharding.getShard("doc" + i);
+            if (after != before[i]) {
+                assertSame(added, after);
+                moved++;
+            }
+        }
+        assertTrue("Too many moved: " + moved, moved < 400);
+    }
+
+    @Test
+    public void testCommitFailure() {
+        RecordingCommitter healthy = new RecordingCommitter();
+        RecordingCommitter failing = new RecordingCommitter();
+        failing.failCommit = true;
+        ShardingCommitter sharding = new ShardingCommitter();
+        sharding.addCommitter(failing, healthy);
+        try {
+            sharding.commit();
+            fail("Should have failed.");
+        } catch (CommitterException e) {
+            assertEquals("Cannot commit.", e.getCause().getMessage());
+        }
+        assertEquals("[commit]", healthy.requests.toString());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        FileSystemCommitter fs1 = new FileSystemCommitter();
+        fs1.setDirectory("/tmp/shard1");
+        FileSystemCommitter fs2 = new FileSystemCommitter();
+        fs2.setDirectory("/tmp/shard2");
+        ShardingCommitter sharding = new ShardingCommitter();
+        sharding.addCommitter(fs1, fs2);
+        sharding.setVirtualNodes(50);
+        System.out.println("Writing/Reading this: " + sharding);
+        StringWriter out = new StringWriter();
+        sharding.saveToXML(out);
+        ShardingCommitter read = new ShardingCommitter();
+        read.loadFromXML(new StringReader(out.toString()));
+        assertEquals(sharding, read);
+    }
+
+    private static class RecordingCommitter implements ICommitter {
+        private final List<String> requests = new CopyOnWriteArrayList<>();
+        private boolean failCommit;
+        @Override
+        public void add(
+                String reference, InputStream content, Properties metadata) {
+            requests.add("add:" + reference);
+        }
+        @Override
+        public void remove(String reference, Properties metadata) {
+            requests.add("remove:" + reference);
+        }
+        @Override
+        public void commit() {
+            if (failCommit) {
+                throw new CommitterException("Cannot commit.");
+            }
+            requests.add("commit");
+        }
+    }
+}